@@ -0,0 +1,97 @@
+/*
+ *   Copyright 2018. AppDynamics LLC and its affiliates.
+ *   All Rights Reserved.
+ *   This is unpublished proprietary source code of AppDynamics LLC and its affiliates.
+ *   The copyright notice above does not evidence any actual or intended publication of such source code.
+ *
+ */
+package com.appdynamics.connectors.azure.benchmark;
+
+import com.appdynamics.connectors.azure.ConnectorLocator;
+import com.microsoft.windowsazure.management.compute.ComputeManagementClient;
+import com.singularity.ee.connectors.api.IControllerServices;
+import com.singularity.ee.connectors.entity.api.IComputeCenter;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Client lookups from many Controller threads at once, spread over one or several compute centers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConnectorLocatorBenchmark {
+
+    @Param({"1", "16"})
+    public int computeCenterCount;
+
+    private IComputeCenter[] computeCenters;
+    private IControllerServices controllerServices;
+
+    @Setup
+    public void setUp() throws Exception {
+        controllerServices = Fixtures.controllerServices();
+        byte[] keyStore = Fixtures.emptyKeyStore();
+        computeCenters = new IComputeCenter[computeCenterCount];
+        for (int i = 0; i < computeCenterCount; i++) {
+            computeCenters[i] = Fixtures.computeCenter("locator" + i, keyStore);
+            ConnectorLocator.getInstance().getConnector(computeCenters[i], controllerServices);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+    }
+
+    @Benchmark
+    public ComputeManagementClient getConnectorSingleThread(Cursor cursor) throws Exception {
+        return lookup(cursor);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public ComputeManagementClient getConnectorContended(Cursor cursor) throws Exception {
+        return lookup(cursor);
+    }
+
+    /**
+     * Refresh-path lookups while another thread keeps dropping and rebuilding the clients of the first compute center,
+     * as happens when credentials are rotated. Lookups of the other compute centers should not slow down.
+     */
+    @Benchmark
+    @Group("rebuild")
+    @GroupThreads(15)
+    public ComputeManagementClient getConnectorDuringRebuild(Cursor cursor) throws Exception {
+        return lookup(cursor);
+    }
+
+    @Benchmark
+    @Group("rebuild")
+    @GroupThreads(1)
+    public ComputeManagementClient rebuild() throws Exception {
+        ConnectorLocator.getInstance().invalidate(computeCenters[0].getName());
+        return ConnectorLocator.getInstance().getConnector(computeCenters[0], controllerServices);
+    }
+
+    private ComputeManagementClient lookup(Cursor cursor) throws Exception {
+        IComputeCenter computeCenter = computeCenters[cursor.next++ % computeCenters.length];
+        return ConnectorLocator.getInstance().getConnector(computeCenter, controllerServices);
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ *   Copyright 2018. AppDynamics LLC and its affiliates.
+ *   All Rights Reserved.
+ *   This is unpublished proprietary source code of AppDynamics LLC and its affiliates.
+ *   The copyright notice above does not evidence any actual or intended publication of such source code.
+ *
+ */
+package com.appdynamics.connectors.azure.benchmark;
+
+import com.singularity.ee.connectors.entity.api.IMachine;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end createMachine against the stub endpoint: validation, storage and hosted service checks, the batched role
+ * creation and registration on the Controller. The batch window and operation poll interval are shortened so the
+ * measurement is dominated by connector work rather than by its timers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = {
+        "-Dappdynamics.azure.scaleout.batch.window.millis=1",
+        "-Dappdynamics.azure.operation.poll.interval.millis=10",
+        "-Dappdynamics.azure.management.requests.per.second=1000000"})
+public class CreateMachineBenchmark {
+
+    private final StubEnvironment environment = new StubEnvironment();
+
+    private final AtomicInteger machineCount = new AtomicInteger();
+
+    @Setup
+    public void setUp() throws Exception {
+        environment.start();
+    }
+
+    @TearDown
+    public void tearDown() {
+        environment.stop();
+    }
+
+    //keeps the deployment from growing without bound over the run
+    @TearDown(Level.Iteration)
+    public void removeDeployment() {
+        environment.getStub().removeDeployment(StubEnvironment.HOSTED_SERVICE, StubEnvironment.DEPLOYMENT);
+    }
+
+    @Benchmark
+    public IMachine createMachine() throws Exception {
+        return create();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public IMachine createMachineConcurrent() throws Exception {
+        return create();
+    }
+
+    private IMachine create() throws Exception {
+        String roleInstanceName = "vm-" + machineCount.incrementAndGet();
+        return environment.getConnector().createMachine(environment.getComputeCenter(), environment.getImage(),
+                Fixtures.machineDescriptor(roleInstanceName, "Windows Server 2012 R2 Datacenter"));
+    }
+}
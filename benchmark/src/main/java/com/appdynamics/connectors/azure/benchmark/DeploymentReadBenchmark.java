@@ -0,0 +1,69 @@
+/*
+ *   Copyright 2018. AppDynamics LLC and its affiliates.
+ *   All Rights Reserved.
+ *   This is unpublished proprietary source code of AppDynamics LLC and its affiliates.
+ *   The copyright notice above does not evidence any actual or intended publication of such source code.
+ *
+ */
+package com.appdynamics.connectors.azure.benchmark;
+
+import com.appdynamics.connectors.azure.ConnectorLocator;
+import com.appdynamics.connectors.azure.DeploymentSnapshot;
+import com.appdynamics.connectors.azure.DeploymentStatusReader;
+import com.microsoft.windowsazure.management.compute.ComputeManagementClient;
+import com.microsoft.windowsazure.management.compute.models.DeploymentGetResponse;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Fetching a deployment with the SDK's getByName against the streaming {@link DeploymentStatusReader}, both over the
+ * same client and stub. Run with -prof gc to compare the bytes allocated per fetch next to the latency.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dappdynamics.azure.management.requests.per.second=1000000")
+public class DeploymentReadBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int roleCount;
+
+    private final StubEnvironment environment = new StubEnvironment();
+
+    private ComputeManagementClient computeClient;
+
+    @Setup
+    public void setUp() throws Exception {
+        environment.start();
+        environment.getStub().addDeployment(StubEnvironment.HOSTED_SERVICE, StubEnvironment.DEPLOYMENT, roleCount);
+        computeClient = ConnectorLocator.getInstance().getConnector(environment.getComputeCenter(), environment.getControllerServices());
+    }
+
+    @TearDown
+    public void tearDown() {
+        environment.stop();
+    }
+
+    @Benchmark
+    public DeploymentGetResponse sdkGetByName() throws Exception {
+        return computeClient.getDeploymentsOperations().getByName(StubEnvironment.HOSTED_SERVICE, StubEnvironment.DEPLOYMENT);
+    }
+
+    @Benchmark
+    public DeploymentSnapshot statusReader() throws Exception {
+        return DeploymentStatusReader.read(computeClient, StubEnvironment.HOSTED_SERVICE, StubEnvironment.DEPLOYMENT);
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ *   Copyright 2018. AppDynamics LLC and its affiliates.
+ *   All Rights Reserved.
+ *   This is unpublished proprietary source code of AppDynamics LLC and its affiliates.
+ *   The copyright notice above does not evidence any actual or intended publication of such source code.
+ *
+ */
+package com.appdynamics.connectors.azure.benchmark;
+
+import com.singularity.ee.connectors.api.IControllerServices;
+import com.singularity.ee.connectors.entity.api.IAccount;
+import com.singularity.ee.connectors.entity.api.IComputeCenter;
+import com.singularity.ee.connectors.entity.api.IFileProperty;
+import com.singularity.ee.connectors.entity.api.IImage;
+import com.singularity.ee.connectors.entity.api.IMachine;
+import com.singularity.ee.connectors.entity.api.IMachineDescriptor;
+import com.singularity.ee.connectors.entity.api.IProperty;
+import com.singularity.ee.connectors.entity.api.IPropertyDefinition;
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.security.KeyStore;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Controller-side objects the connector is called with. They are dynamic proxies answering getters from a map, so
+ * the benchmarks do not depend on the Controller's implementations of the connector API.
+ */
+public final class Fixtures {
+
+    public static final String SUBSCRIPTION_ID = "00000000-0000-0000-0000-000000000000";
+    public static final String KEY_STORE_PASSWORD = "benchmark";
+
+    private Fixtures() {
+
+    }
+
+    public static IControllerServices controllerServices() {
+        return entity(IControllerServices.class, new EntityHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if ("getStringPropertyValueByName".equals(method.getName())) {
+                    for (IProperty property : (IProperty[]) args[0]) {
+                        if (property.getDefinition().getName().equals(args[1])) {
+                            return ((EntityHandler) Proxy.getInvocationHandler(property)).values.get("getValue");
+                        }
+                    }
+                    return null;
+                }
+                if ("createMachineInstance".equals(method.getName())) {
+                    return machine((IComputeCenter) args[2], (IImage) args[4], (IMachineDescriptor) args[3]);
+                }
+                if ("getDefaultAgentPort".equals(method.getName())) {
+                    return 8090;
+                }
+                return super.invoke(proxy, method, args);
+            }
+        });
+    }
+
+    public static IComputeCenter computeCenter(String name, byte[] keyStore) {
+        EntityHandler handler = new EntityHandler();
+        handler.values.put("getName", name);
+        handler.values.put("getProperties", new IProperty[]{
+                property("Subscription Id", SUBSCRIPTION_ID),
+                fileProperty("Key Store", keyStore),
+                property("Key Store Password", KEY_STORE_PASSWORD)});
+        EntityHandler account = new EntityHandler();
+        account.values.put("getName", "customer1");
+        handler.values.put("getAccount", entity(IAccount.class, account));
+        return entity(IComputeCenter.class, handler);
+    }
+
+    public static IImage image(String hostedServiceName, String deploymentSlot, String location) {
+        return image(hostedServiceName, deploymentSlot, location, false);
+    }
+
+    public static IImage image(String hostedServiceName, String deploymentSlot, String location, boolean preProvision) {
+        EntityHandler handler = new EntityHandler();
+        handler.values.put("getName", hostedServiceName);
+        handler.values.put("getProperties", new IProperty[]{
+                property("Hosted Service Name", hostedServiceName),
+                property("Deployment Slot Type", deploymentSlot),
+                property("Location", location),
+                property("Pre-Provision", String.valueOf(preProvision))});
+        return entity(IImage.class, handler);
+    }
+
+    public static IMachineDescriptor machineDescriptor(String roleInstanceName, String osImage) {
+        EntityHandler handler = new EntityHandler();
+        handler.values.put("getProperties", new IProperty[]{
+                property("Role Instance Name", roleInstanceName),
+                property("OS Image", osImage),
+                property("size", "Small"),
+                property("Admin User Name", "appd"),
+                property("Admin User Password", "Benchmark#1")});
+        return entity(IMachineDescriptor.class, handler);
+    }
+
+    public static IMachine machine(IComputeCenter computeCenter, IImage image, IMachineDescriptor machineDescriptor) {
+        EntityHandler handler = new EntityHandler();
+        handler.values.put("getComputeCenter", computeCenter);
+        handler.values.put("getImage", image);
+        handler.values.put("getMachineDescriptor", machineDescriptor);
+        return entity(IMachine.class, handler);
+    }
+
+    /**
+     * An empty JKS key store; the stub endpoint is plain http, so no client certificate is presented.
+     */
+    public static byte[] emptyKeyStore() throws Exception {
+        KeyStore keyStore = KeyStore.getInstance("JKS");
+        keyStore.load(null, KEY_STORE_PASSWORD.toCharArray());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        keyStore.store(out, KEY_STORE_PASSWORD.toCharArray());
+        return out.toByteArray();
+    }
+
+    private static IProperty property(String name, String value) {
+        EntityHandler handler = new EntityHandler();
+        handler.values.put("getDefinition", definition(name));
+        handler.values.put("getValue", value);
+        return entity(IProperty.class, handler);
+    }
+
+    private static IProperty fileProperty(String name, byte[] bytes) {
+        EntityHandler handler = new EntityHandler();
+        handler.values.put("getDefinition", definition(name));
+        handler.values.put("getFileBytes", bytes);
+        return entity(IFileProperty.class, handler);
+    }
+
+    private static IPropertyDefinition definition(String name) {
+        EntityHandler handler = new EntityHandler();
+        handler.values.put("getName", name);
+        return entity(IPropertyDefinition.class, handler);
+    }
+
+    private static <T> T entity(Class<T> type, EntityHandler handler) {
+        return type.cast(Proxy.newProxyInstance(Fixtures.class.getClassLoader(), new Class<?>[]{type}, handler));
+    }
+
+    private static Object zero(Class<?> type) {
+        if (type == boolean.class) {
+            return Boolean.FALSE;
+        }
+        if (type == long.class) {
+            return 0L;
+        }
+        if (type == double.class) {
+            return 0d;
+        }
+        if (type == float.class) {
+            return 0f;
+        }
+        if (type == void.class) {
+            return null;
+        }
+        return 0;
+    }
+
+    /**
+     * Answers getters from the map and stores what setters are called with, so a machine keeps its state.
+     */
+    private static class EntityHandler implements InvocationHandler {
+
+        final Map<String, Object> values = new ConcurrentHashMap<String, Object>();
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if ("hashCode".equals(name)) {
+                return System.identityHashCode(proxy);
+            }
+            if ("equals".equals(name)) {
+                return proxy == args[0];
+            }
+            if ("toString".equals(name)) {
+                return method.getDeclaringClass().getSimpleName() + values;
+            }
+            if (name.startsWith("set") && args != null && args.length == 1) {
+                if (args[0] != null) {
+                    values.put("get" + name.substring(3), args[0]);
+                }
+                return null;
+            }
+            Object value = values.get(name);
+            if (value == null && method.getReturnType().isPrimitive()) {
+                return zero(method.getReturnType());
+            }
+            return value;
+        }
+    }
+}
@@ -0,0 +1,316 @@
+/*
+ *   Copyright 2018. AppDynamics LLC and its affiliates.
+ *   All Rights Reserved.
+ *   This is unpublished proprietary source code of AppDynamics LLC and its affiliates.
+ *   The copyright notice above does not evidence any actual or intended publication of such source code.
+ *
+ */
+package com.appdynamics.connectors.azure.benchmark;
+
+import com.appdynamics.connectors.azure.ConnectionPoolMBean;
+import com.appdynamics.connectors.azure.ConnectorMetrics;
+import com.appdynamics.connectors.azure.ConnectorStats;
+import com.appdynamics.connectors.azure.ImagePrewarmer;
+import com.appdynamics.connectors.azure.ImageReadiness;
+import com.appdynamics.connectors.azure.OperationMetrics;
+import com.appdynamics.connectors.azure.VhdStore;
+import com.appdynamics.connectors.azure.WindowsAzurePaaSConnector;
+import com.singularity.ee.connectors.api.IControllerServices;
+import com.singularity.ee.connectors.entity.api.IComputeCenter;
+import com.singularity.ee.connectors.entity.api.IImage;
+import com.singularity.ee.connectors.entity.api.IMachine;
+import com.singularity.ee.connectors.entity.api.MachineState;
+import java.io.FileWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.JMX;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+/**
+ * Drives a fleet of machines through the connector against an embedded {@link ManagementEndpointStub}: creates them
+ * concurrently, refreshes them until they are all started, terminates them, and prints the latency percentiles and
+ * error counts the connector recorded for each operation. With the same settings the numbers are comparable between
+ * runs, so changes to the connector can be measured against a baseline.
+ * <p/>
+ * Settings are system properties: machines, concurrency, hosted.services, refresh.interval.millis,
+ * refresh.max.rounds, steady.rounds (refreshes of the started fleet before terminating it), pre.provision (configure the images ahead of the fleet and wait until they are prepared),
+ * orphaned.vhds (VHDs the connector left behind in each storage account in earlier runs) and
+ * report (a CSV file to write), plus the stand-in ones documented on
+ * {@link ManagementEndpointStub#main}.
+ */
+public class LoadDriver {
+
+    private static final String[] OPERATIONS = {"createMachine", "validateCredentials", "provision/storageAccount", "provision/hostedService",
+            "provision/role", "refreshMachineState", "terminateMachine", "syncInventory"};
+
+    private final int machineCount = Integer.getInteger("machines", 2000);
+    private final int concurrency = Integer.getInteger("concurrency", 200);
+    private final int hostedServiceCount = Integer.getInteger("hosted.services", 4);
+    private final long refreshIntervalMillis = Long.getLong("refresh.interval.millis", 1000);
+    private final int refreshMaxRounds = Integer.getInteger("refresh.max.rounds", 60);
+    private final int steadyRounds = Integer.getInteger("steady.rounds", 0);
+    private final boolean preProvision = Boolean.getBoolean("pre.provision");
+    private final int orphanedVhds = Integer.getInteger("orphaned.vhds", 0);
+    private final String report = System.getProperty("report");
+
+    private final ManagementEndpointStub stub = new ManagementEndpointStub();
+    private final List<String> phases = new ArrayList<String>();
+    private final List<Long> phaseMillis = new ArrayList<Long>();
+    private final AtomicLong driverErrors = new AtomicLong();
+
+    private ExecutorService executor;
+    private WindowsAzurePaaSConnector connector;
+    private IComputeCenter computeCenter;
+
+    public static void main(String[] args) throws Exception {
+        new LoadDriver().run();
+        System.exit(0);
+    }
+
+    public void run() throws Exception {
+        stub.setLatency(Long.getLong("latency.millis", 20), Long.getLong("latency.jitter.millis", 30));
+        stub.setOperationMillis(Long.getLong("operation.millis", 2000));
+        stub.setThrottling(Integer.getInteger("max.requests.per.second", 0), Integer.getInteger("retry.after.seconds", 1));
+        stub.setFailureRate(Double.parseDouble(System.getProperty("failure.rate", "0")));
+        stub.start();
+        System.setProperty("appdynamics.azure.management.uri", stub.getUri());
+        System.setProperty("appdynamics.azure.blob.endpoint", stub.getBlobEndpoint());
+
+        executor = Executors.newFixedThreadPool(concurrency);
+        try {
+            IControllerServices controllerServices = Fixtures.controllerServices();
+            computeCenter = Fixtures.computeCenter("load", Fixtures.emptyKeyStore());
+            connector = new WindowsAzurePaaSConnector();
+            connector.setControllerServices(controllerServices);
+
+            List<IImage> images = new ArrayList<IImage>();
+            for (int i = 0; i < hostedServiceCount; i++) {
+                images.add(Fixtures.image("loadhs" + i, StubEnvironment.DEPLOYMENT_SLOT, "West US", preProvision));
+                if (orphanedVhds > 0) {
+                    stub.addStorageAccount("loadhs" + i);
+                    for (int j = 0; j < orphanedVhds; j++) {
+                        stub.addOrphanedVhd("loadhs" + i, VhdStore.getInstance().newVhdName("orphan" + j), 24 * 60 * 60 * 1000L);
+                    }
+                    //a disk someone else put into the container, which must be left alone
+                    stub.addOrphanedVhd("loadhs" + i, "foreign.vhd", 24 * 60 * 60 * 1000L);
+                }
+            }
+
+            long start = System.currentTimeMillis();
+            if (preProvision) {
+                prewarm(images);
+                phase("pre-provision", start);
+            }
+
+            start = System.currentTimeMillis();
+            List<IMachine> machines = create(images);
+            phase("create", start);
+
+            start = System.currentTimeMillis();
+            int rounds = refreshUntil(machines, MachineState.STARTED);
+            phase("refresh (" + rounds + " rounds)", start);
+
+            if (steadyRounds > 0) {
+                start = System.currentTimeMillis();
+                long fetches = new ConnectorStats().getDeploymentFetches();
+                for (int i = 0; i < steadyRounds; i++) {
+                    Thread.sleep(refreshIntervalMillis);
+                    refreshRound(machines);
+                }
+                phase("steady (" + (new ConnectorStats().getDeploymentFetches() - fetches) + " fetches)", start);
+            }
+
+            start = System.currentTimeMillis();
+            terminate(machines);
+            phase("terminate", start);
+
+            print(new PrintWriter(System.out, true));
+            if (report != null) {
+                PrintWriter out = new PrintWriter(new FileWriter(report));
+                try {
+                    printCsv(out);
+                } finally {
+                    out.close();
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+            stub.stop();
+        }
+    }
+
+    private void prewarm(List<IImage> images) throws Exception {
+        connector.configure(computeCenter);
+        for (IImage image : images) {
+            connector.configure(image);
+        }
+        for (IImage image : images) {
+            ImageReadiness readiness = ImagePrewarmer.getInstance().getReadiness(image.getName());
+            while (ImageReadiness.State.PREPARING.name().equals(readiness.getState())) {
+                Thread.sleep(50);
+            }
+            if (!ImageReadiness.State.READY.name().equals(readiness.getState())) {
+                driverErrors.incrementAndGet();
+                System.err.println("Image " + image.getName() + " is " + readiness.getState() + ": " + readiness.getLastError());
+            }
+        }
+    }
+
+    private List<IMachine> create(List<IImage> images) throws InterruptedException {
+        List<Callable<IMachine>> tasks = new ArrayList<Callable<IMachine>>();
+        for (int i = 0; i < machineCount; i++) {
+            final IImage image = images.get(i % images.size());
+            final String roleInstanceName = "load-" + i;
+            tasks.add(new Callable<IMachine>() {
+                @Override
+                public IMachine call() throws Exception {
+                    return connector.createMachine(computeCenter, image,
+                            Fixtures.machineDescriptor(roleInstanceName, "Windows Server 2012 R2 Datacenter"));
+                }
+            });
+        }
+        List<IMachine> machines = new ArrayList<IMachine>();
+        for (Future<IMachine> future : executor.invokeAll(tasks)) {
+            IMachine machine = outcome(future);
+            if (machine != null) {
+                machines.add(machine);
+            }
+        }
+        return machines;
+    }
+
+    private int refreshUntil(List<IMachine> machines, MachineState state) throws InterruptedException {
+        int round = 0;
+        while (round < refreshMaxRounds) {
+            round++;
+            boolean done = true;
+            for (MachineState refreshed : refreshRound(machines)) {
+                done &= refreshed == state;
+            }
+            if (done) {
+                break;
+            }
+            Thread.sleep(refreshIntervalMillis);
+        }
+        return round;
+    }
+
+    private List<MachineState> refreshRound(List<IMachine> machines) throws InterruptedException {
+        List<Callable<MachineState>> tasks = new ArrayList<Callable<MachineState>>();
+        for (final IMachine machine : machines) {
+            tasks.add(new Callable<MachineState>() {
+                @Override
+                public MachineState call() throws Exception {
+                    connector.refreshMachineState(machine);
+                    return machine.getState();
+                }
+            });
+        }
+        List<MachineState> states = new ArrayList<MachineState>();
+        for (Future<MachineState> future : executor.invokeAll(tasks)) {
+            states.add(outcome(future));
+        }
+        return states;
+    }
+
+    private void terminate(List<IMachine> machines) throws InterruptedException {
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (final IMachine machine : machines) {
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    connector.terminateMachine(machine);
+                    return null;
+                }
+            });
+        }
+        for (Future<Void> future : executor.invokeAll(tasks)) {
+            outcome(future);
+        }
+    }
+
+    private <T> T outcome(Future<T> future) throws InterruptedException {
+        try {
+            return future.get();
+        } catch (Exception e) {
+            if (driverErrors.incrementAndGet() <= 5) {
+                System.err.println("Call failed: " + e.getCause());
+            }
+            return null;
+        }
+    }
+
+    private void phase(String name, long start) {
+        phases.add(name);
+        phaseMillis.add(System.currentTimeMillis() - start);
+    }
+
+    private void print(PrintWriter out) {
+        out.println();
+        out.println(machineCount + " machines, concurrency " + concurrency + ", " + hostedServiceCount + " hosted services");
+        for (int i = 0; i < phases.size(); i++) {
+            out.println(String.format("%-28s %8d ms", phases.get(i), phaseMillis.get(i)));
+        }
+        out.println();
+        out.println(String.format("%-26s %8s %8s %8s %8s %8s %8s %8s", "operation", "count", "errors", "mean", "p50", "p95", "p99", "max"));
+        for (String operation : OPERATIONS) {
+            OperationMetrics metrics = ConnectorMetrics.getInstance().getOperationMetrics(operation);
+            out.println(String.format("%-26s %8d %8d %8.1f %8d %8d %8d %8d", operation, metrics.getCount(), metrics.getErrorCount(),
+                    metrics.getMeanMillis(), metrics.getP50Millis(), metrics.getP95Millis(), metrics.getP99Millis(), metrics.getMaxMillis()));
+        }
+        out.println();
+        ConnectorStats stats = new ConnectorStats();
+        out.println("stand-in requests " + stub.getRequests() + ", throttled " + stub.getThrottled() + ", injected failures " + stub.getInjectedFailures()
+                + ", disk deletes " + stub.getDiskDeletes() + ", blob deletes " + stub.getBlobDeletes());
+        out.println("connector retried " + stats.getRetriedCalls() + ", throttled " + stats.getThrottledCalls() + ", failed " + stats.getFailedCalls()
+                + ", rate limited " + stats.getRateLimitedCalls() + ", deployment fetches " + stats.getDeploymentFetches()
+                + ", snapshot hits " + stats.getDeploymentSnapshotHits() + ", settings cache hits " + stats.getSettingsCacheHits()
+                + ", misses " + stats.getSettingsCacheMisses() + ", state lookups " + stats.getMachineStateLookups()
+                + ", cached refreshes " + stats.getCachedMachineStateRefreshes() + ", VHD index loads " + stats.getVhdIndexLoads()
+                + ", orphaned VHDs deleted " + stats.getOrphanedVhdsDeleted()
+                + ", credential validations " + stats.getCredentialValidations() + ", cached " + stats.getCachedCredentialValidations()
+                + ", existence hits " + stats.getResourceExistenceHits() + ", misses " + stats.getResourceExistenceMisses()
+                + ", inventory syncs " + stats.getInventorySyncs() + " (" + stats.getInventorySyncCalls() + " calls, last "
+                + stats.getLastInventorySyncMillis() + " ms), inventory hits " + stats.getInventoryHits() + ", misses " + stats.getInventoryMisses()
+                + ", net calls saved " + stats.getInventoryNetCallsSaved()
+                + ", staleness " + stats.getInventoryStalenessMillis() + " ms, shard placements " + stats.getShardPlacements()
+                + ", shards opened " + stats.getShardsOpened() + ", shard probes " + stats.getShardResolutionProbes());
+        for (ObjectName name : ManagementFactory.getPlatformMBeanServer().queryNames(poolNames(), null)) {
+            ConnectionPoolMBean pool = JMX.newMBeanProxy(ManagementFactory.getPlatformMBeanServer(), name, ConnectionPoolMBean.class);
+            out.println("connection pool " + pool.getSubscriptionId() + " max " + pool.getMaxConnections() + "/" + pool.getMaxConnectionsPerRoute()
+                    + " per route, requests " + pool.getConnectionRequests() + ", opened " + pool.getConnectionsOpened()
+                    + ", available " + pool.getAvailableConnections() + ", leased " + pool.getLeasedConnections());
+        }
+        out.println("calls failed in the driver " + driverErrors.get());
+    }
+
+    private static ObjectName poolNames() {
+        try {
+            return new ObjectName(ConnectorMetrics.DOMAIN + ":type=ConnectionPool,*");
+        } catch (MalformedObjectNameException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void printCsv(PrintWriter out) {
+        out.println("operation,count,errors,meanMillis,p50Millis,p95Millis,p99Millis,maxMillis");
+        for (String operation : OPERATIONS) {
+            OperationMetrics metrics = ConnectorMetrics.getInstance().getOperationMetrics(operation);
+            out.println(operation + "," + metrics.getCount() + "," + metrics.getErrorCount() + "," + metrics.getMeanMillis() + ","
+                    + metrics.getP50Millis() + "," + metrics.getP95Millis() + "," + metrics.getP99Millis() + "," + metrics.getMaxMillis());
+        }
+        out.println();
+        out.println("phase,millis");
+        for (int i = 0; i < phases.size(); i++) {
+            out.println(phases.get(i) + "," + phaseMillis.get(i));
+        }
+    }
+}
@@ -0,0 +1,709 @@
+/*
+ *   Copyright 2018. AppDynamics LLC and its affiliates.
+ *   All Rights Reserved.
+ *   This is unpublished proprietary source code of AppDynamics LLC and its affiliates.
+ *   The copyright notice above does not evidence any actual or intended publication of such source code.
+ *
+ */
+package com.appdynamics.connectors.azure.benchmark;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Stand-in for the parts of the Azure Service Management REST API, and of the blob service, that the connector uses.
+ * Hosted services, storage accounts, deployments, role instances and blobs are kept in memory. Long-running operations
+ * stay in progress for a configurable time, during which their deployment rejects other changes, and roles only become
+ * ready once their operation completed. Latency, throttling and failures can be injected, so connector behaviour under
+ * load can be reproduced without a subscription.
+ * <p/>
+ * It can be embedded, as the benchmarks and {@link LoadDriver} do, or run on its own with {@link #main}.
+ */
+public class ManagementEndpointStub {
+
+    private static final String NAMESPACE = "http://schemas.microsoft.com/windowsazure";
+
+    private static final Pattern ROLE_NAME = Pattern.compile("<RoleName>([^<]+)</RoleName>");
+    private static final Pattern NAME = Pattern.compile("<Name>([^<]+)</Name>");
+    private static final Pattern SERVICE_NAME = Pattern.compile("<ServiceName>([^<]+)</ServiceName>");
+    private static final Pattern MEDIA_LINK = Pattern.compile("<MediaLink>[^<]*/([^/<]+)/([^/<]+)</MediaLink>");
+
+    private static final String OS_IMAGES = "<Images xmlns=\"" + NAMESPACE + "\">"
+            + osImage("a699494373c04fc0bc8f2bb1389d6106__Windows-Server-2012-R2-201407.01-en.us-127GB.vhd", "Windows Server 2012 R2 Datacenter, July 2014", "Windows Server 2012 R2 Datacenter", "Windows", "2014-07-21T07:00:00Z")
+            + osImage("a699494373c04fc0bc8f2bb1389d6106__Windows-Server-2012-R2-20160812-en.us-127GB.vhd", "Windows Server 2012 R2 Datacenter, August 2016", "Windows Server 2012 R2 Datacenter", "Windows", "2016-08-12T07:00:00Z")
+            + osImage("a699494373c04fc0bc8f2bb1389d6106__Windows-Server-2016-Datacenter-20161020-en.us-127GB.vhd", "Windows Server 2016 Datacenter, October 2016", "Windows Server 2016 Datacenter", "Windows", "2016-10-20T07:00:00Z")
+            + osImage("b39f27a8b8c64d52b05eac6a62ebad85__Ubuntu-16_04-LTS-amd64-server-20161020-en-us-30GB", "Ubuntu Server 16.04 LTS", "Ubuntu Server 16.04 LTS", "Linux", "2016-10-20T07:00:00Z")
+            + "</Images>";
+
+    private final Set<String> hostedServices = java.util.Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final Map<String, Long> storageAccountsReadyAt = new ConcurrentHashMap<String, Long>();
+    private final Map<String, Deployment> deployments = new ConcurrentHashMap<String, Deployment>();
+    private final Map<String, Long> operationsDoneAt = new ConcurrentHashMap<String, Long>();
+    //blob name and last modified time, per account/container
+    private final Map<String, Map<String, Long>> containerBlobs = new ConcurrentHashMap<String, Map<String, Long>>();
+    private final Map<String, long[]> throttleWindows = new ConcurrentHashMap<String, long[]>();
+
+    private final Random random = new Random();
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();
+    private final AtomicLong injectedFailures = new AtomicLong();
+    private final AtomicLong diskDeletes = new AtomicLong();
+    private final AtomicLong blobDeletes = new AtomicLong();
+
+    private volatile long latencyMillis;
+    private volatile long latencyJitterMillis;
+    private volatile long operationMillis;
+    private volatile int maxRequestsPerSecond;
+    private volatile int retryAfterSeconds = 1;
+    private volatile double failureRate;
+
+    private HttpServer server;
+    private HttpServer blobServer;
+    private ExecutorService executor;
+
+    public static void main(String[] args) throws Exception {
+        ManagementEndpointStub stub = new ManagementEndpointStub();
+        int port = Integer.getInteger("port", 8443);
+        stub.setLatency(Long.getLong("latency.millis", 0), Long.getLong("latency.jitter.millis", 0));
+        stub.setOperationMillis(Long.getLong("operation.millis", 0));
+        stub.setThrottling(Integer.getInteger("max.requests.per.second", 0), Integer.getInteger("retry.after.seconds", 1));
+        stub.setFailureRate(Double.parseDouble(System.getProperty("failure.rate", "0")));
+        stub.start(port);
+        System.out.println("Service Management stand-in listening on " + stub.getUri());
+        System.out.println("Start the connector with -Dappdynamics.azure.management.uri=" + stub.getUri()
+                + " -Dappdynamics.azure.blob.endpoint=" + stub.getBlobEndpoint());
+    }
+
+    public void start() throws IOException {
+        start(0);
+    }
+
+    /**
+     * Starts the management endpoint on the given port and the blob service on the next one, or both on free ports
+     * for port 0. The blob service takes the storage account as the first path segment, like the storage emulator.
+     */
+    public void start(int port) throws IOException {
+        executor = Executors.newCachedThreadPool();
+        server = createServer(port, false);
+        blobServer = createServer(port == 0 ? 0 : port + 1, true);
+    }
+
+    private HttpServer createServer(int port, final boolean blobService) throws IOException {
+        HttpServer created = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 1024);
+        created.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    dispatch(exchange, blobService);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        created.setExecutor(executor);
+        created.start();
+        return created;
+    }
+
+    public void stop() {
+        if (server != null) {
+            server.stop(0);
+            blobServer.stop(0);
+            executor.shutdownNow();
+        }
+    }
+
+    public String getUri() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+    }
+
+    /**
+     * Value for the connector's appdynamics.azure.blob.endpoint property.
+     */
+    public String getBlobEndpoint() {
+        return "http://127.0.0.1:" + blobServer.getAddress().getPort() + "/{account}";
+    }
+
+    /**
+     * Delay added to every response, uniformly spread between latency and latency plus jitter.
+     */
+    public void setLatency(long latencyMillis, long latencyJitterMillis) {
+        this.latencyMillis = latencyMillis;
+        this.latencyJitterMillis = latencyJitterMillis;
+    }
+
+    /**
+     * How long long-running operations stay in progress, and with them the roles they create or delete.
+     */
+    public void setOperationMillis(long operationMillis) {
+        this.operationMillis = operationMillis;
+    }
+
+    /**
+     * Rejects requests above the rate, per subscription, with 503 ServerBusy and a Retry-After header. 0 disables it.
+     */
+    public void setThrottling(int maxRequestsPerSecond, int retryAfterSeconds) {
+        this.maxRequestsPerSecond = maxRequestsPerSecond;
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    /**
+     * Fraction of requests, between 0 and 1, answered with 500 InternalError before they have any effect.
+     */
+    public void setFailureRate(double failureRate) {
+        this.failureRate = failureRate;
+    }
+
+    public void addHostedService(String hostedServiceName) {
+        hostedServices.add(hostedServiceName);
+    }
+
+    public void addStorageAccount(String storageAccountName) {
+        storageAccountsReadyAt.put(storageAccountName, 0L);
+        containerBlobs.put(storageAccountName + "/vhd-store", new ConcurrentHashMap<String, Long>());
+    }
+
+    /**
+     * Adds a deployment with the given number of running roles, named role-0, role-1 and so on.
+     */
+    public void addDeployment(String hostedServiceName, String deploymentName, int roleCount) {
+        Deployment deployment = new Deployment();
+        for (int i = 0; i < roleCount; i++) {
+            deployment.roles.put("role-" + i, new Role(0));
+        }
+        hostedServices.add(hostedServiceName);
+        deployments.put(hostedServiceName + "/" + deploymentName, deployment);
+    }
+
+    public void removeDeployment(String hostedServiceName, String deploymentName) {
+        deployments.remove(hostedServiceName + "/" + deploymentName);
+    }
+
+    public int getRoleCount() {
+        int count = 0;
+        for (Deployment deployment : deployments.values()) {
+            count += deployment.roles.size();
+        }
+        return count;
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getThrottled() {
+        return throttled.get();
+    }
+
+    public long getInjectedFailures() {
+        return injectedFailures.get();
+    }
+
+    public long getDiskDeletes() {
+        return diskDeletes.get();
+    }
+
+    public long getBlobDeletes() {
+        return blobDeletes.get();
+    }
+
+    /**
+     * Adds a VHD no role uses, last modified the given time ago.
+     */
+    public void addOrphanedVhd(String storageAccountName, String blobName, long ageMillis) {
+        containerBlobs.get(storageAccountName + "/vhd-store").put(blobName, System.currentTimeMillis() - ageMillis);
+    }
+
+    public int getBlobCount(String storageAccountName) {
+        Map<String, Long> blobs = containerBlobs.get(storageAccountName + "/vhd-store");
+        return blobs == null ? 0 : blobs.size();
+    }
+
+    private void dispatch(HttpExchange exchange, boolean blobService) throws IOException {
+        requests.incrementAndGet();
+        String method = exchange.getRequestMethod();
+        String[] path = exchange.getRequestURI().getPath().split("/");
+        String query = exchange.getRequestURI().getQuery();
+        String body = read(exchange.getRequestBody());
+
+        delay();
+        if (path.length < 2) {
+            notFound(exchange);
+            return;
+        }
+        if (isThrottled(path[1])) {
+            throttled.incrementAndGet();
+            exchange.getResponseHeaders().add("Retry-After", String.valueOf(retryAfterSeconds));
+            error(exchange, 503, "ServerBusy", "The server is busy, retry after " + retryAfterSeconds + " seconds.");
+            return;
+        }
+        if (failureRate > 0 && nextDouble() < failureRate) {
+            injectedFailures.incrementAndGet();
+            error(exchange, 500, "InternalError", "The server encountered an internal error. Please retry the request.");
+            return;
+        }
+
+        if (blobService) {
+            handleBlob(exchange, method, path, query);
+        } else if (path.length >= 4 && "operations".equals(path[2])) {
+            Long doneAt = operationsDoneAt.get(path[3]);
+            String status = doneAt == null || doneAt <= System.currentTimeMillis() ? "Succeeded" : "InProgress";
+            respond(exchange, 200, "<Operation xmlns=\"" + NAMESPACE + "\"><ID>" + path[3] + "</ID><Status>" + status
+                    + "</Status><HttpStatusCode>200</HttpStatusCode></Operation>");
+        } else if (path.length == 5 && "services".equals(path[2]) && "disks".equals(path[3]) && "DELETE".equals(method)) {
+            diskDeletes.incrementAndGet();
+            respond(exchange, 200, "");
+        } else if (path.length == 4 && "services".equals(path[2]) && "images".equals(path[3])) {
+            respond(exchange, 200, OS_IMAGES);
+        } else if (path.length >= 4 && "services".equals(path[2]) && "storageservices".equals(path[3])) {
+            handleStorage(exchange, method, path, body);
+        } else if (path.length >= 4 && "services".equals(path[2]) && "hostedservices".equals(path[3])) {
+            handleHostedServices(exchange, method, path, query, body);
+        } else {
+            notFound(exchange);
+        }
+    }
+
+    private void handleStorage(HttpExchange exchange, String method, String[] path, String body) throws IOException {
+        if ("POST".equals(method) && path.length == 4) {
+            String storageAccountName = firstMatch(SERVICE_NAME, body);
+            if (storageAccountsReadyAt.containsKey(storageAccountName)) {
+                error(exchange, 409, "ConflictError", "The storage account named " + storageAccountName + " is already taken.");
+                return;
+            }
+            long doneAt = accepted(exchange);
+            storageAccountsReadyAt.put(storageAccountName, doneAt);
+            containerBlobs.put(storageAccountName + "/vhd-store", new ConcurrentHashMap<String, Long>());
+            return;
+        }
+
+        Long readyAt = path.length >= 5 ? storageAccountsReadyAt.get(path[4]) : null;
+        if (readyAt == null) {
+            notFound(exchange);
+        } else if (path.length == 5 && "GET".equals(method)) {
+            String status = readyAt <= System.currentTimeMillis() ? "Created" : "Creating";
+            respond(exchange, 200, "<StorageService xmlns=\"" + NAMESPACE + "\"><ServiceName>" + path[4]
+                    + "</ServiceName><StorageServiceProperties><Status>" + status + "</Status></StorageServiceProperties></StorageService>");
+        } else if (path.length == 6 && "keys".equals(path[5])) {
+            respond(exchange, 200, "<StorageService xmlns=\"" + NAMESPACE + "\"><Url>" + getUri() + "services/storageservices/" + path[4]
+                    + "</Url><StorageServiceKeys><Primary>c3RhbmQtaW4tcHJpbWFyeS1rZXk=</Primary><Secondary>c3RhbmQtaW4tc2Vjb25kYXJ5LWtleQ==</Secondary></StorageServiceKeys></StorageService>");
+        } else {
+            notFound(exchange);
+        }
+    }
+
+    private void handleHostedServices(HttpExchange exchange, String method, String[] path, String query, String body) throws IOException {
+        if (path.length == 4 && "GET".equals(method)) {
+            StringBuilder xml = new StringBuilder("<HostedServices xmlns=\"" + NAMESPACE + "\">");
+            for (String hostedServiceName : hostedServices) {
+                xml.append("<HostedService><ServiceName>").append(hostedServiceName).append("</ServiceName></HostedService>");
+            }
+            respond(exchange, 200, xml.append("</HostedServices>").toString());
+        } else if (path.length == 4 && "POST".equals(method)) {
+            String hostedServiceName = firstMatch(SERVICE_NAME, body);
+            if (!hostedServices.add(hostedServiceName)) {
+                error(exchange, 409, "ConflictError", "The specified DNS name is already taken.");
+                return;
+            }
+            respond(exchange, 201, "");
+        } else if (path.length == 7 && "operations".equals(path[4]) && "isavailable".equals(path[5])) {
+            respond(exchange, 200, "<AvailabilityResponse xmlns=\"" + NAMESPACE + "\"><Result>" + !hostedServices.contains(path[6]) + "</Result></AvailabilityResponse>");
+        } else if (path.length == 5 && "GET".equals(method) && hostedServices.contains(path[4]) && query != null && query.contains("embed-detail=true")) {
+            StringBuilder xml = new StringBuilder("<HostedService xmlns=\"" + NAMESPACE + "\"><ServiceName>").append(path[4]).append("</ServiceName><Deployments>");
+            for (Map.Entry<String, Deployment> deployment : deployments.entrySet()) {
+                String[] name = deployment.getKey().split("/");
+                if (name[0].equals(path[4]) && !deployment.getValue().isDeleted()) {
+                    xml.append(deployment.getValue().toXml(name[1]));
+                }
+            }
+            respond(exchange, 200, xml.append("</Deployments></HostedService>").toString());
+        } else if (path.length == 5 && "GET".equals(method) && hostedServices.contains(path[4])) {
+            respond(exchange, 200, "<HostedService xmlns=\"" + NAMESPACE + "\"><ServiceName>" + path[4] + "</ServiceName></HostedService>");
+        } else if (path.length >= 6 && "deployments".equals(path[5]) && hostedServices.contains(path[4])) {
+            handleDeployments(exchange, method, path, body);
+        } else {
+            notFound(exchange);
+        }
+    }
+
+    private void handleDeployments(HttpExchange exchange, String method, String[] path, String body) throws IOException {
+        String hostedServiceName = path[4];
+        if (path.length == 6 && "POST".equals(method)) {
+            String key = hostedServiceName + "/" + firstMatch(NAME, body);
+            Deployment existing = deployments.get(key);
+            if (existing != null && !existing.isDeleted()) {
+                error(exchange, 409, "ConflictError", "A deployment named " + firstMatch(NAME, body) + " already exists.");
+                return;
+            }
+            Deployment deployment = new Deployment();
+            long doneAt = accepted(exchange);
+            deployment.busyUntil = doneAt;
+            for (String roleName : allMatches(ROLE_NAME, body)) {
+                deployment.roles.put(roleName, new Role(doneAt));
+            }
+            recordBlobs(deployment, body);
+            deployments.put(key, deployment);
+            return;
+        }
+
+        Deployment deployment = path.length >= 7 ? deployments.get(hostedServiceName + "/" + path[6]) : null;
+        if (deployment == null || deployment.isDeleted()) {
+            notFound(exchange);
+        } else if ("GET".equals(method)) {
+            if (path.length == 7) {
+                respond(exchange, 200, deployment.toXml(path[6]));
+            } else {
+                notFound(exchange);
+            }
+        } else {
+            //Azure runs one operation at a time on a deployment and rejects the others while it is in progress
+            synchronized (deployment) {
+                if (deployment.busyUntil > System.currentTimeMillis()) {
+                    error(exchange, 409, "ConflictError", "Windows Azure is currently performing an operation on this deployment that requires exclusive access.");
+                    return;
+                }
+                changeDeployment(exchange, method, path, body, deployment);
+            }
+        }
+    }
+
+    private void changeDeployment(HttpExchange exchange, String method, String[] path, String body, Deployment deployment) throws IOException {
+        if (path.length == 7 && "DELETE".equals(method)) {
+            deployment.deletedAt = accepted(exchange);
+            deployment.busyUntil = deployment.deletedAt;
+        } else if (path.length == 8 && "roles".equals(path[7]) && "POST".equals(method)) {
+            String roleName = firstMatch(ROLE_NAME, body);
+            if (deployment.roles.containsKey(roleName)) {
+                error(exchange, 409, "ConflictError", "A role named " + roleName + " already exists.");
+                return;
+            }
+            long doneAt = accepted(exchange);
+            deployment.busyUntil = doneAt;
+            deployment.roles.put(roleName, new Role(doneAt));
+            recordBlobs(deployment, body);
+        } else if (path.length == 9 && "roles".equals(path[7]) && "DELETE".equals(method)) {
+            Role role = deployment.roles.get(path[8]);
+            if (role == null) {
+                notFound(exchange);
+                return;
+            }
+            role.deletedAt = accepted(exchange);
+            deployment.busyUntil = role.deletedAt;
+        } else if (path.length == 8 && "roleinstances".equals(path[7]) && "POST".equals(method)) {
+            long deletedAt = accepted(exchange);
+            deployment.busyUntil = deletedAt;
+            for (String roleName : allMatches(NAME, body)) {
+                Role role = deployment.roles.get(roleName);
+                if (role != null) {
+                    role.deletedAt = deletedAt;
+                }
+            }
+        } else if (path.length >= 9 && "roleinstances".equals(path[7])) {
+            Role role = deployment.roles.get(path[8]);
+            if (role == null) {
+                notFound(exchange);
+                return;
+            }
+            role.readyAt = accepted(exchange);
+            deployment.busyUntil = role.readyAt;
+        } else {
+            notFound(exchange);
+        }
+    }
+
+    //Container operations only, enough for the connector's readiness probes and VHD bookkeeping
+    private void handleBlob(HttpExchange exchange, String method, String[] path, String query) throws IOException {
+        String account = path.length >= 2 ? path[1] : null;
+        if (account == null || !storageAccountsReadyAt.containsKey(account)) {
+            notFound(exchange);
+            return;
+        }
+        if (path.length == 2 && query != null && query.contains("comp=list")) {
+            StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"utf-8\"?><EnumerationResults><Containers>");
+            for (String key : containerBlobs.keySet()) {
+                if (key.startsWith(account + "/")) {
+                    xml.append("<Container><Name>").append(key.substring(account.length() + 1)).append("</Name><Properties></Properties></Container>");
+                }
+            }
+            respond(exchange, 200, xml.append("</Containers><NextMarker /></EnumerationResults>").toString());
+            return;
+        }
+        if (path.length < 3) {
+            notFound(exchange);
+            return;
+        }
+
+        String containerKey = account + "/" + path[2];
+        Map<String, Long> blobs = containerBlobs.get(containerKey);
+        if (path.length == 3 && "PUT".equals(method)) {
+            if (blobs != null) {
+                error(exchange, 409, "ContainerAlreadyExists", "The specified container already exists.");
+                return;
+            }
+            containerBlobs.put(containerKey, new ConcurrentHashMap<String, Long>());
+            exchange.getResponseHeaders().add("ETag", "\"0x1\"");
+            exchange.getResponseHeaders().add("Last-Modified", "Mon, 01 Jan 2018 00:00:00 GMT");
+            respond(exchange, 201, "");
+        } else if (blobs == null) {
+            error(exchange, 404, "ContainerNotFound", "The specified container does not exist.");
+        } else if (path.length == 3 && query != null && query.contains("comp=list")) {
+            StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"utf-8\"?><EnumerationResults><Blobs>");
+            Set<String> attached = getAttachedVhds();
+            SimpleDateFormat rfc1123 = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+            rfc1123.setTimeZone(TimeZone.getTimeZone("GMT"));
+            for (Map.Entry<String, Long> blob : blobs.entrySet()) {
+                xml.append("<Blob><Name>").append(blob.getKey()).append("</Name><Properties><Last-Modified>")
+                        .append(rfc1123.format(new Date(blob.getValue()))).append("</Last-Modified><BlobType>PageBlob</BlobType><LeaseStatus>")
+                        .append(attached.contains(containerKey + "/" + blob.getKey()) ? "locked" : "unlocked").append("</LeaseStatus></Properties></Blob>");
+            }
+            respond(exchange, 200, xml.append("</Blobs><NextMarker /></EnumerationResults>").toString());
+        } else if (path.length == 3) {
+            exchange.getResponseHeaders().add("ETag", "\"0x1\"");
+            exchange.getResponseHeaders().add("Last-Modified", "Mon, 01 Jan 2018 00:00:00 GMT");
+            respond(exchange, 200, "");
+        } else if ("HEAD".equals(method) && blobs.containsKey(path[3])) {
+            exchange.getResponseHeaders().add("ETag", "\"0x1\"");
+            exchange.getResponseHeaders().add("Last-Modified", "Mon, 01 Jan 2018 00:00:00 GMT");
+            exchange.getResponseHeaders().add("x-ms-blob-type", "PageBlob");
+            respond(exchange, 200, "");
+        } else if ("DELETE".equals(method) && blobs.remove(path[3]) != null) {
+            blobDeletes.incrementAndGet();
+            respond(exchange, 202, "");
+        } else {
+            error(exchange, 404, "BlobNotFound", "The specified blob does not exist.");
+        }
+    }
+
+    //every role element names the role before its media link
+    private void recordBlobs(Deployment deployment, String body) {
+        Matcher matcher = MEDIA_LINK.matcher(body);
+        while (matcher.find()) {
+            String containerKey = hostOf(body, matcher.start()) + "/" + matcher.group(1);
+            Map<String, Long> blobs = containerBlobs.get(containerKey);
+            if (blobs != null) {
+                blobs.put(matcher.group(2), System.currentTimeMillis());
+            }
+            Role role = deployment.roles.get(lastMatchBefore(ROLE_NAME, body, matcher.start()));
+            if (role != null) {
+                role.vhd = containerKey + "/" + matcher.group(2);
+            }
+        }
+    }
+
+    //VHDs of roles not deleted, which hold a lease on them
+    private Set<String> getAttachedVhds() {
+        long now = System.currentTimeMillis();
+        Set<String> attached = new HashSet<String>();
+        for (Deployment deployment : deployments.values()) {
+            if (deployment.isDeleted()) {
+                continue;
+            }
+            for (Role role : deployment.roles.values()) {
+                if (role.vhd != null && !role.isDeleted(now)) {
+                    attached.add(role.vhd);
+                }
+            }
+        }
+        return attached;
+    }
+
+    //storage account of a media link such as http://account.blob.core.windows.net/container/disk.vhd
+    private static String hostOf(String body, int mediaLinkStart) {
+        int start = body.indexOf("//", mediaLinkStart) + 2;
+        int end = body.indexOf('.', start);
+        return start > 1 && end > start ? body.substring(start, end) : "";
+    }
+
+    private boolean isThrottled(String subscriptionId) {
+        int limit = maxRequestsPerSecond;
+        if (limit <= 0) {
+            return false;
+        }
+        long second = System.currentTimeMillis() / 1000;
+        long[] window = throttleWindows.get(subscriptionId);
+        if (window == null) {
+            window = new long[2];
+            long[] existing = ((ConcurrentHashMap<String, long[]>) throttleWindows).putIfAbsent(subscriptionId, window);
+            if (existing != null) {
+                window = existing;
+            }
+        }
+        synchronized (window) {
+            if (window[0] != second) {
+                window[0] = second;
+                window[1] = 0;
+            }
+            return ++window[1] > limit;
+        }
+    }
+
+    private void delay() {
+        long millis = latencyMillis + (latencyJitterMillis > 0 ? (long) (nextDouble() * latencyJitterMillis) : 0);
+        if (millis > 0) {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private double nextDouble() {
+        synchronized (random) {
+            return random.nextDouble();
+        }
+    }
+
+    private long accepted(HttpExchange exchange) throws IOException {
+        String requestId = UUID.randomUUID().toString().replace("-", "");
+        long doneAt = System.currentTimeMillis() + operationMillis;
+        operationsDoneAt.put(requestId, doneAt);
+        exchange.getResponseHeaders().add("x-ms-request-id", requestId);
+        respond(exchange, 202, "");
+        return doneAt;
+    }
+
+    private static String osImage(String name, String label, String family, String os, String published) {
+        return "<OSImage><Category>Public</Category><Label>" + label + "</Label><LogicalSizeInGB>30</LogicalSizeInGB><Name>" + name
+                + "</Name><OS>" + os + "</OS><ImageFamily>" + family + "</ImageFamily><PublishedDate>" + published + "</PublishedDate></OSImage>";
+    }
+
+    private static void notFound(HttpExchange exchange) throws IOException {
+        error(exchange, 404, "ResourceNotFound", "The resource " + exchange.getRequestURI().getPath() + " does not exist.");
+    }
+
+    private static void error(HttpExchange exchange, int status, String code, String message) throws IOException {
+        respond(exchange, status, "<Error xmlns=\"" + NAMESPACE + "\"><Code>" + code + "</Code><Message>" + message + "</Message></Error>");
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes("UTF-8");
+        exchange.getResponseHeaders().add("Content-Type", "application/xml; charset=utf-8");
+        exchange.getResponseHeaders().add("x-ms-version", "2014-05-01");
+        exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        if (bytes.length > 0) {
+            OutputStream out = exchange.getResponseBody();
+            out.write(bytes);
+            out.close();
+        }
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+        }
+        return out.toString("UTF-8");
+    }
+
+    private static String firstMatch(Pattern pattern, String text) {
+        Matcher matcher = pattern.matcher(text);
+        return matcher.find() ? matcher.group(1) : null;
+    }
+
+    private static String lastMatchBefore(Pattern pattern, String text, int end) {
+        String match = null;
+        Matcher matcher = pattern.matcher(text);
+        while (matcher.find() && matcher.start() < end) {
+            match = matcher.group(1);
+        }
+        return match;
+    }
+
+    private static List<String> allMatches(Pattern pattern, String text) {
+        List<String> matches = new ArrayList<String>();
+        Matcher matcher = pattern.matcher(text);
+        while (matcher.find()) {
+            matches.add(matcher.group(1));
+        }
+        return matches;
+    }
+
+    private static class Role {
+
+        private volatile long readyAt;
+        private volatile long deletedAt;
+        private volatile String vhd;
+
+        Role(long readyAt) {
+            this.readyAt = readyAt;
+        }
+
+        String getStatus(long now) {
+            if (deletedAt > 0) {
+                return "DeletingVM";
+            }
+            return readyAt <= now ? "ReadyRole" : "CreatingVM";
+        }
+
+        boolean isDeleted(long now) {
+            return deletedAt > 0 && deletedAt <= now;
+        }
+    }
+
+    private static class Deployment {
+
+        private final Map<String, Role> roles = new ConcurrentHashMap<String, Role>();
+        private volatile long deletedAt;
+        private volatile long busyUntil;
+
+        boolean isDeleted() {
+            return deletedAt > 0 && deletedAt <= System.currentTimeMillis();
+        }
+
+        String toXml(String deploymentName) {
+            long now = System.currentTimeMillis();
+            Map<String, String> statuses = new LinkedHashMap<String, String>();
+            Iterator<Map.Entry<String, Role>> iterator = roles.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, Role> role = iterator.next();
+                if (role.getValue().isDeleted(now)) {
+                    iterator.remove();
+                } else {
+                    statuses.put(role.getKey(), role.getValue().getStatus(now));
+                }
+            }
+
+            StringBuilder xml = new StringBuilder("<Deployment xmlns=\"" + NAMESPACE + "\"><Name>").append(deploymentName)
+                    .append("</Name><Status>Running</Status><RoleInstanceList>");
+            for (Map.Entry<String, String> role : statuses.entrySet()) {
+                xml.append("<RoleInstance><RoleName>").append(role.getKey()).append("</RoleName><InstanceName>").append(role.getKey())
+                        .append("</InstanceName><InstanceStatus>").append(role.getValue()).append("</InstanceStatus></RoleInstance>");
+            }
+            xml.append("</RoleInstanceList><RoleList>");
+            for (String roleName : statuses.keySet()) {
+                xml.append("<Role><RoleName>").append(roleName).append("</RoleName><OSVirtualHardDisk><DiskName>").append(roleName)
+                        .append("-osdisk</DiskName></OSVirtualHardDisk></Role>");
+            }
+            return xml.append("</RoleList></Deployment>").toString();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ *   Copyright 2018. AppDynamics LLC and its affiliates.
+ *   All Rights Reserved.
+ *   This is unpublished proprietary source code of AppDynamics LLC and its affiliates.
+ *   The copyright notice above does not evidence any actual or intended publication of such source code.
+ *
+ */
+package com.appdynamics.connectors.azure.benchmark;
+
+import com.appdynamics.connectors.azure.AzureActions;
+import com.appdynamics.connectors.azure.ConnectorLocator;
+import com.appdynamics.connectors.azure.DeploymentStatePoller;
+import com.microsoft.windowsazure.management.compute.ComputeManagementClient;
+import com.singularity.ee.connectors.entity.api.IMachine;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Machine state refresh against a deployment with many role instances. The cached variant is what most refreshes
+ * within the poll window cost, the uncached one includes fetching and indexing the deployment from the stub.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dappdynamics.azure.management.requests.per.second=1000000")
+public class RefreshBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int roleCount;
+
+    private final StubEnvironment environment = new StubEnvironment();
+
+    private ComputeManagementClient computeClient;
+    private IMachine machine;
+    private String roleInstanceName;
+
+    @Setup
+    public void setUp() throws Exception {
+        environment.start();
+        environment.getStub().addDeployment(StubEnvironment.HOSTED_SERVICE, StubEnvironment.DEPLOYMENT, roleCount);
+        computeClient = ConnectorLocator.getInstance().getConnector(environment.getComputeCenter(), environment.getControllerServices());
+
+        //the last role is the worst case for a linear scan of the role instances
+        roleInstanceName = "role-" + (roleCount - 1);
+        machine = Fixtures.machine(environment.getComputeCenter(), environment.getImage(),
+                Fixtures.machineDescriptor(roleInstanceName, "Windows Server 2012 R2 Datacenter"));
+    }
+
+    @TearDown
+    public void tearDown() {
+        environment.stop();
+    }
+
+    @Benchmark
+    public IMachine updateMachineStateCached() throws Exception {
+        AzureActions.updateMachineState(machine, computeClient, StubEnvironment.HOSTED_SERVICE, StubEnvironment.DEPLOYMENT, roleInstanceName);
+        return machine;
+    }
+
+    @Benchmark
+    public IMachine updateMachineStateUncached() throws Exception {
+        DeploymentStatePoller.getInstance().invalidate(computeClient, StubEnvironment.HOSTED_SERVICE, StubEnvironment.DEPLOYMENT);
+        AzureActions.updateMachineState(machine, computeClient, StubEnvironment.HOSTED_SERVICE, StubEnvironment.DEPLOYMENT, roleInstanceName);
+        return machine;
+    }
+
+    @Benchmark
+    public IMachine refreshMachineState() throws Exception {
+        environment.getConnector().refreshMachineState(machine);
+        return machine;
+    }
+}
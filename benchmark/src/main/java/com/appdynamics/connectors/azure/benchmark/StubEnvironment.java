@@ -0,0 +1,69 @@
+/*
+ *   Copyright 2018. AppDynamics LLC and its affiliates.
+ *   All Rights Reserved.
+ *   This is unpublished proprietary source code of AppDynamics LLC and its affiliates.
+ *   The copyright notice above does not evidence any actual or intended publication of such source code.
+ *
+ */
+package com.appdynamics.connectors.azure.benchmark;
+
+import com.appdynamics.connectors.azure.WindowsAzurePaaSConnector;
+import com.singularity.ee.connectors.api.IControllerServices;
+import com.singularity.ee.connectors.entity.api.IComputeCenter;
+import com.singularity.ee.connectors.entity.api.IImage;
+
+/**
+ * A connector wired to a running {@link ManagementEndpointStub}. Has to be started before any connector class is
+ * loaded, since the management and blob endpoints are read once when the connector initializes.
+ */
+public class StubEnvironment {
+
+    public static final String HOSTED_SERVICE = "benchmarkhs";
+    public static final String DEPLOYMENT_SLOT = "Staging";
+    public static final String DEPLOYMENT = HOSTED_SERVICE + "-" + DEPLOYMENT_SLOT;
+
+    private final ManagementEndpointStub stub = new ManagementEndpointStub();
+
+    private IControllerServices controllerServices;
+    private IComputeCenter computeCenter;
+    private IImage image;
+    private WindowsAzurePaaSConnector connector;
+
+    public void start() throws Exception {
+        stub.start();
+        stub.addHostedService(HOSTED_SERVICE);
+        stub.addStorageAccount(HOSTED_SERVICE);
+        System.setProperty("appdynamics.azure.management.uri", stub.getUri());
+        System.setProperty("appdynamics.azure.blob.endpoint", stub.getBlobEndpoint());
+
+        controllerServices = Fixtures.controllerServices();
+        computeCenter = Fixtures.computeCenter("benchmark", Fixtures.emptyKeyStore());
+        image = Fixtures.image(HOSTED_SERVICE, DEPLOYMENT_SLOT, "West US");
+        connector = new WindowsAzurePaaSConnector();
+        connector.setControllerServices(controllerServices);
+    }
+
+    public void stop() {
+        stub.stop();
+    }
+
+    public ManagementEndpointStub getStub() {
+        return stub;
+    }
+
+    public IControllerServices getControllerServices() {
+        return controllerServices;
+    }
+
+    public IComputeCenter getComputeCenter() {
+        return computeCenter;
+    }
+
+    public IImage getImage() {
+        return image;
+    }
+
+    public WindowsAzurePaaSConnector getConnector() {
+        return connector;
+    }
+}
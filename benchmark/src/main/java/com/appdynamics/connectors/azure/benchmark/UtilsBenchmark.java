@@ -0,0 +1,112 @@
+/*
+ *   Copyright 2018. AppDynamics LLC and its affiliates.
+ *   All Rights Reserved.
+ *   This is unpublished proprietary source code of AppDynamics LLC and its affiliates.
+ *   The copyright notice above does not evidence any actual or intended publication of such source code.
+ *
+ */
+package com.appdynamics.connectors.azure.benchmark;
+
+import com.appdynamics.connectors.azure.ComputeCenterSettings;
+import com.appdynamics.connectors.azure.ConnectorLocator;
+import com.appdynamics.connectors.azure.ImageSettings;
+import com.appdynamics.connectors.azure.MachineSettings;
+import com.appdynamics.connectors.azure.SettingsCache;
+import com.appdynamics.connectors.azure.Utils;
+import com.appdynamics.connectors.azure.VirtualMachineSpec;
+import com.microsoft.windowsazure.management.compute.ComputeManagementClient;
+import com.microsoft.windowsazure.management.compute.models.DeploymentSlot;
+import com.singularity.ee.connectors.api.IControllerServices;
+import com.singularity.ee.connectors.entity.api.IComputeCenter;
+import com.singularity.ee.connectors.entity.api.IImage;
+import com.singularity.ee.connectors.entity.api.IMachineDescriptor;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Property lookups done on every connector call, resolved directly and through the settings cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UtilsBenchmark {
+
+    private IControllerServices controllerServices;
+    private IComputeCenter computeCenter;
+    private IImage image;
+    private IMachineDescriptor machineDescriptor;
+    private byte[] keyStore;
+    private ComputeManagementClient client;
+
+    //the stub serves the OS image list the machine descriptor is resolved against
+    private final StubEnvironment environment = new StubEnvironment();
+
+    @Setup
+    public void setUp() throws Exception {
+        environment.start();
+        controllerServices = environment.getControllerServices();
+        keyStore = Fixtures.emptyKeyStore();
+        computeCenter = Fixtures.computeCenter("utils", keyStore);
+        image = Fixtures.image(StubEnvironment.HOSTED_SERVICE, StubEnvironment.DEPLOYMENT_SLOT, "West US");
+        machineDescriptor = Fixtures.machineDescriptor("role-0", "Windows Server 2012 R2 Datacenter");
+        client = ConnectorLocator.getInstance().getConnector(computeCenter, controllerServices);
+    }
+
+    @TearDown
+    public void tearDown() {
+        environment.stop();
+    }
+
+    @Benchmark
+    public String getHostedServiceName() {
+        return Utils.getHostedServiceName(image.getProperties(), controllerServices);
+    }
+
+    @Benchmark
+    public DeploymentSlot getDeploymentSlot() {
+        return Utils.getDeploymentSlot(image.getProperties(), controllerServices);
+    }
+
+    @Benchmark
+    public String getSubscriptionId() {
+        return Utils.getSubscriptionId(computeCenter.getProperties(), controllerServices);
+    }
+
+    @Benchmark
+    public String getKeyStoreDigest() {
+        return Utils.getKeyStoreDigest(keyStore, Fixtures.KEY_STORE_PASSWORD);
+    }
+
+    @Benchmark
+    public VirtualMachineSpec resolveMachineDescriptor() throws Exception {
+        return VirtualMachineSpec.from(client, machineDescriptor, controllerServices);
+    }
+
+    @Benchmark
+    public ImageSettings cachedImageSettings() {
+        return SettingsCache.getInstance().getImageSettings(image, controllerServices);
+    }
+
+    @Benchmark
+    public MachineSettings cachedMachineSettings() {
+        return SettingsCache.getInstance().getMachineSettings(machineDescriptor, controllerServices);
+    }
+
+    @Benchmark
+    public ComputeCenterSettings cachedComputeCenterSettings() {
+        return SettingsCache.getInstance().getComputeCenterSettings(computeCenter, controllerServices);
+    }
+}
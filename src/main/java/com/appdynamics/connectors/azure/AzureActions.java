@@ -7,40 +7,37 @@
  */
 package com.appdynamics.connectors.azure;
 
-import com.microsoft.windowsazure.Configuration;
+import com.appdynamics.connectors.azure.ResourceExistenceCache.Kind;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.microsoft.windowsazure.core.OperationResponse;
 import com.microsoft.windowsazure.exception.ServiceException;
 import com.microsoft.windowsazure.management.compute.ComputeManagementClient;
 import com.microsoft.windowsazure.management.compute.models.ConfigurationSet;
-import com.microsoft.windowsazure.management.compute.models.DeploymentGetResponse;
 import com.microsoft.windowsazure.management.compute.models.DeploymentSlot;
 import com.microsoft.windowsazure.management.compute.models.HostedServiceCreateParameters;
 import com.microsoft.windowsazure.management.compute.models.OSVirtualHardDisk;
 import com.microsoft.windowsazure.management.compute.models.Role;
-import com.microsoft.windowsazure.management.compute.models.RoleInstance;
 import com.microsoft.windowsazure.management.compute.models.VirtualHardDiskHostCaching;
 import com.microsoft.windowsazure.management.compute.models.VirtualMachineCreateDeploymentParameters;
 import com.microsoft.windowsazure.management.compute.models.VirtualMachineCreateParameters;
-import com.microsoft.windowsazure.management.compute.models.VirtualMachineRoleType;
 import com.microsoft.windowsazure.management.storage.StorageManagementClient;
-import com.microsoft.windowsazure.management.storage.StorageManagementService;
-import com.microsoft.windowsazure.management.storage.models.StorageAccountCreateParameters;
-import com.microsoft.windowsazure.management.storage.models.StorageAccountGetKeysResponse;
 import com.microsoft.windowsazure.storage.CloudStorageAccount;
 import com.microsoft.windowsazure.storage.blob.CloudBlobClient;
-import com.microsoft.windowsazure.storage.blob.CloudBlobContainer;
 import com.singularity.ee.connectors.api.ConnectorException;
 import com.singularity.ee.connectors.api.IControllerServices;
 import com.singularity.ee.connectors.entity.api.IComputeCenter;
 import com.singularity.ee.connectors.entity.api.IImage;
 import com.singularity.ee.connectors.entity.api.IMachine;
 import com.singularity.ee.connectors.entity.api.IMachineDescriptor;
-import com.singularity.ee.connectors.entity.api.IProperty;
 import com.singularity.ee.connectors.entity.api.MachineState;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.security.InvalidKeyException;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -51,30 +48,189 @@ import org.xml.sax.SAXException;
 public class AzureActions {
 
     private static final Logger logger = Logger.getLogger(AzureActions.class.getName());
-    private static String storageContainer = "vhd-store";
+    private static String storageContainer = VhdStore.CONTAINER;
+
+    //Blob endpoint to use instead of the public one, with {account} standing for the storage account name
+    private static final String BLOB_ENDPOINT = System.getProperty("appdynamics.azure.blob.endpoint");
+
+    //the SDK models role types as an upper case enum, the service expects this spelling
+    private static final String PERSISTENT_VM_ROLE = "PersistentVMRole";
 
     public static void createInstance(ComputeManagementClient connector, IComputeCenter computeCenter, IImage image, IMachineDescriptor machineDescriptor, IControllerServices controllerServices) throws ConnectorException, URISyntaxException {
+        prepareHostedService(connector, computeCenter, image, controllerServices);
+
+        ImageSettings imageSettings = SettingsCache.getInstance().getImageSettings(image, controllerServices);
+        String hostedServiceName = imageSettings.getHostedServiceName();
+        String subscriptionId = Utils.getSubscriptionId(connector);
+        StorageManagementClient storageManagementClient = ConnectorLocator.getInstance().getStorageConnector(computeCenter, controllerServices);
+        VirtualMachineSpec spec = VirtualMachineSpec.from(connector, machineDescriptor, controllerServices);
+        spec = spec.withVhdName(VhdStore.getInstance().reserve(storageManagementClient, subscriptionId, hostedServiceName, spec.getRoleInstanceName()));
+        DeploymentShard shard = null;
+        boolean created = false;
+        OperationTimer timer = ConnectorMetrics.getInstance().start("provision/role");
+        try {
+            shard = placeShard(connector, subscriptionId, imageSettings, spec.getRoleInstanceName());
+            awaitCreation(ScaleOutBatcher.getInstance().submit(connector, shard, spec));
+            created = true;
+        } catch (ConnectorException e) {
+            ImagePrewarmer.getInstance().forget(subscriptionId, hostedServiceName);
+            if (shard != null) {
+                ImagePrewarmer.getInstance().forget(subscriptionId, shard.getHostedServiceName());
+            }
+            throw timer.failed(e);
+        } finally {
+            if (shard != null) {
+                DeploymentShards.getInstance().placed(connector, imageSettings, shard, spec.getRoleInstanceName(), created);
+            }
+            VhdStore.getInstance().release(subscriptionId, hostedServiceName, spec.getVhdName());
+            timer.stop();
+        }
+    }
+
+    /**
+     * Places the machine in a shard whose hosted service exists. A shard whose hosted service name is taken by
+     * someone else is left out, and the machine placed again.
+     */
+    private static DeploymentShard placeShard(ComputeManagementClient connector, String subscriptionId, ImageSettings imageSettings, String roleInstanceName)
+            throws ConnectorException {
+        DeploymentShards shards = DeploymentShards.getInstance();
+        while (true) {
+            DeploymentShard shard = shards.place(connector, imageSettings, roleInstanceName);
+            try {
+                prepareShard(connector, subscriptionId, shard, imageSettings.getLocation());
+                return shard;
+            } catch (ConnectorException e) {
+                shards.placed(connector, imageSettings, shard, roleInstanceName, false);
+                if (shard.getIndex() == 0 || !AzureErrors.isConflict(e)) {
+                    throw e;
+                }
+                shards.exclude(connector, shard);
+            }
+        }
+    }
+
+    static void prepareHostedService(ComputeManagementClient connector, IComputeCenter computeCenter, IImage image, IControllerServices controllerServices) throws ConnectorException {
+        String subscriptionId = SettingsCache.getInstance().getComputeCenterSettings(computeCenter, controllerServices).getSubscriptionId();
+        ImageSettings imageSettings = SettingsCache.getInstance().getImageSettings(image, controllerServices);
+        if (ImagePrewarmer.getInstance().isPrepared(subscriptionId, imageSettings.getHostedServiceName())) {
+            return;
+        }
+        StorageManagementClient storageManagementClient = ConnectorLocator.getInstance().getStorageConnector(computeCenter, controllerServices);
+        prepareHostedService(connector, storageManagementClient, subscriptionId, imageSettings);
+    }
+
+    /**
+     * Creates the storage account and the hosted service of the image unless they exist. Concurrent callers for the
+     * same image share one lookup and one creation of each.
+     */
+    static void prepareHostedService(final ComputeManagementClient connector, final StorageManagementClient storageManagementClient,
+                                     final String subscriptionId, ImageSettings imageSettings) throws ConnectorException {
+        final String hostedServiceName = imageSettings.getHostedServiceName();
+        ImagePrewarmer prewarmer = ImagePrewarmer.getInstance();
+        if (prewarmer.isPrepared(subscriptionId, hostedServiceName)) {
+            return;
+        }
+        final String location = imageSettings.getLocation();
+
+        final SingleFlightCoordinator coordinator = SingleFlightCoordinator.getInstance();
+        //the storage account and the hosted service do not depend on each other
+        new ProvisioningPlan(hostedServiceName)
+                .asyncStep(SingleFlightCoordinator.STORAGE_ACCOUNT, new Callable<ListenableFuture<Void>>() {
+                    @Override
+                    public ListenableFuture<Void> call() throws Exception {
+                        return coordinator.execute(SingleFlightCoordinator.STORAGE_ACCOUNT, subscriptionId, hostedServiceName, new Callable<ListenableFuture<Void>>() {
+                            @Override
+                            public ListenableFuture<Void> call() throws Exception {
+                                return ensureStorageAccount(storageManagementClient, subscriptionId, hostedServiceName, location);
+                            }
+                        });
+                    }
+                })
+                .step(SingleFlightCoordinator.HOSTED_SERVICE, new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        return coordinator.execute(SingleFlightCoordinator.HOSTED_SERVICE, subscriptionId, hostedServiceName, new Callable<Void>() {
+                            @Override
+                            public Void call() throws Exception {
+                                createHostedService(connector, subscriptionId, hostedServiceName, location);
+                                return null;
+                            }
+                        });
+                    }
+                })
+                .await();
+        prewarmer.markPrepared(subscriptionId, hostedServiceName);
+    }
+
+    /**
+     * Creates the hosted service of a shard other than the image's own, which {@link #prepareHostedService} prepares.
+     */
+    private static void prepareShard(final ComputeManagementClient connector, final String subscriptionId, final DeploymentShard shard, final String location) throws ConnectorException {
+        ImagePrewarmer prewarmer = ImagePrewarmer.getInstance();
+        if (shard.getIndex() == 0 || prewarmer.isPrepared(subscriptionId, shard.getHostedServiceName())) {
+            return;
+        }
+        SingleFlightCoordinator.getInstance().execute(SingleFlightCoordinator.HOSTED_SERVICE, subscriptionId, shard.getHostedServiceName(), new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                createHostedService(connector, subscriptionId, shard.getHostedServiceName(), location);
+                return null;
+            }
+        });
+        prewarmer.markPrepared(subscriptionId, shard.getHostedServiceName());
+    }
+
+    private static void awaitCreation(ListenableFuture<Void> creation) throws ConnectorException {
+        try {
+            creation.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ConnectorException("Interrupted while creating virtual machine", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof ConnectorException) {
+                throw (ConnectorException) cause;
+            }
+            throw new ConnectorException("Unable to create virtual machine", cause);
+        }
+    }
+
+    //Completes once the storage account is ready, right away when it exists
+    private static ListenableFuture<Void> ensureStorageAccount(StorageManagementClient storageManagementClient, String subscriptionId, String storageAccountName, String location)
+            throws ConnectorException {
+        StorageProvisioner storageProvisioner = StorageProvisioner.getInstance();
+        ListenableFuture<Void> storageReadiness = storageProvisioner.getInFlight(subscriptionId, storageAccountName);
+        if (storageReadiness == null) {
+            Boolean exists = ResourceExistenceCache.getInstance().exists(Kind.STORAGE_ACCOUNT, subscriptionId, storageAccountName);
+            if (exists == null) {
+                exists = lookUpStorageAccount(storageManagementClient, subscriptionId, storageAccountName);
+            }
+            if (exists) {
+                logger.log(Level.FINER, "Storage account found, continuing with the VM creation");
+            } else {
+                logger.log(Level.FINER, "Storage account not found, creating storage account");
+                storageReadiness = storageProvisioner.provision(storageManagementClient, subscriptionId, storageAccountName, location, storageContainer);
+            }
+        }
+        return storageReadiness != null ? storageProvisioner.whenReady(storageReadiness) : Futures.<Void>immediateFuture(null);
+    }
 
-        IProperty[] properties = computeCenter.getProperties();
-        String subscriptionId = Utils.getSubscriptionId(properties, controllerServices);
-        String keyStoreLocation = Utils.getKeyStoreLocation(properties, computeCenter.getName());
-        String keyStorePassword = Utils.getKeyStorePassword(properties, controllerServices);
-        String hostedServiceName = Utils.getHostedServiceName(image.getProperties(), controllerServices);
-        StorageManagementClient storageManagementClient = createStorageManagementClient(subscriptionId, keyStoreLocation, keyStorePassword);
+    private static boolean lookUpStorageAccount(StorageManagementClient storageManagementClient, String subscriptionId, String storageAccountName) throws ConnectorException {
+        ResourceExistenceCache existence = ResourceExistenceCache.getInstance();
         try {
-            storageManagementClient.getStorageAccountsOperations().get(hostedServiceName);
-            logger.log(Level.FINER, "Storage account found, continuing with the VM creation");
+            storageManagementClient.getStorageAccountsOperations().get(storageAccountName);
+            existence.present(Kind.STORAGE_ACCOUNT, subscriptionId, storageAccountName);
+            return true;
         } catch (IOException e) {
             logger.log(Level.WARNING, e.getMessage(), e);
             throw new ConnectorException(e);
         } catch (ServiceException e) {
-            if (e.getMessage().contains("ResourceNotFound")) {
-                logger.log(Level.FINER, "Storage account not found, creating storage account");
-                createStorageAccount(storageManagementClient, image, controllerServices);
-            } else {
-                logger.log(Level.WARNING, e.getMessage(), e);
-                throw new ConnectorException(e);
+            if (AzureErrors.isNotFound(e)) {
+                existence.absent(Kind.STORAGE_ACCOUNT, subscriptionId, storageAccountName);
+                return false;
             }
+            logger.log(Level.WARNING, e.getMessage(), e);
+            throw new ConnectorException(e);
         } catch (ParserConfigurationException e) {
             logger.log(Level.WARNING, e.getMessage(), e);
             throw new ConnectorException(e);
@@ -85,35 +241,30 @@ public class AzureActions {
             logger.log(Level.WARNING, e.getMessage(), e);
             throw new ConnectorException(e);
         }
-
-        createAzureInstance(connector, image, machineDescriptor, controllerServices);
     }
 
-    private static void createVirtualMachines(ComputeManagementClient computeClient, String hostedServiceName, String deploymentName, String roleInstanceName, AzureOsImage azureOsImage, String size, String adminUserName, String adminUserPassword) throws URISyntaxException, ConnectorException {
-        int random = (int) (Math.random() * 100);
-        URI mediaLinkUriValue = new URI("http://" + hostedServiceName + ".blob.core.windows.net/" + storageContainer + "/" + roleInstanceName + random + ".vhd");
-        String osVHarddiskName = roleInstanceName + "-oshdname" + random;
-        String operatingSystemName = "Windows";
+    static TrackedOperation createVirtualMachines(ComputeManagementClient computeClient, String hostedServiceName, String deploymentName, String storageAccountName, VirtualMachineSpec spec) throws URISyntaxException, ConnectorException {
+        String roleInstanceName = spec.getRoleInstanceName();
+        OsImage osImage = spec.getOsImage();
+        String vhdName = getVhdName(spec);
+        URI mediaLinkUriValue = new URI("http://" + storageAccountName + ".blob.core.windows.net/" + storageContainer + "/" + vhdName);
+        String osVHarddiskName = vhdName.substring(0, vhdName.length() - ".vhd".length());
+        String operatingSystemName = osImage.getOsFamily();
 
-        ArrayList<ConfigurationSet> configList = getConfigurationSets(hostedServiceName, roleInstanceName, azureOsImage, adminUserName, adminUserPassword);
+        ArrayList<ConfigurationSet> configList = getConfigurationSets(hostedServiceName, roleInstanceName, osImage, spec.getAdminUserName(), spec.getAdminUserPassword());
 
-        OSVirtualHardDisk oSVirtualHardDisk = getOsVirtualHardDisk(azureOsImage, mediaLinkUriValue, osVHarddiskName, operatingSystemName);
+        OSVirtualHardDisk oSVirtualHardDisk = getOsVirtualHardDisk(osImage, mediaLinkUriValue, osVHarddiskName, operatingSystemName);
 
         VirtualMachineCreateParameters createParameters = new VirtualMachineCreateParameters();
         createParameters.setRoleName(roleInstanceName);
-        createParameters.setRoleSize(size);
+        createParameters.setRoleSize(spec.getSize());
         createParameters.setProvisionGuestAgent(true);
         createParameters.setConfigurationSets(configList);
         createParameters.setOSVirtualHardDisk(oSVirtualHardDisk);
 
         try {
-            computeClient.getVirtualMachinesOperations().create(hostedServiceName, deploymentName, createParameters);
-        } catch (InterruptedException e) {
-            logger.log(Level.WARNING, "Unable to create virtual machine", e);
-            throw new ConnectorException("Unable to create virtual machine", e);
-        } catch (ExecutionException e) {
-            logger.log(Level.WARNING, "Unable to create virtual machine", e);
-            throw new ConnectorException("Unable to create virtual machine", e);
+            OperationResponse accepted = computeClient.getVirtualMachinesOperations().beginCreating(hostedServiceName, deploymentName, createParameters);
+            return OperationTracker.getInstance().track(TrackedOperation.Kind.CREATE, computeClient, accepted, hostedServiceName, deploymentName, roleInstanceName);
         } catch (ServiceException e) {
             logger.log(Level.WARNING, "Unable to create virtual machine", e);
             throw new ConnectorException("Unable to create virtual machine", e);
@@ -132,20 +283,24 @@ public class AzureActions {
         }
     }
 
-    private static OSVirtualHardDisk getOsVirtualHardDisk(AzureOsImage azureOsImage, URI mediaLinkUriValue, String osVHarddiskName, String operatingSystemName) {
+    private static String getVhdName(VirtualMachineSpec spec) {
+        return spec.getVhdName() != null ? spec.getVhdName() : VhdStore.getInstance().newVhdName(spec.getRoleInstanceName());
+    }
+
+    private static OSVirtualHardDisk getOsVirtualHardDisk(OsImage osImage, URI mediaLinkUriValue, String osVHarddiskName, String operatingSystemName) {
         OSVirtualHardDisk oSVirtualHardDisk = new OSVirtualHardDisk();
         oSVirtualHardDisk.setName(osVHarddiskName);
-        oSVirtualHardDisk.setHostCaching(VirtualHardDiskHostCaching.ReadWrite);
+        oSVirtualHardDisk.setHostCaching(VirtualHardDiskHostCaching.READWRITE);
         oSVirtualHardDisk.setOperatingSystem(operatingSystemName);
         oSVirtualHardDisk.setMediaLink(mediaLinkUriValue);
-        oSVirtualHardDisk.setSourceImageName(azureOsImage.getName());
+        oSVirtualHardDisk.setSourceImageName(osImage.getName());
         return oSVirtualHardDisk;
     }
 
-    private static ArrayList<ConfigurationSet> getConfigurationSets(String hostedServiceName, String roleInstanceName, AzureOsImage azureOsImage, String adminUserName, String adminUserPassword) {
+    private static ArrayList<ConfigurationSet> getConfigurationSets(String hostedServiceName, String roleInstanceName, OsImage osImage, String adminUserName, String adminUserPassword) {
         ArrayList<ConfigurationSet> configList = new ArrayList<ConfigurationSet>();
         ConfigurationSet configSet = new ConfigurationSet();
-        configSet.setConfigurationSetType(azureOsImage.getConfigSetType());
+        configSet.setConfigurationSetType(osImage.getConfigSetType());
         configSet.setComputerName(roleInstanceName);
         configSet.setHostName(hostedServiceName + ".cloudapp.net");
         configSet.setAdminPassword(adminUserPassword);
@@ -157,42 +312,23 @@ public class AzureActions {
         return configList;
     }
 
-    private static void createAzureInstance(ComputeManagementClient computeClient, IImage image, IMachineDescriptor machineDescriptor, IControllerServices controllerServices) throws ConnectorException, URISyntaxException {
-
-        String roleInstanceName = Utils.getRoleInstanceName(machineDescriptor.getProperties(), controllerServices);
-        String osImage = Utils.getOsImage(machineDescriptor.getProperties(), controllerServices);
-
-        AzureOsImage azureOsImage = AzureOsImage.getImage(osImage);
-
-        String size = Utils.getSize(machineDescriptor.getProperties(), controllerServices);
-        String adminUserName = Utils.getAdminUserName(machineDescriptor.getProperties(), controllerServices);
-        String adminUserPassword = Utils.getAdminUserPassword(machineDescriptor.getProperties(), controllerServices);
-
-        String hostedServiceName = Utils.getHostedServiceName(image.getProperties(), controllerServices);
-
-        createHostedService(computeClient, image, controllerServices);
-
-        DeploymentSlot deploymentSlot = Utils.getDeploymentSlot(image.getProperties(), controllerServices);
-
-        String deploymentName = hostedServiceName + "-" + deploymentSlot.name();
-        if (!isDeploymentPresent(computeClient, hostedServiceName, deploymentName)) {
-            ArrayList<Role> roleList = createRoleList(hostedServiceName, roleInstanceName, azureOsImage, size, adminUserName, adminUserPassword);
-            createVMDeployment(computeClient, roleList, deploymentSlot, hostedServiceName);
-        } else {
-            createVirtualMachines(computeClient, hostedServiceName, deploymentName, roleInstanceName, azureOsImage, size, adminUserName, adminUserPassword);
+    static boolean isDeploymentPresent(ComputeManagementClient computeClient, String hostedServiceName, String deploymentName) throws ConnectorException {
+        String subscriptionId = Utils.getSubscriptionId(computeClient);
+        ResourceExistenceCache existence = ResourceExistenceCache.getInstance();
+        Boolean exists = existence.exists(Kind.DEPLOYMENT, subscriptionId, hostedServiceName + "/" + deploymentName);
+        if (exists != null) {
+            return exists;
         }
 
-
-    }
-
-    private static boolean isDeploymentPresent(ComputeManagementClient computeClient, String hostedServiceName, String deploymentName) throws ConnectorException {
         boolean deploymentPresent = false;
         try {
             computeClient.getDeploymentsOperations().getByName(hostedServiceName, deploymentName);
             deploymentPresent = true;
+            existence.present(Kind.DEPLOYMENT, subscriptionId, hostedServiceName + "/" + deploymentName);
         } catch (ServiceException e) {
-            if (e.getMessage().contains("ResourceNotFound")) {
+            if (AzureErrors.isNotFound(e)) {
                 deploymentPresent = false;
+                existence.absent(Kind.DEPLOYMENT, subscriptionId, hostedServiceName + "/" + deploymentName);
             } else {
                 logger.log(Level.WARNING, "Unable to get VM deployment state", e);
                 throw new ConnectorException("Unable to get VM deployment state", e);
@@ -204,196 +340,152 @@ public class AzureActions {
         return deploymentPresent;
     }
 
-    private static void createStorageAccount(StorageManagementClient storageManagementClient, IImage image, IControllerServices controllerServices) throws ConnectorException {
-        String location = Utils.getLocation(image.getProperties(), controllerServices);
-        String storageAccountName = Utils.getHostedServiceName(image.getProperties(), controllerServices);
-
-        StorageAccountCreateParameters createParameters = new StorageAccountCreateParameters();
-        createParameters.setName(storageAccountName);
-        createParameters.setLabel(storageAccountName);
-        createParameters.setLocation(location);
-
-        try {
-            logger.log(Level.FINER, "Creating storage account");
-            storageManagementClient.getStorageAccountsOperations().create(createParameters);
-
-            StorageAccountGetKeysResponse storageAccountGetKeysResponse = storageManagementClient.getStorageAccountsOperations().getKeys(storageAccountName);
-            String storageAccountKey = storageAccountGetKeysResponse.getPrimaryKey();
-            CloudBlobClient blobClient = createBlobClient(storageAccountName, storageAccountKey);
-            CloudBlobContainer container = blobClient.getContainerReference(storageContainer);
-            container.createIfNotExists();
-
-            //make sure it created and available, otherwise vm deployment will fail with storage/container still creating
-            boolean found = false;
-            while (!found) {
-                Iterable<CloudBlobContainer> listContainerResult = blobClient.listContainers(storageContainer);
-                for (CloudBlobContainer item : listContainerResult) {
-                    if (item.getName().contains(storageContainer)) {
-                        found = true;
-                    }
-                }
-
-                if (!found) {
-                    Thread.sleep(1000 * 30);
-                } else {
-                    Thread.sleep(1000 * 120);
+    private static void createHostedService(ComputeManagementClient connector, String subscriptionId, String hostedServiceName, String location) throws ConnectorException {
+        ResourceExistenceCache existence = ResourceExistenceCache.getInstance();
+        Boolean exists = existence.exists(Kind.HOSTED_SERVICE, subscriptionId, hostedServiceName);
+        if (exists == null) {
+            try {
+                connector.getHostedServicesOperations().get(hostedServiceName);
+                exists = true;
+                existence.present(Kind.HOSTED_SERVICE, subscriptionId, hostedServiceName);
+            } catch (ServiceException e) {
+                if (!AzureErrors.isNotFound(e)) {
+                    logger.log(Level.WARNING, e.getMessage(), e);
+                    throw new ConnectorException(e);
                 }
+                exists = false;
+                existence.absent(Kind.HOSTED_SERVICE, subscriptionId, hostedServiceName);
+            } catch (Exception e) {
+                logger.log(Level.WARNING, e.getMessage(), e);
+                throw new ConnectorException(e);
             }
-            logger.log(Level.FINER, "Created storage account successfully");
-        } catch (Exception e) {
-            logger.log(Level.WARNING, "Unable to create storage account", e);
-            throw new ConnectorException("Unable to create storage account", e);
         }
-    }
-
-    private static void createHostedService(ComputeManagementClient connector, IImage image, IControllerServices controllerServices) throws ConnectorException {
-
-        String hostedServiceName = Utils.getHostedServiceName(image.getProperties(), controllerServices);
+        if (exists) {
+            logger.log(Level.FINER, "Hosted service found, continuing with the VM creation");
+            return;
+        }
 
+        logger.log(Level.FINER, "Hosted service not found, creating hosted service");
+        HostedServiceCreateParameters createParameters = new HostedServiceCreateParameters();
+        createParameters.setLabel(hostedServiceName);
+        createParameters.setServiceName(hostedServiceName);
+        createParameters.setDescription(hostedServiceName);
+        createParameters.setLocation(location);
         try {
-            connector.getHostedServicesOperations().get(hostedServiceName);
-            logger.log(Level.FINER, "Hosted service found, continuing with the VM creation");
-        } catch (ServiceException e) {
-            if (e.getMessage().contains("ResourceNotFound")) {
-                logger.log(Level.FINER, "Hosted service not found, creating hosted service");
-                HostedServiceCreateParameters createParameters = new HostedServiceCreateParameters();
-                createParameters.setLabel(hostedServiceName);
-                createParameters.setServiceName(hostedServiceName);
-                createParameters.setDescription(hostedServiceName);
-                String location = Utils.getLocation(image.getProperties(), controllerServices);
-                createParameters.setLocation(location);
-                try {
-                    connector.getHostedServicesOperations().create(createParameters);
-                } catch (Exception ex) {
-                    logger.log(Level.WARNING, "Unable to create hosted service", ex);
-                    throw new ConnectorException("Unable to create hosted service", ex);
-                }
-            } else {
-                logger.log(Level.WARNING, e.getMessage(), e);
-                throw new ConnectorException(e);
-            }
+            connector.getHostedServicesOperations().create(createParameters);
+            existence.present(Kind.HOSTED_SERVICE, subscriptionId, hostedServiceName);
         } catch (Exception e) {
-            logger.log(Level.WARNING, e.getMessage(), e);
-            throw new ConnectorException(e);
+            existence.invalidate(Kind.HOSTED_SERVICE, subscriptionId, hostedServiceName);
+            logger.log(Level.WARNING, "Unable to create hosted service", e);
+            throw new ConnectorException("Unable to create hosted service", e);
         }
     }
 
-    private static ArrayList<Role> createRoleList(String hostedServiceName, String roleInstanceName, AzureOsImage azureOsImage, String size, String adminUserName, String adminUserPassword) throws URISyntaxException {
-        int random = (int) (Math.random() * 100);
+    static ArrayList<Role> createRoleList(String hostedServiceName, String storageAccountName, List<VirtualMachineSpec> specs) throws URISyntaxException {
         ArrayList<Role> roleList = new ArrayList<Role>();
+        for (VirtualMachineSpec spec : specs) {
+            roleList.add(createRole(hostedServiceName, storageAccountName, spec));
+        }
+        return roleList;
+    }
+
+    private static Role createRole(String hostedServiceName, String storageAccountName, VirtualMachineSpec spec) throws URISyntaxException {
+        String roleInstanceName = spec.getRoleInstanceName();
+        OsImage osImage = spec.getOsImage();
         Role role = new Role();
-        URI mediaLinkUriValue = new URI("http://" + hostedServiceName + ".blob.core.windows.net/" + storageContainer + "/" + roleInstanceName + random + ".vhd");
-        String osVHarddiskName = roleInstanceName + "-oshdname" + random;
-        String operatingSystemName = "Windows";
+        String vhdName = getVhdName(spec);
+        URI mediaLinkUriValue = new URI("http://" + storageAccountName + ".blob.core.windows.net/" + storageContainer + "/" + vhdName);
+        String osVHarddiskName = vhdName.substring(0, vhdName.length() - ".vhd".length());
+        String operatingSystemName = osImage.getOsFamily();
 
-        ArrayList<ConfigurationSet> configList = getConfigurationSets(hostedServiceName, roleInstanceName, azureOsImage, adminUserName, adminUserPassword);
+        ArrayList<ConfigurationSet> configList = getConfigurationSets(hostedServiceName, roleInstanceName, osImage, spec.getAdminUserName(), spec.getAdminUserPassword());
 
-        OSVirtualHardDisk oSVirtualHardDisk = getOsVirtualHardDisk(azureOsImage, mediaLinkUriValue, osVHarddiskName, operatingSystemName);
+        OSVirtualHardDisk oSVirtualHardDisk = getOsVirtualHardDisk(osImage, mediaLinkUriValue, osVHarddiskName, operatingSystemName);
 
         role.setRoleName(roleInstanceName);
-        role.setRoleType(VirtualMachineRoleType.PersistentVMRole.toString());
-        role.setRoleSize(size);
+        role.setRoleType(PERSISTENT_VM_ROLE);
+        role.setRoleSize(spec.getSize());
         role.setProvisionGuestAgent(true);
         role.setConfigurationSets(configList);
         role.setOSVirtualHardDisk(oSVirtualHardDisk);
-        roleList.add(role);
-        return roleList;
+        return role;
     }
 
-    private static void createVMDeployment(ComputeManagementClient computeClient, ArrayList<Role> roleList, DeploymentSlot deploymentSlot, String hostedServiceName) throws ConnectorException {
-        try {
-            computeClient.getDeploymentsOperations().getByName(hostedServiceName, hostedServiceName);
+    static TrackedOperation createVMDeployment(ComputeManagementClient computeClient, ArrayList<Role> roleList, DeploymentSlot deploymentSlot, String hostedServiceName) throws ConnectorException {
+        String deploymentName = hostedServiceName + "-" + Utils.getDeploymentSlotName(deploymentSlot);
+        if (isDeploymentPresent(computeClient, hostedServiceName, deploymentName)) {
             logger.log(Level.FINER, "Deployment found, continuing with the VM creation");
-        } catch (ServiceException e) {
-            if (e.getMessage().contains("ResourceNotFound")) {
-                logger.log(Level.FINER, "Deployment not found, creating deployment");
-                VirtualMachineCreateDeploymentParameters deploymentParameters = new VirtualMachineCreateDeploymentParameters();
-                deploymentParameters.setDeploymentSlot(deploymentSlot);
-                String deploymentName = hostedServiceName + "-" + deploymentSlot.name();
-                deploymentParameters.setName(deploymentName);
-                deploymentParameters.setLabel(deploymentName);
-                deploymentParameters.setRoles(roleList);
-
-                try {
-                    computeClient.getVirtualMachinesOperations().createDeployment(hostedServiceName, deploymentParameters);
-                } catch (Exception ex) {
-                    logger.log(Level.WARNING, "Unable to create VM deployment", ex);
-                    throw new ConnectorException("Unable to create hosted Unable to create VM deployment", ex);
-                }
-            } else {
-                logger.log(Level.WARNING, e.getMessage(), e);
-                throw new ConnectorException(e);
+            return null;
+        }
+
+        logger.log(Level.FINER, "Deployment not found, creating deployment");
+        VirtualMachineCreateDeploymentParameters deploymentParameters = new VirtualMachineCreateDeploymentParameters();
+        deploymentParameters.setDeploymentSlot(deploymentSlot);
+        deploymentParameters.setName(deploymentName);
+        deploymentParameters.setLabel(deploymentName);
+        deploymentParameters.setRoles(roleList);
+
+        String subscriptionId = Utils.getSubscriptionId(computeClient);
+        try {
+            OperationResponse accepted = computeClient.getVirtualMachinesOperations().beginCreatingDeployment(hostedServiceName, deploymentParameters);
+            ResourceExistenceCache.getInstance().present(Kind.DEPLOYMENT, subscriptionId, hostedServiceName + "/" + deploymentName);
+            List<String> roleNames = new ArrayList<String>();
+            for (Role role : roleList) {
+                roleNames.add(role.getRoleName());
             }
+            return OperationTracker.getInstance().track(TrackedOperation.Kind.CREATE, computeClient, accepted, hostedServiceName, deploymentName, roleNames);
         } catch (Exception e) {
-            logger.log(Level.WARNING, e.getMessage(), e);
-            throw new ConnectorException(e);
+            ResourceExistenceCache.getInstance().invalidate(Kind.DEPLOYMENT, subscriptionId, hostedServiceName + "/" + deploymentName);
+            logger.log(Level.WARNING, "Unable to create VM deployment", e);
+            throw new ConnectorException("Unable to create VM deployment", e);
         }
     }
 
-    private static CloudBlobClient createBlobClient(String storageAccountName, String storageAccountKey) throws InvalidKeyException, URISyntaxException {
+    static CloudBlobClient createBlobClient(String storageAccountName, String storageAccountKey) throws InvalidKeyException, URISyntaxException {
         String storageconnectionstring = "DefaultEndpointsProtocol=http;AccountName=" + storageAccountName + ";AccountKey=" + storageAccountKey;
+        if (BLOB_ENDPOINT != null) {
+            storageconnectionstring += ";BlobEndpoint=" + BLOB_ENDPOINT.replace("{account}", storageAccountName);
+        }
         CloudStorageAccount storageAccount = CloudStorageAccount.parse(storageconnectionstring);
         return storageAccount.createCloudBlobClient();
     }
 
-    private static StorageManagementClient createStorageManagementClient(String subscriptionId, String keyStoreLocation, String keyStorePassword) throws ConnectorException {
-        Configuration config = ConnectorLocator.getInstance().createConfiguration(subscriptionId, keyStoreLocation, keyStorePassword);
-        return StorageManagementService.create(config);
-    }
-
     public static void deleteInstance(ComputeManagementClient connector, String hostedServiceName, String deploymentName, String instanceName) throws ConnectorException {
-        DeploymentGetResponse deployment = null;
+        //an instance the inventory listed as gone, with nothing done to it since, needs no deletion batch
+        DeploymentSnapshot listed = SubscriptionInventory.getInstance().getDeployment(connector, hostedServiceName, deploymentName, Long.MAX_VALUE);
+        TrackedOperation operation = OperationTracker.getInstance().getOperation(connector, hostedServiceName, deploymentName, instanceName);
+        if (listed != null && !listed.hasRoleInstance(instanceName)
+                && (operation == null || (!operation.isInProgress() && operation.getCompletedAt() < listed.getFetchedAt()))) {
+            logger.log(Level.FINER, "Instance [" + instanceName + "] not found. Removing it from the controller.");
+            return;
+        }
+
+        ListenableFuture<Void> deletion = ScaleInBatcher.getInstance().submit(connector, hostedServiceName, deploymentName, instanceName);
         try {
-            deployment = connector.getDeploymentsOperations().getByName(hostedServiceName, deploymentName);
-            ArrayList<RoleInstance> roleInstances = deployment.getRoleInstances();
-            if (roleInstances != null && roleInstances.size() > 1) {
-                logger.log(Level.FINER, "Deleting the machine " + instanceName);
-                connector.getVirtualMachinesOperations().delete(hostedServiceName, deploymentName, instanceName, true);
-            } else if (roleInstances != null && roleInstances.size() == 1 && roleInstances.get(0).getInstanceName().equals(instanceName)) {
-                logger.log(Level.FINER, "Only one instance found on the deployment. Deleting the deployment.");
-                connector.getDeploymentsOperations().deleteByName(hostedServiceName, deploymentName, true);
-            } else {
-                logger.log(Level.FINER, "Instance [" + instanceName + "] not found. Removing it from the controller.");
-            }
-        } catch (IOException e) {
-            logger.log(Level.WARNING, "Unable to delete VM instance", e);
-            throw new ConnectorException("Unable to delete VM instance", e);
-        } catch (ServiceException e) {
-            logger.log(Level.WARNING, "Unable to delete VM instance", e);
-            throw new ConnectorException("Unable to delete VM instance", e);
+            deletion.get();
         } catch (InterruptedException e) {
-            logger.log(Level.WARNING, "Unable to delete VM instance", e);
-            throw new ConnectorException("Unable to delete VM instance", e);
+            Thread.currentThread().interrupt();
+            throw new ConnectorException("Interrupted while deleting VM instance", e);
         } catch (ExecutionException e) {
-            logger.log(Level.WARNING, "Unable to delete VM instance", e);
-            throw new ConnectorException("Unable to delete VM instance", e);
-        } catch (ParserConfigurationException e) {
-            logger.log(Level.WARNING, "Unable to delete VM instance", e);
-            throw new ConnectorException("Unable to delete VM instance", e);
-        } catch (SAXException e) {
-            logger.log(Level.WARNING, "Unable to delete VM instance", e);
-            throw new ConnectorException("Unable to delete VM instance", e);
-        } catch (URISyntaxException e) {
-            logger.log(Level.WARNING, "Unable to delete VM instance", e);
-            throw new ConnectorException("Unable to delete VM instance", e);
+            Throwable cause = e.getCause();
+            if (cause instanceof ConnectorException) {
+                throw (ConnectorException) cause;
+            }
+            throw new ConnectorException("Unable to delete VM instance", cause);
         }
     }
 
     public static void restartInstance(ComputeManagementClient connector, String hostedServiceName, String deploymentName, String instanceName) throws ConnectorException {
         try {
-            connector.getVirtualMachinesOperations().restart(hostedServiceName, deploymentName, instanceName);
+            OperationResponse accepted = connector.getVirtualMachinesOperations().beginRestarting(hostedServiceName, deploymentName, instanceName);
+            OperationTracker.getInstance().track(TrackedOperation.Kind.RESTART, connector, accepted, hostedServiceName, deploymentName, instanceName);
+            DeploymentStatePoller.getInstance().invalidate(connector, hostedServiceName, deploymentName);
         } catch (IOException e) {
             logger.log(Level.WARNING, "Unable to restart VM instance", e);
             throw new ConnectorException("Unable to restart VM instance", e);
         } catch (ServiceException e) {
             logger.log(Level.WARNING, "Unable to restart VM instance", e);
             throw new ConnectorException("Unable to restart VM instance", e);
-        } catch (InterruptedException e) {
-            logger.log(Level.WARNING, "Unable to restart VM instance", e);
-            throw new ConnectorException("Unable to restart VM instance", e);
-        } catch (ExecutionException e) {
-            logger.log(Level.WARNING, "Unable to restart VM instance", e);
-            throw new ConnectorException("Unable to restart VM instance", e);
         }
     }
 
@@ -416,58 +508,61 @@ public class AzureActions {
     }
 
     public static void updateMachineState(IMachine machine, ComputeManagementClient connector, String hostedServiceName, String deploymentName, String roleInstanceName) throws ConnectorException {
-        DeploymentGetResponse deployment = null;
-        try {
-            deployment = connector.getDeploymentsOperations().getByName(hostedServiceName, deploymentName);
-            ArrayList<RoleInstance> roleInstances = deployment.getRoleInstances();
-            boolean instanceFound = false;
-            for (RoleInstance roleInstance : roleInstances) {
-                if (roleInstanceName.equals(roleInstance.getInstanceName())) {
-                    setMachineStatus(machine, roleInstance, hostedServiceName);
-                    instanceFound = true;
-                }
+        TrackedOperation operation = OperationTracker.getInstance().getOperation(connector, hostedServiceName, deploymentName, roleInstanceName);
+        if (operation != null && operation.isInProgress() && operation.getKind() == TrackedOperation.Kind.DELETE) {
+            machine.setState(MachineState.STOPPING);
+            return;
+        }
+
+        RefreshSchedule schedule = RefreshSchedule.getInstance();
+        MachineState cachedState = schedule.getCachedState(connector, hostedServiceName, deploymentName, roleInstanceName, operation);
+        if (cachedState != null) {
+            machine.setState(cachedState);
+            if (cachedState == MachineState.STARTED) {
+                machine.setIpAddress(hostedServiceName + ".cloudapp.net");
             }
-            if (!instanceFound) {
-                machine.setState(MachineState.STOPPED);
+            return;
+        }
+
+        DeploymentSnapshot snapshot = DeploymentStatePoller.getInstance().getSnapshot(connector, hostedServiceName, deploymentName,
+                schedule.getMaxSnapshotAge(connector, hostedServiceName, deploymentName, roleInstanceName));
+        String instanceStatus = snapshot.getInstanceStatus(roleInstanceName);
+
+        if (operation != null && operation.isInProgress() && !snapshot.hasRoleInstance(roleInstanceName)) {
+            //the role shows up in the deployment only some time after the create was accepted
+            machine.setState(MachineState.STARTING);
+        } else if (snapshot.hasRoleInstance(roleInstanceName)) {
+            if (!setMachineStatus(machine, instanceStatus, hostedServiceName)) {
+                //an instance status not mapped to a machine state is looked up again on the next refresh
+                return;
             }
-        } catch (IOException e) {
-            logger.log(Level.WARNING, "Update VM state failed", e);
-            throw new ConnectorException("Update VM state failed", e);
-        } catch (ServiceException e) {
-            if (e.getMessage().contains("ResourceNotFound")) {
-                machine.setState(MachineState.STOPPED);
-            } else {
-                logger.log(Level.WARNING, "Update VM state failed", e);
-                throw new ConnectorException("Update VM state failed", e);
+        } else {
+            if (operation != null && operation.getKind() == TrackedOperation.Kind.CREATE && operation.getErrorMessage() != null) {
+                logger.log(Level.WARNING, "Creation of " + roleInstanceName + " failed: " + operation.getErrorMessage());
             }
-
-        } catch (ParserConfigurationException e) {
-            logger.log(Level.WARNING, "Update VM state failed", e);
-            throw new ConnectorException("Update VM state failed", e);
-        } catch (SAXException e) {
-            logger.log(Level.WARNING, "Update VM state failed", e);
-            throw new ConnectorException("Update VM state failed", e);
-        } catch (URISyntaxException e) {
-            logger.log(Level.WARNING, "Update VM state failed", e);
-            throw new ConnectorException("Update VM state failed", e);
+            machine.setState(MachineState.STOPPED);
         }
+        schedule.record(connector, hostedServiceName, deploymentName, roleInstanceName, machine.getState(), snapshot.getFetchedAt());
     }
 
-    private static void setMachineStatus(IMachine machine, RoleInstance roleInstance, String hostedServiceName) {
-        if ("ReadyRole".equals(roleInstance.getInstanceStatus())) {
+    private static boolean setMachineStatus(IMachine machine, String instanceStatus, String hostedServiceName) {
+        if ("ReadyRole".equals(instanceStatus)) {
             machine.setState(MachineState.STARTED);
             machine.setIpAddress(hostedServiceName + ".cloudapp.net");
-        } else if ("CreatingVM".equals(roleInstance.getInstanceStatus()) ||
-                "StartingVM".equals(roleInstance.getInstanceStatus()) ||
-                "CreatingRole".equals(roleInstance.getInstanceStatus()) ||
-                "StartingRole".equals(roleInstance.getInstanceStatus())) {
+        } else if ("CreatingVM".equals(instanceStatus) ||
+                "StartingVM".equals(instanceStatus) ||
+                "CreatingRole".equals(instanceStatus) ||
+                "StartingRole".equals(instanceStatus)) {
             machine.setState(MachineState.STARTING);
-        } else if ("StoppingRole".equals(roleInstance.getInstanceStatus()) ||
-                "StoppingVM".equals(roleInstance.getInstanceStatus()) ||
-                "DeletingVM".equals(roleInstance.getInstanceStatus())) {
+        } else if ("StoppingRole".equals(instanceStatus) ||
+                "StoppingVM".equals(instanceStatus) ||
+                "DeletingVM".equals(instanceStatus)) {
             machine.setState(MachineState.STOPPING);
-        } else if ("StoppedVM".equals(roleInstance.getInstanceStatus())) {
+        } else if ("StoppedVM".equals(instanceStatus)) {
             machine.setState(MachineState.STOPPED);
+        } else {
+            return false;
         }
+        return true;
     }
 }
\ No newline at end of file
@@ -0,0 +1,141 @@
+/*
+ *   Copyright 2018. AppDynamics LLC and its affiliates.
+ *   All Rights Reserved.
+ *   This is unpublished proprietary source code of AppDynamics LLC and its affiliates.
+ *   The copyright notice above does not evidence any actual or intended publication of such source code.
+ *
+ */
+package com.appdynamics.connectors.azure;
+
+import com.microsoft.windowsazure.exception.CloudError;
+import com.microsoft.windowsazure.exception.ServiceException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Classifies failed management calls by the error code Azure reported, which the SDK keeps in the error of the
+ * ServiceException, and by the HTTP status, instead of by words that may appear anywhere in the message.
+ */
+public class AzureErrors {
+
+    public static final String RESOURCE_NOT_FOUND = "ResourceNotFound";
+    public static final String CONFLICT = "ConflictError";
+    public static final String AUTHENTICATION_FAILED = "AuthenticationFailed";
+    public static final String FORBIDDEN = "ForbiddenError";
+    public static final String TOO_MANY_REQUESTS = "TooManyRequests";
+    public static final String SERVER_BUSY = "ServerBusy";
+    public static final String INTERNAL_ERROR = "InternalError";
+    public static final String OPERATION_TIMED_OUT = "OperationTimedOut";
+
+    private static final Pattern CODE_ELEMENT = Pattern.compile("<Code>\\s*([^<\\s]+)\\s*</Code>");
+    private static final Pattern MESSAGE_ELEMENT = Pattern.compile("<Message>([^<]*)</Message>");
+    //Azure has no code of its own for a deployment that is busy, only the message of the ConflictError tells it apart
+    private static final Pattern OPERATION_IN_PROGRESS = Pattern.compile("currently performing an operation", Pattern.CASE_INSENSITIVE);
+
+    private AzureErrors() {
+
+    }
+
+    /**
+     * The Azure error code, such as ResourceNotFound, of the first ServiceException in the cause chain. Falls back
+     * to the HTTP status, or "none" when Azure did not report the error.
+     */
+    public static String getCode(Throwable error) {
+        ServiceException e = getServiceException(error);
+        if (e == null) {
+            return "none";
+        }
+        String code = readCode(e);
+        if (code != null) {
+            return code;
+        }
+        return e.getHttpStatusCode() > 0 ? "HTTP" + e.getHttpStatusCode() : "unknown";
+    }
+
+    public static boolean isNotFound(Throwable error) {
+        return is(error, 404, RESOURCE_NOT_FOUND);
+    }
+
+    public static boolean isConflict(Throwable error) {
+        return is(error, 409, CONFLICT);
+    }
+
+    /**
+     * Whether the deployment was busy with another operation that requires exclusive access. Any other conflict,
+     * such as a name that is taken, does not go away by trying again.
+     */
+    public static boolean isOperationInProgress(Throwable error) {
+        ServiceException e = getServiceException(error);
+        if (e == null || !CONFLICT.equals(readCode(e))) {
+            return false;
+        }
+        String message = readMessage(e);
+        return message != null && OPERATION_IN_PROGRESS.matcher(message).find();
+    }
+
+    public static boolean isAuthenticationFailure(Throwable error) {
+        return is(error, 401, AUTHENTICATION_FAILED) || is(error, 403, FORBIDDEN);
+    }
+
+    public static boolean isThrottled(Throwable error) {
+        return is(error, 429, TOO_MANY_REQUESTS) || is(error, 503, SERVER_BUSY);
+    }
+
+    public static boolean isServerError(Throwable error) {
+        ServiceException e = getServiceException(error);
+        if (e == null) {
+            return false;
+        }
+        int status = e.getHttpStatusCode();
+        String code = readCode(e);
+        return status == 500 || status == 502 || status == 504 || INTERNAL_ERROR.equals(code) || OPERATION_TIMED_OUT.equals(code);
+    }
+
+    private static boolean is(Throwable error, int status, String code) {
+        ServiceException e = getServiceException(error);
+        return e != null && (e.getHttpStatusCode() == status || code.equals(readCode(e)));
+    }
+
+    private static ServiceException getServiceException(Throwable error) {
+        for (Throwable t = error; t != null; t = t.getCause()) {
+            if (t instanceof ServiceException) {
+                return (ServiceException) t;
+            }
+            if (t.getCause() == t) {
+                break;
+            }
+        }
+        return null;
+    }
+
+    private static String readCode(ServiceException e) {
+        CloudError error = e.getError();
+        if (error != null && error.getCode() != null && error.getCode().length() > 0) {
+            return error.getCode();
+        }
+        //the error element of a response body the SDK kept without reading it
+        String body = e.getRawResponseBody();
+        if (body != null) {
+            Matcher matcher = CODE_ELEMENT.matcher(body);
+            if (matcher.find()) {
+                return matcher.group(1);
+            }
+        }
+        return null;
+    }
+
+    private static String readMessage(ServiceException e) {
+        CloudError error = e.getError();
+        if (error != null && error.getMessage() != null && error.getMessage().length() > 0) {
+            return error.getMessage();
+        }
+        String body = e.getRawResponseBody();
+        if (body != null) {
+            Matcher matcher = MESSAGE_ELEMENT.matcher(body);
+            if (matcher.find()) {
+                return matcher.group(1);
+            }
+        }
+        return null;
+    }
+}
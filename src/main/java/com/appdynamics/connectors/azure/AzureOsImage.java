@@ -8,8 +8,12 @@
 
 package com.appdynamics.connectors.azure;
 
-import com.microsoft.windowsazure.management.compute.models.ConfigurationSetTypes;
+import java.util.HashMap;
+import java.util.Map;
 
+/**
+ * The images the connector was released with. Used when the subscription's image list is not available.
+ */
 public enum AzureOsImage {
 
     Windows_Server_2012_R2_Datacenter("a699494373c04fc0bc8f2bb1389d6106__Windows-Server-2012-R2-201407.01-en.us-127GB.vhd", "Windows Server 2012 R2 Datacenter", "Windows"),
@@ -25,45 +29,52 @@ public enum AzureOsImage {
     DreamFactory_1_6("3422a428aaf14529884165693cbb90d3__DreamFactory_1.6.10-3_-_Ubuntu_14.04", "DreamFactory 1.6", "Linux"),
     eXo_Platform_Express_4("3422a428aaf14529884165693cbb90d3__eXo_Platform_Express_4.0.6-4_-_Ubuntu_14.04", "eXo Platform Express 4", "Linux");
 
-    private String name;
-    private String label;
-    private String osFamily;
-    private String configSetType;
+    private static final Map<String, AzureOsImage> LABEL_INDEX = new HashMap<String, AzureOsImage>();
 
-    AzureOsImage(String name, String label, String osFamily) {
-        this.name = name;
-        this.label = label;
-        this.osFamily = osFamily;
-        if ("Windows".equals(osFamily)) {
-            this.configSetType = ConfigurationSetTypes.WINDOWSPROVISIONINGCONFIGURATION;
-        } else {
-            this.configSetType = ConfigurationSetTypes.LINUXPROVISIONINGCONFIGURATION;
+    static {
+        for (AzureOsImage azureOsImage : values()) {
+            LABEL_INDEX.put(azureOsImage.getLabel(), azureOsImage);
         }
     }
 
+    private final OsImage osImage;
+
+    AzureOsImage(String name, String label, String osFamily) {
+        this.osImage = new OsImage(name, label, osFamily);
+    }
+
     public String getName() {
-        return name;
+        return osImage.getName();
     }
 
     public String getLabel() {
-        return label;
+        return osImage.getLabel();
     }
 
     public String getOsFamily() {
-        return osFamily;
+        return osImage.getOsFamily();
     }
 
     public String getConfigSetType() {
-        return configSetType;
+        return osImage.getConfigSetType();
     }
 
+    public OsImage toOsImage() {
+        return osImage;
+    }
 
     public static AzureOsImage getImage(String label) {
-        for (AzureOsImage azureOsImage : AzureOsImage.values()) {
-            if (azureOsImage.getLabel().equals(label)) {
-                return azureOsImage;
-            }
+        AzureOsImage azureOsImage = findImage(label);
+        if (azureOsImage == null) {
+            throw new IllegalArgumentException("No OS Image found for Label :[" + label + "]");
         }
-        throw new IllegalArgumentException("No OS Image found for Label :[" + label + "]");
+        return azureOsImage;
+    }
+
+    /**
+     * The built-in image with the label, or null.
+     */
+    public static AzureOsImage findImage(String label) {
+        return label == null ? null : LABEL_INDEX.get(label);
     }
 }
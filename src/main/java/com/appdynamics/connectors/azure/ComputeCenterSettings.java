@@ -0,0 +1,63 @@
+/*
+ *   Copyright 2018. AppDynamics LLC and its affiliates.
+ *   All Rights Reserved.
+ *   This is unpublished proprietary source code of AppDynamics LLC and its affiliates.
+ *   The copyright notice above does not evidence any actual or intended publication of such source code.
+ *
+ */
+package com.appdynamics.connectors.azure;
+
+import com.singularity.ee.connectors.api.IControllerServices;
+import com.singularity.ee.connectors.entity.api.IProperty;
+
+/**
+ * The credentials and connection settings of a compute center, resolved from its properties.
+ */
+public class ComputeCenterSettings {
+
+    private final String subscriptionId;
+    private final byte[] keyStore;
+    private final String keyStorePassword;
+    private final ConnectionSettings connectionSettings;
+    private final String credentialKey;
+
+    public ComputeCenterSettings(String subscriptionId, byte[] keyStore, String keyStorePassword, ConnectionSettings connectionSettings) {
+        this.subscriptionId = subscriptionId;
+        this.keyStore = keyStore;
+        this.keyStorePassword = keyStorePassword;
+        this.connectionSettings = connectionSettings;
+        this.credentialKey = subscriptionId + ":" + Utils.getKeyStoreDigest(keyStore, keyStorePassword) + ":" + connectionSettings;
+    }
+
+    public static ComputeCenterSettings from(IProperty[] properties, IControllerServices controllerServices) {
+        return new ComputeCenterSettings(
+                Utils.getSubscriptionId(properties, controllerServices),
+                Utils.getKeyStoreBytes(properties),
+                Utils.getKeyStorePassword(properties, controllerServices),
+                ConnectionSettings.from(properties, controllerServices));
+    }
+
+    public String getSubscriptionId() {
+        return subscriptionId;
+    }
+
+    public byte[] getKeyStore() {
+        return keyStore;
+    }
+
+    public String getKeyStorePassword() {
+        return keyStorePassword;
+    }
+
+    public ConnectionSettings getConnectionSettings() {
+        return connectionSettings;
+    }
+
+    /**
+     * Identifies the management clients these settings can share: same subscription, key store and connection
+     * settings.
+     */
+    public String getCredentialKey() {
+        return credentialKey;
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ *   Copyright 2018. AppDynamics LLC and its affiliates.
+ *   All Rights Reserved.
+ *   This is unpublished proprietary source code of AppDynamics LLC and its affiliates.
+ *   The copyright notice above does not evidence any actual or intended publication of such source code.
+ *
+ */
+package com.appdynamics.connectors.azure;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.singularity.ee.connectors.api.ConnectorException;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import org.apache.http.HttpClientConnection;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.config.SocketConfig;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * The HTTP connections of one set of management credentials, shared by the compute and storage clients built for
+ * them, so both reuse the same kept-alive TLS sessions with the management certificate. Connections are kept for at
+ * most the configured keep-alive time; a background task closes the ones that outlived it.
+ * <p/>
+ * The SDK shuts down the connection manager of a client when the client is closed, which would break the other
+ * clients sharing it, so {@link #shutdown()} is ignored and the pool is released with {@link #retire()} instead.
+ */
+public class ConnectionPool implements HttpClientConnectionManager, ConnectionPoolMBean {
+
+    private static final Logger logger = Logger.getLogger(ConnectionPool.class.getName());
+
+    private static final long EVICTION_INTERVAL_MILLIS = Long.getLong("appdynamics.azure.connection.eviction.interval.millis", 10 * 1000);
+
+    private static final Set<ConnectionPool> livePools = Collections.newSetFromMap(new ConcurrentHashMap<ConnectionPool, Boolean>());
+
+    private static final ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("azure-connection-evictor-%d").build());
+
+    static {
+        evictor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                for (ConnectionPool pool : livePools) {
+                    try {
+                        pool.evict();
+                    } catch (RuntimeException e) {
+                        logger.log(Level.FINE, "Unable to evict connections of subscription " + pool.subscriptionId, e);
+                    }
+                }
+            }
+        }, EVICTION_INTERVAL_MILLIS, EVICTION_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private final String subscriptionId;
+    private final ConnectionSettings settings;
+    private final PoolingHttpClientConnectionManager delegate;
+
+    private final AtomicLong connectionRequests = new AtomicLong();
+    private final AtomicLong connectionsOpened = new AtomicLong();
+    private final AtomicLong idleConnectionsClosed = new AtomicLong();
+
+    ConnectionPool(String subscriptionId, ConnectionSettings settings, PoolingHttpClientConnectionManager delegate) {
+        this.subscriptionId = subscriptionId;
+        this.settings = settings;
+        this.delegate = delegate;
+        delegate.setMaxTotal(settings.getMaxConnections());
+        delegate.setDefaultMaxPerRoute(settings.getMaxConnectionsPerRoute());
+        delegate.setDefaultSocketConfig(SocketConfig.custom()
+                .setSoTimeout(settings.getSocketTimeoutMillis())
+                .setSoKeepAlive(true)
+                .setTcpNoDelay(true)
+                .build());
+    }
+
+    /**
+     * Creates a pool presenting the management certificate of the key store on https connections, and registers it
+     * for eviction and with JMX.
+     */
+    public static ConnectionPool create(String subscriptionId, ConnectionSettings settings, byte[] keyStore, String keyStorePassword) throws ConnectorException {
+        Registry<ConnectionSocketFactory> registry = RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                .register("https", new SSLConnectionSocketFactory(createSslContext(keyStore, keyStorePassword)))
+                .build();
+        ConnectionPool pool = new ConnectionPool(subscriptionId, settings, new PoolingHttpClientConnectionManager(registry));
+        livePools.add(pool);
+        ConnectorMetrics.getInstance().registerConnectionPool(pool);
+        return pool;
+    }
+
+    private static SSLContext createSslContext(byte[] keyStore, String keyStorePassword) throws ConnectorException {
+        char[] password = keyStorePassword == null ? new char[0] : keyStorePassword.toCharArray();
+        try {
+            KeyStore store = KeyStore.getInstance("JKS");
+            store.load(new ByteArrayInputStream(keyStore), password);
+            KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagerFactory.init(store, password);
+            SSLContext sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(keyManagerFactory.getKeyManagers(), null, null);
+            return sslContext;
+        } catch (GeneralSecurityException e) {
+            logger.log(Level.WARNING, "Unable to load the management certificate", e);
+            throw new ConnectorException("Unable to load the management certificate", e);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Unable to load the management certificate", e);
+            throw new ConnectorException("Unable to load the management certificate", e);
+        }
+    }
+
+    /**
+     * Stops evicting and publishing the pool and closes its idle connections. Connections still leased by calls in
+     * flight are closed when the pool is collected.
+     */
+    public void retire() {
+        if (livePools.remove(this)) {
+            ConnectorMetrics.getInstance().unregisterConnectionPool(this);
+            delegate.closeIdleConnections(0, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    void evict() {
+        int available = delegate.getTotalStats().getAvailable();
+        delegate.closeExpiredConnections();
+        delegate.closeIdleConnections(settings.getKeepAliveMillis(), TimeUnit.MILLISECONDS);
+        int closed = available - delegate.getTotalStats().getAvailable();
+        if (closed > 0) {
+            idleConnectionsClosed.addAndGet(closed);
+        }
+    }
+
+    @Override
+    public ConnectionRequest requestConnection(HttpRoute route, Object state) {
+        connectionRequests.incrementAndGet();
+        return delegate.requestConnection(route, state);
+    }
+
+    //Azure sends no Keep-Alive header, which would otherwise keep connections forever
+    @Override
+    public void releaseConnection(HttpClientConnection conn, Object newState, long validDuration, TimeUnit timeUnit) {
+        long validMillis = validDuration > 0 && timeUnit != null ? timeUnit.toMillis(validDuration) : Long.MAX_VALUE;
+        delegate.releaseConnection(conn, newState, Math.min(validMillis, settings.getKeepAliveMillis()), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void connect(HttpClientConnection conn, HttpRoute route, int connectTimeout, HttpContext context) throws IOException {
+        connectionsOpened.incrementAndGet();
+        delegate.connect(conn, route, connectTimeout > 0 ? connectTimeout : settings.getConnectTimeoutMillis(), context);
+    }
+
+    @Override
+    public void upgrade(HttpClientConnection conn, HttpRoute route, HttpContext context) throws IOException {
+        delegate.upgrade(conn, route, context);
+    }
+
+    @Override
+    public void routeComplete(HttpClientConnection conn, HttpRoute route, HttpContext context) throws IOException {
+        delegate.routeComplete(conn, route, context);
+    }
+
+    @Override
+    public void closeIdleConnections(long idletime, TimeUnit tunit) {
+        delegate.closeIdleConnections(idletime, tunit);
+    }
+
+    @Override
+    public void closeExpiredConnections() {
+        delegate.closeExpiredConnections();
+    }
+
+    @Override
+    public void shutdown() {
+        logger.log(Level.FINER, "Ignoring shutdown of the shared connection pool of subscription " + subscriptionId);
+    }
+
+    @Override
+    public String getSubscriptionId() {
+        return subscriptionId;
+    }
+
+    @Override
+    public int getMaxConnections() {
+        return delegate.getMaxTotal();
+    }
+
+    @Override
+    public int getMaxConnectionsPerRoute() {
+        return delegate.getDefaultMaxPerRoute();
+    }
+
+    @Override
+    public int getLeasedConnections() {
+        return getTotalStats().getLeased();
+    }
+
+    @Override
+    public int getAvailableConnections() {
+        return getTotalStats().getAvailable();
+    }
+
+    @Override
+    public int getPendingRequests() {
+        return getTotalStats().getPending();
+    }
+
+    @Override
+    public long getConnectionRequests() {
+        return connectionRequests.get();
+    }
+
+    @Override
+    public long getConnectionsOpened() {
+        return connectionsOpened.get();
+    }
+
+    @Override
+    public long getIdleConnectionsClosed() {
+        return idleConnectionsClosed.get();
+    }
+
+    private PoolStats getTotalStats() {
+        return delegate.getTotalStats();
+    }
+}
@@ -0,0 +1,29 @@
+/*
+ *   Copyright 2018. AppDynamics LLC and its affiliates.
+ *   All Rights Reserved.
+ *   This is unpublished proprietary source code of AppDynamics LLC and its affiliates.
+ *   The copyright notice above does not evidence any actual or intended publication of such source code.
+ *
+ */
+package com.appdynamics.connectors.azure;
+
+public interface ConnectionPoolMBean {
+
+    String getSubscriptionId();
+
+    int getMaxConnections();
+
+    int getMaxConnectionsPerRoute();
+
+    int getLeasedConnections();
+
+    int getAvailableConnections();
+
+    int getPendingRequests();
+
+    long getConnectionRequests();
+
+    long getConnectionsOpened();
+
+    long getIdleConnectionsClosed();
+}
@@ -0,0 +1,68 @@
+/*
+ *   Copyright 2018. AppDynamics LLC and its affiliates.
+ *   All Rights Reserved.
+ *   This is unpublished proprietary source code of AppDynamics LLC and its affiliates.
+ *   The copyright notice above does not evidence any actual or intended publication of such source code.
+ *
+ */
+package com.appdynamics.connectors.azure;
+
+import com.singularity.ee.connectors.api.IControllerServices;
+import com.singularity.ee.connectors.entity.api.IProperty;
+
+/**
+ * HTTP connection settings of a compute center, taken from its optional properties.
+ */
+public class ConnectionSettings {
+
+    private final int maxConnections;
+    private final int maxConnectionsPerRoute;
+    private final int connectTimeoutMillis;
+    private final int socketTimeoutMillis;
+    private final long keepAliveMillis;
+
+    public ConnectionSettings(int maxConnections, int maxConnectionsPerRoute, int connectTimeoutMillis, int socketTimeoutMillis, long keepAliveMillis) {
+        this.maxConnections = maxConnections;
+        this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.socketTimeoutMillis = socketTimeoutMillis;
+        this.keepAliveMillis = keepAliveMillis;
+    }
+
+    public static ConnectionSettings from(IProperty[] properties, IControllerServices controllerServices) {
+        return new ConnectionSettings(
+                Utils.getMaxConnections(properties, controllerServices),
+                Utils.getMaxConnectionsPerRoute(properties, controllerServices),
+                Utils.getConnectTimeoutMillis(properties, controllerServices),
+                Utils.getSocketTimeoutMillis(properties, controllerServices),
+                Utils.getKeepAliveMillis(properties, controllerServices));
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public int getMaxConnectionsPerRoute() {
+        return maxConnectionsPerRoute;
+    }
+
+    public int getConnectTimeoutMillis() {
+        return connectTimeoutMillis;
+    }
+
+    public int getSocketTimeoutMillis() {
+        return socketTimeoutMillis;
+    }
+
+    /**
+     * How long a connection may sit idle in the pool before it is closed.
+     */
+    public long getKeepAliveMillis() {
+        return keepAliveMillis;
+    }
+
+    @Override
+    public String toString() {
+        return maxConnections + "/" + maxConnectionsPerRoute + "/" + connectTimeoutMillis + "/" + socketTimeoutMillis + "/" + keepAliveMillis;
+    }
+}
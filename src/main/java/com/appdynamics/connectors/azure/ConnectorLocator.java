@@ -9,19 +9,29 @@ package com.appdynamics.connectors.azure;
 
 import com.microsoft.windowsazure.Configuration;
 import com.microsoft.windowsazure.core.DefaultBuilder;
+import com.microsoft.windowsazure.core.pipeline.apache.ApacheConfigurationProperties;
 import com.microsoft.windowsazure.core.utils.KeyStoreType;
 import com.microsoft.windowsazure.management.compute.ComputeManagementClient;
 import com.microsoft.windowsazure.management.compute.ComputeManagementService;
 import com.microsoft.windowsazure.management.configuration.ManagementConfiguration;
+import com.microsoft.windowsazure.management.storage.StorageManagementClient;
+import com.microsoft.windowsazure.management.storage.StorageManagementService;
 import com.singularity.ee.connectors.api.ConnectorException;
 import com.singularity.ee.connectors.api.IControllerServices;
 import com.singularity.ee.connectors.entity.api.IComputeCenter;
-import com.singularity.ee.connectors.entity.api.IProperty;
 import java.io.IOException;
-import java.util.HashMap;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Map;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -31,9 +41,24 @@ public class ConnectorLocator {
 
     private static final ConnectorLocator INSTANCE = new ConnectorLocator();
 
-    private final Map<String, ComputeManagementClient> subscriptionIdVsComputeClient = new HashMap<String, ComputeManagementClient>();
+    private static final long IDLE_TIMEOUT_MILLIS = Long.getLong("appdynamics.azure.client.idle.timeout.millis", 30 * 60 * 1000);
 
-    private final ReadWriteLock rwLock = new ReentrantReadWriteLock();
+    private static final long EVICTION_INTERVAL_MILLIS = 60 * 1000;
+
+    //Points the connector at another Service Management endpoint, such as a local stub, instead of the public one
+    private static final String MANAGEMENT_URI = System.getProperty("appdynamics.azure.management.uri");
+
+    //Keyed by subscription id, a digest of the key store and its password, and the connection settings, so rotated
+    //credentials or new settings get new clients.
+    //The clients are built once per key, concurrent first callers wait for the same construction.
+    private final ConcurrentMap<String, FutureTask<ManagementClients>> credentialKeyVsClients = new ConcurrentHashMap<String, FutureTask<ManagementClients>>();
+
+    private final ConcurrentMap<String, String> computeCenterVsCredentialKey = new ConcurrentHashMap<String, String>();
+
+    private final AtomicLong lastEviction = new AtomicLong(System.currentTimeMillis());
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
 
     private ConnectorLocator() {
 
@@ -44,36 +69,137 @@ public class ConnectorLocator {
     }
 
     public ComputeManagementClient getConnector(IComputeCenter computeCenter, IControllerServices controllerServices) throws Exception {
+        return getClients(computeCenter, controllerServices).getComputeManagementClient();
+    }
 
-        String computeCenterName = computeCenter.getName();
-        IProperty[] properties = computeCenter.getProperties();
-        String subscriptionId = Utils.getSubscriptionId(properties, controllerServices);
-        String keyStoreLocation = Utils.getKeyStoreLocation(properties, computeCenterName);
-        String keyStorePassword = Utils.getKeyStorePassword(properties, controllerServices);
+    public StorageManagementClient getStorageConnector(IComputeCenter computeCenter, IControllerServices controllerServices) throws ConnectorException {
+        return getClients(computeCenter, controllerServices).getStorageManagementClient();
+    }
+
+    public ManagementClients getClients(IComputeCenter computeCenter, IControllerServices controllerServices) throws ConnectorException {
+
+        final String computeCenterName = computeCenter.getName();
+        final ComputeCenterSettings settings = SettingsCache.getInstance().getComputeCenterSettings(computeCenter, controllerServices);
+        String credentialKey = settings.getCredentialKey();
 
-        ComputeManagementClient computeManagementClient = getComputeManagementClient(subscriptionId);
+        evictIdleClients();
 
-        if (computeManagementClient == null) {
-            computeManagementClient = setComputeManagementClient(subscriptionId, keyStoreLocation, keyStorePassword);
+        boolean created = false;
+        FutureTask<ManagementClients> task = credentialKeyVsClients.get(credentialKey);
+        if (task != null && task.isDone()) {
+            hits.incrementAndGet();
+        } else if (task == null) {
+            FutureTask<ManagementClients> creation = new FutureTask<ManagementClients>(new Callable<ManagementClients>() {
+                @Override
+                public ManagementClients call() throws ConnectorException {
+                    return createManagementClients(computeCenterName, settings.getSubscriptionId(), settings.getKeyStore(),
+                            settings.getKeyStorePassword(), settings.getConnectionSettings(), settings.getCredentialKey());
+                }
+            });
+            task = credentialKeyVsClients.putIfAbsent(credentialKey, creation);
+            if (task == null) {
+                misses.incrementAndGet();
+                task = creation;
+                task.run();
+                created = true;
+            } else {
+                hits.incrementAndGet();
+            }
+        } else {
+            //another caller is building the clients for these credentials, share its outcome
+            hits.incrementAndGet();
         }
-        return computeManagementClient;
+
+        ManagementClients clients = getOutcome(credentialKey, task);
+        bindComputeCenter(computeCenterName, credentialKey);
+        clients.touch();
+        if (created) {
+            //key stores left behind by an earlier run
+            removeStaleKeyStores();
+        }
+        return clients;
     }
 
-    private ComputeManagementClient setComputeManagementClient(String subscriptionId, String keyStoreLocation, String keyStorePassword) throws ConnectorException {
-        rwLock.writeLock().lock();
-        try {
-            ComputeManagementClient computeManagementClient = createComputeManagementClient(subscriptionId, keyStoreLocation, keyStorePassword);
-            subscriptionIdVsComputeClient.put(subscriptionId, computeManagementClient);
-            return computeManagementClient;
-        } finally {
-            rwLock.writeLock().unlock();
+    /**
+     * Drops the clients built for the compute center, called when the compute center is reconfigured or removed.
+     */
+    public void invalidate(String computeCenterName) {
+        String credentialKey = computeCenterVsCredentialKey.remove(computeCenterName);
+        if (credentialKey != null) {
+            drop(credentialKey);
+            removeStaleKeyStores();
         }
+    }
+
+    /**
+     * The compute client currently cached for the credentials, or null if none is. Does not count as a use of it.
+     */
+    public ComputeManagementClient getCachedConnector(String credentialKey) {
+        FutureTask<ManagementClients> task = credentialKeyVsClients.get(credentialKey);
+        ManagementClients clients = task != null ? getIfDone(task) : null;
+        return clients != null ? clients.getComputeManagementClient() : null;
+    }
 
+    public long getHits() {
+        return hits.get();
     }
 
-    private ComputeManagementClient createComputeManagementClient(String subscriptionId, String keyStoreLocation, String keyStorePassword) throws ConnectorException {
+    public long getMisses() {
+        return misses.get();
+    }
+
+    private ManagementClients createManagementClients(String computeCenterName, String subscriptionId, byte[] keyStore, String keyStorePassword,
+                                                      ConnectionSettings connectionSettings, String credentialKey) throws ConnectorException {
+        String keyStoreLocation = Utils.saveKeyStore(keyStore, computeCenterName);
         Configuration config = createConfiguration(subscriptionId, keyStoreLocation, keyStorePassword);
-        return ComputeManagementService.create(config);
+
+        //The compute and storage clients share one pool instead of each building its own
+        ConnectionPool connectionPool = ConnectionPool.create(subscriptionId, connectionSettings, keyStore, keyStorePassword);
+        config.setProperty(ApacheConfigurationProperties.PROPERTY_CONNECTION_MANAGER, connectionPool);
+        try {
+            return new ManagementClients(subscriptionId, config, createComputeManagementClient(config, subscriptionId, credentialKey),
+                    createStorageManagementClient(config, subscriptionId, credentialKey), connectionPool, keyStoreLocation);
+        } catch (RuntimeException e) {
+            connectionPool.retire();
+            throw e;
+        }
+    }
+
+    private void drop(String credentialKey) {
+        FutureTask<ManagementClients> task = credentialKeyVsClients.remove(credentialKey);
+        ManagementClients clients = task != null ? getIfDone(task) : null;
+        if (clients != null) {
+            clients.getConnectionPool().retire();
+        }
+    }
+
+    //A failed construction is not memoized, the next caller tries again
+    private ManagementClients getOutcome(String credentialKey, FutureTask<ManagementClients> task) throws ConnectorException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ConnectorException("Interrupted while creating the management clients", e);
+        } catch (ExecutionException e) {
+            credentialKeyVsClients.remove(credentialKey, task);
+            Throwable cause = e.getCause();
+            if (cause instanceof ConnectorException) {
+                throw (ConnectorException) cause;
+            }
+            throw new ConnectorException("Unable to create the management clients", cause);
+        }
+    }
+
+    private void bindComputeCenter(String computeCenterName, String credentialKey) {
+        if (credentialKey.equals(computeCenterVsCredentialKey.get(computeCenterName))) {
+            return;
+        }
+        String previousKey = computeCenterVsCredentialKey.put(computeCenterName, credentialKey);
+        if (previousKey != null && !previousKey.equals(credentialKey)) {
+            logger.log(Level.INFO, "Credentials or connection settings of compute center " + computeCenterName + " changed, dropping the old management clients");
+            drop(previousKey);
+            removeStaleKeyStores();
+        }
     }
 
     public Configuration createConfiguration(String subscriptionId, String keyStoreLocation, String keyStorePassword) throws ConnectorException {
@@ -89,20 +215,85 @@ public class ConnectorLocator {
             new com.microsoft.windowsazure.management.compute.Exports().register(builder);
             new com.microsoft.windowsazure.management.storage.Exports().register(builder);
 
-            Configuration configuration = ManagementConfiguration.configure(null, new Configuration(builder), null, subscriptionId, keyStoreLocation, keyStorePassword, KeyStoreType.jks);
+            URI managementUri = MANAGEMENT_URI != null ? new URI(MANAGEMENT_URI) : null;
+            Configuration configuration = ManagementConfiguration.configure(null, new Configuration(builder), managementUri, subscriptionId, keyStoreLocation, keyStorePassword, KeyStoreType.jks);
             return configuration;
         } catch (IOException e) {
             logger.log(Level.WARNING, "Unable to create Azure Management Configuration", e);
             throw new ConnectorException("Unable to create Azure Management Configuration", e);
+        } catch (URISyntaxException e) {
+            logger.log(Level.WARNING, "Invalid Azure management URI " + MANAGEMENT_URI, e);
+            throw new ConnectorException("Invalid Azure management URI " + MANAGEMENT_URI, e);
+        }
+    }
+
+    //Every remote call of these clients is paced per subscription and retried when throttled, and reports authentication failures
+    private ComputeManagementClient createComputeManagementClient(Configuration config, String subscriptionId, String credentialKey) {
+        ComputeManagementClient client = ComputeManagementService.create(config)
+                .withResponseFilterLast(RateLimitedInvocationHandler.retryAfterFilter(subscriptionId))
+                .withResponseFilterLast(CredentialHealth.getInstance().authenticationFilter(credentialKey));
+        return RateLimitedInvocationHandler.wrap(ComputeManagementClient.class, client, subscriptionId);
+    }
+
+    private StorageManagementClient createStorageManagementClient(Configuration config, String subscriptionId, String credentialKey) {
+        StorageManagementClient client = StorageManagementService.create(config)
+                .withResponseFilterLast(RateLimitedInvocationHandler.retryAfterFilter(subscriptionId))
+                .withResponseFilterLast(CredentialHealth.getInstance().authenticationFilter(credentialKey));
+        return RateLimitedInvocationHandler.wrap(StorageManagementClient.class, client, subscriptionId);
+    }
+
+    private void evictIdleClients() {
+        long last = lastEviction.get();
+        long now = System.currentTimeMillis();
+        if (now - last < EVICTION_INTERVAL_MILLIS || !lastEviction.compareAndSet(last, now)) {
+            return;
+        }
+
+        boolean evicted = false;
+        for (Map.Entry<String, FutureTask<ManagementClients>> entry : credentialKeyVsClients.entrySet()) {
+            ManagementClients clients = getIfDone(entry.getValue());
+            if (clients != null && clients.isIdleLongerThan(IDLE_TIMEOUT_MILLIS)
+                    && credentialKeyVsClients.remove(entry.getKey(), entry.getValue())) {
+                logger.log(Level.FINER, "Evicting idle management clients for subscription " + clients.getSubscriptionId());
+                clients.getConnectionPool().retire();
+                computeCenterVsCredentialKey.values().removeAll(Collections.singleton(entry.getKey()));
+                evicted = true;
+            }
+        }
+        if (evicted) {
+            removeStaleKeyStores();
         }
     }
 
-    private ComputeManagementClient getComputeManagementClient(String subscriptionId) {
-        rwLock.readLock().lock();
+    //The SDK reads the key store file whenever a client is created from a cached configuration, so a key store is
+    //deleted only once no cached clients were built from it, and not while clients are being built
+    private void removeStaleKeyStores() {
+        KeyStoreMaterializer materializer = KeyStoreMaterializer.getInstance();
+        long handedOut = materializer.getHandedOut();
+        Set<String> locationsInUse = new HashSet<String>();
+        for (FutureTask<ManagementClients> task : credentialKeyVsClients.values()) {
+            if (!task.isDone()) {
+                return;
+            }
+            ManagementClients clients = getIfDone(task);
+            if (clients != null) {
+                locationsInUse.add(clients.getKeyStoreLocation());
+            }
+        }
+        materializer.removeStaleKeyStores(locationsInUse, handedOut);
+    }
+
+    private static ManagementClients getIfDone(FutureTask<ManagementClients> task) {
+        if (!task.isDone()) {
+            return null;
+        }
         try {
-            return subscriptionIdVsComputeClient.get(subscriptionId);
-        } finally {
-            rwLock.readLock().unlock();
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            return null;
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,133 @@
+/*
+ *   Copyright 2018. AppDynamics LLC and its affiliates.
+ *   All Rights Reserved.
+ *   This is unpublished proprietary source code of AppDynamics LLC and its affiliates.
+ *   The copyright notice above does not evidence any actual or intended publication of such source code.
+ *
+ */
+package com.appdynamics.connectors.azure;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Latency, in-flight and error metrics of the connector operations and of the individual Azure calls, published as
+ * MBeans under the {@code com.appdynamics.connectors.azure} domain. Metrics of an operation are created and registered
+ * on its first call; after that recording only touches atomics.
+ */
+public class ConnectorMetrics {
+
+    private static final Logger logger = Logger.getLogger(ConnectorMetrics.class.getName());
+
+    public static final String DOMAIN = "com.appdynamics.connectors.azure";
+
+    private static final ConnectorMetrics INSTANCE = new ConnectorMetrics();
+
+    private final ConcurrentMap<String, OperationMetrics> operations = new ConcurrentHashMap<String, OperationMetrics>();
+
+    private final ConcurrentMap<String, ErrorCounter> errors = new ConcurrentHashMap<String, ErrorCounter>();
+
+    private final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+
+    private ConnectorMetrics() {
+        register(DOMAIN + ":type=Connector,name=Stats", new ConnectorStats());
+    }
+
+    public static ConnectorMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    public OperationTimer start(String operation) {
+        return new OperationTimer(getOperationMetrics(operation));
+    }
+
+    public OperationMetrics getOperationMetrics(String operation) {
+        OperationMetrics metrics = operations.get(operation);
+        if (metrics == null) {
+            OperationMetrics created = new OperationMetrics(operation);
+            metrics = operations.putIfAbsent(operation, created);
+            if (metrics == null) {
+                metrics = created;
+                register(DOMAIN + ":type=Operations,name=" + ObjectName.quote(operation), created);
+            }
+        }
+        return metrics;
+    }
+
+    public Map<String, ErrorCounter> getErrorCounters() {
+        return Collections.unmodifiableMap(errors);
+    }
+
+    void registerConnectionPool(ConnectionPool pool) {
+        register(connectionPoolName(pool), pool);
+    }
+
+    void unregisterConnectionPool(ConnectionPool pool) {
+        try {
+            mBeanServer.unregisterMBean(new ObjectName(connectionPoolName(pool)));
+        } catch (Exception e) {
+            logger.log(Level.FINE, "Unable to unregister MBean " + connectionPoolName(pool), e);
+        }
+    }
+
+    void registerImageReadiness(ImageReadiness readiness) {
+        register(imageReadinessName(readiness), readiness);
+    }
+
+    void unregisterImageReadiness(ImageReadiness readiness) {
+        try {
+            mBeanServer.unregisterMBean(new ObjectName(imageReadinessName(readiness)));
+        } catch (Exception e) {
+            logger.log(Level.FINE, "Unable to unregister MBean " + imageReadinessName(readiness), e);
+        }
+    }
+
+    void recordError(String operation, Throwable error) {
+        String exceptionClass = error.getClass().getSimpleName();
+        String errorCode = AzureErrors.getCode(error);
+        String key = operation + "/" + exceptionClass + "/" + errorCode;
+
+        ErrorCounter counter = errors.get(key);
+        if (counter == null) {
+            ErrorCounter created = new ErrorCounter(operation, exceptionClass, errorCode);
+            counter = errors.putIfAbsent(key, created);
+            if (counter == null) {
+                counter = created;
+                register(DOMAIN + ":type=Errors,operation=" + ObjectName.quote(operation) + ",exception=" + ObjectName.quote(exceptionClass)
+                        + ",code=" + ObjectName.quote(errorCode), created);
+            }
+        }
+        counter.increment();
+    }
+
+    private static String connectionPoolName(ConnectionPool pool) {
+        return DOMAIN + ":type=ConnectionPool,name=" + ObjectName.quote(pool.getSubscriptionId());
+    }
+
+    private static String imageReadinessName(ImageReadiness readiness) {
+        return DOMAIN + ":type=Image,name=" + ObjectName.quote(readiness.getImageName());
+    }
+
+    private void register(String name, Object mBean) {
+        try {
+            ObjectName objectName = new ObjectName(name);
+            try {
+                mBeanServer.registerMBean(mBean, objectName);
+            } catch (InstanceAlreadyExistsException e) {
+                //left behind by an earlier load of the connector
+                mBeanServer.unregisterMBean(objectName);
+                mBeanServer.registerMBean(mBean, objectName);
+            }
+        } catch (Exception e) {
+            logger.log(Level.FINE, "Unable to register MBean " + name, e);
+        }
+    }
+}
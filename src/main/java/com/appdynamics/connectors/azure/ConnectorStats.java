@@ -0,0 +1,199 @@
+/*
+ *   Copyright 2018. AppDynamics LLC and its affiliates.
+ *   All Rights Reserved.
+ *   This is unpublished proprietary source code of AppDynamics LLC and its affiliates.
+ *   The copyright notice above does not evidence any actual or intended publication of such source code.
+ *
+ */
+package com.appdynamics.connectors.azure;
+
+/**
+ * Gauges and counters kept by the connector's shared components, read when JMX asks for them.
+ */
+public class ConnectorStats implements ConnectorStatsMBean {
+
+    @Override
+    public int getLongRunningOperationsInFlight() {
+        return OperationTracker.getInstance().getInFlightCount();
+    }
+
+    @Override
+    public long getLongRunningOperationsSucceeded() {
+        return OperationTracker.getInstance().getSucceeded();
+    }
+
+    @Override
+    public long getLongRunningOperationsFailed() {
+        return OperationTracker.getInstance().getFailed();
+    }
+
+    @Override
+    public long getThrottledCalls() {
+        return ManagementRetryPolicy.getInstance().getThrottled();
+    }
+
+    @Override
+    public long getRetriedCalls() {
+        return ManagementRetryPolicy.getInstance().getRetried();
+    }
+
+    @Override
+    public long getFailedCalls() {
+        return ManagementRetryPolicy.getInstance().getFailed();
+    }
+
+    @Override
+    public long getRateLimitedCalls() {
+        return ManagementRateLimiter.getInstance().getDelayedAcquisitions();
+    }
+
+    @Override
+    public long getClientCacheHits() {
+        return ConnectorLocator.getInstance().getHits();
+    }
+
+    @Override
+    public long getClientCacheMisses() {
+        return ConnectorLocator.getInstance().getMisses();
+    }
+
+    @Override
+    public long getDeploymentFetches() {
+        return DeploymentStatePoller.getInstance().getDeploymentFetches();
+    }
+
+    @Override
+    public long getDeploymentSnapshotHits() {
+        return DeploymentStatePoller.getInstance().getSnapshotHits();
+    }
+
+    @Override
+    public long getImageCatalogLoads() {
+        return OsImageCatalog.getInstance().getLoads();
+    }
+
+    @Override
+    public long getImageCatalogLoadFailures() {
+        return OsImageCatalog.getInstance().getLoadFailures();
+    }
+
+    @Override
+    public long getBuiltInImageFallbacks() {
+        return OsImageCatalog.getInstance().getFallbacks();
+    }
+
+    @Override
+    public long getSettingsCacheHits() {
+        return SettingsCache.getInstance().getHits();
+    }
+
+    @Override
+    public long getSettingsCacheMisses() {
+        return SettingsCache.getInstance().getMisses();
+    }
+
+    @Override
+    public long getMachineStateLookups() {
+        return RefreshSchedule.getInstance().getLookups();
+    }
+
+    @Override
+    public long getCachedMachineStateRefreshes() {
+        return RefreshSchedule.getInstance().getCachedRefreshes();
+    }
+
+    @Override
+    public long getVhdIndexLoads() {
+        return VhdStore.getInstance().getIndexLoads();
+    }
+
+    @Override
+    public long getOrphanedVhdsDeleted() {
+        return VhdStore.getInstance().getOrphansDeleted();
+    }
+
+    @Override
+    public long getCredentialValidations() {
+        return CredentialHealth.getInstance().getValidations();
+    }
+
+    @Override
+    public long getCredentialValidationFailures() {
+        return CredentialHealth.getInstance().getValidationFailures();
+    }
+
+    @Override
+    public long getCachedCredentialValidations() {
+        return CredentialHealth.getInstance().getCachedValidations();
+    }
+
+    @Override
+    public long getAuthenticationFailures() {
+        return CredentialHealth.getInstance().getAuthenticationFailures();
+    }
+
+    @Override
+    public long getResourceExistenceHits() {
+        return ResourceExistenceCache.getInstance().getHits();
+    }
+
+    @Override
+    public long getResourceExistenceMisses() {
+        return ResourceExistenceCache.getInstance().getMisses();
+    }
+
+    @Override
+    public long getInventorySyncs() {
+        return SubscriptionInventory.getInstance().getSyncs();
+    }
+
+    @Override
+    public long getInventorySyncFailures() {
+        return SubscriptionInventory.getInstance().getSyncFailures();
+    }
+
+    @Override
+    public long getInventorySyncCalls() {
+        return SubscriptionInventory.getInstance().getSyncCalls();
+    }
+
+    @Override
+    public long getInventoryNetCallsSaved() {
+        return SubscriptionInventory.getInstance().getNetCallsSaved();
+    }
+
+    @Override
+    public long getLastInventorySyncMillis() {
+        return SubscriptionInventory.getInstance().getLastSyncMillis();
+    }
+
+    @Override
+    public long getInventoryStalenessMillis() {
+        return SubscriptionInventory.getInstance().getStalenessMillis();
+    }
+
+    @Override
+    public long getInventoryHits() {
+        return SubscriptionInventory.getInstance().getHits();
+    }
+
+    @Override
+    public long getInventoryMisses() {
+        return SubscriptionInventory.getInstance().getMisses();
+    }
+
+    @Override
+    public long getShardPlacements() {
+        return DeploymentShards.getInstance().getPlacements();
+    }
+
+    @Override
+    public long getShardsOpened() {
+        return DeploymentShards.getInstance().getShardsOpened();
+    }
+
+    @Override
+    public long getShardResolutionProbes() {
+        return DeploymentShards.getInstance().getResolutionProbes();
+    }
+}
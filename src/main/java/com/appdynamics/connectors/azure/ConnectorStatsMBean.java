@@ -0,0 +1,85 @@
+/*
+ *   Copyright 2018. AppDynamics LLC and its affiliates.
+ *   All Rights Reserved.
+ *   This is unpublished proprietary source code of AppDynamics LLC and its affiliates.
+ *   The copyright notice above does not evidence any actual or intended publication of such source code.
+ *
+ */
+package com.appdynamics.connectors.azure;
+
+public interface ConnectorStatsMBean {
+
+    int getLongRunningOperationsInFlight();
+
+    long getLongRunningOperationsSucceeded();
+
+    long getLongRunningOperationsFailed();
+
+    long getThrottledCalls();
+
+    long getRetriedCalls();
+
+    long getFailedCalls();
+
+    long getRateLimitedCalls();
+
+    long getClientCacheHits();
+
+    long getClientCacheMisses();
+
+    long getDeploymentFetches();
+
+    long getDeploymentSnapshotHits();
+
+    long getImageCatalogLoads();
+
+    long getImageCatalogLoadFailures();
+
+    long getBuiltInImageFallbacks();
+
+    long getSettingsCacheHits();
+
+    long getSettingsCacheMisses();
+
+    long getMachineStateLookups();
+
+    long getCachedMachineStateRefreshes();
+
+    long getVhdIndexLoads();
+
+    long getOrphanedVhdsDeleted();
+
+    long getCredentialValidations();
+
+    long getCredentialValidationFailures();
+
+    long getCachedCredentialValidations();
+
+    long getAuthenticationFailures();
+
+    long getResourceExistenceHits();
+
+    long getResourceExistenceMisses();
+
+    long getInventorySyncs();
+
+    long getInventorySyncFailures();
+
+    long getInventorySyncCalls();
+
+    long getInventoryNetCallsSaved();
+
+    long getLastInventorySyncMillis();
+
+    long getInventoryStalenessMillis();
+
+    long getInventoryHits();
+
+    long getInventoryMisses();
+
+    long getShardPlacements();
+
+    long getShardsOpened();
+
+    long getShardResolutionProbes();
+}
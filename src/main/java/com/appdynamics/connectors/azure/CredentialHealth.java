@@ -0,0 +1,212 @@
+/*
+ *   Copyright 2018. AppDynamics LLC and its affiliates.
+ *   All Rights Reserved.
+ *   This is unpublished proprietary source code of AppDynamics LLC and its affiliates.
+ *   The copyright notice above does not evidence any actual or intended publication of such source code.
+ *
+ */
+package com.appdynamics.connectors.azure;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.microsoft.windowsazure.core.pipeline.filter.ServiceRequestContext;
+import com.microsoft.windowsazure.core.pipeline.filter.ServiceResponseContext;
+import com.microsoft.windowsazure.core.pipeline.filter.ServiceResponseFilter;
+import com.microsoft.windowsazure.management.compute.ComputeManagementClient;
+import com.singularity.ee.connectors.api.ConnectorException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.net.ssl.SSLException;
+
+/**
+ * Remembers which credentials were proven to work, so creating a machine does not need a management call just to
+ * validate them. Credentials are identified by the compute center's credential key, covering the subscription and
+ * the keystore digest. A successful validation is trusted for a TTL; after it the credentials are validated again in
+ * the background while creations go ahead. An authentication failure on any management call revokes the trust at
+ * once and starts a validation, which the next creation waits for. Only the credential key is remembered, a
+ * validation uses the caller's client or the one {@link ConnectorLocator} currently holds, so clients the locator
+ * dropped are not kept alive.
+ */
+public class CredentialHealth {
+
+    private static final Logger logger = Logger.getLogger(CredentialHealth.class.getName());
+
+    private static final CredentialHealth INSTANCE = new CredentialHealth(
+            Long.getLong("appdynamics.azure.credentials.ttl.millis", 30 * 60 * 1000));
+
+    private static final String OPERATION = "validateCredentials";
+
+    private final ExecutorService executor = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("azure-credential-health-%d").build());
+
+    //credentials no longer used, such as the ones of a reconfigured compute center, are forgotten
+    private final Cache<String, Validation> credentialKeyVsValidation = CacheBuilder.newBuilder()
+            .expireAfterAccess(1, TimeUnit.HOURS)
+            .build();
+
+    private final ConcurrentMap<String, FutureTask<Void>> inFlight = new ConcurrentHashMap<String, FutureTask<Void>>();
+
+    private final long ttlMillis;
+    private final long retryMillis;
+
+    private final AtomicLong validations = new AtomicLong();
+    private final AtomicLong validationFailures = new AtomicLong();
+    private final AtomicLong cachedValidations = new AtomicLong();
+    private final AtomicLong authenticationFailures = new AtomicLong();
+
+    CredentialHealth(long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+        this.retryMillis = Math.min(ttlMillis, 60 * 1000);
+    }
+
+    public static CredentialHealth getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns at once if the credentials were validated before and no authentication failure was seen since,
+     * otherwise validates them, sharing the call with other callers validating the same credentials.
+     */
+    public void validate(ComputeManagementClient connector, String credentialKey) throws ConnectorException {
+        Validation validation = credentialKeyVsValidation.getIfPresent(credentialKey);
+        if (validation != null && validation.valid) {
+            cachedValidations.incrementAndGet();
+            if (System.currentTimeMillis() >= validation.revalidateAt) {
+                start(connector, credentialKey);
+            }
+            return;
+        }
+        await(start(connector, credentialKey));
+    }
+
+    /**
+     * Revokes the trust in the credentials and validates them again right away.
+     */
+    public void authenticationFailed(String credentialKey) {
+        authenticationFailures.incrementAndGet();
+        Validation validation = credentialKeyVsValidation.getIfPresent(credentialKey);
+        if (validation == null || !validation.valid) {
+            return;
+        }
+        credentialKeyVsValidation.put(credentialKey, new Validation(false, 0));
+        ComputeManagementClient connector = ConnectorLocator.getInstance().getCachedConnector(credentialKey);
+        if (connector == null) {
+            //the clients were dropped meanwhile, the next creation validates with the ones built for it
+            return;
+        }
+        logger.log(Level.WARNING, "Authentication failed for subscription " + Utils.getSubscriptionId(connector) + ", validating the credentials again");
+        start(connector, credentialKey);
+    }
+
+    /**
+     * Reports authentication failures of the management calls made with the credentials.
+     */
+    ServiceResponseFilter authenticationFilter(final String credentialKey) {
+        return new ServiceResponseFilter() {
+            @Override
+            public void filter(ServiceRequestContext request, ServiceResponseContext response) {
+                if (response.getStatus() == 401 || response.getStatus() == 403) {
+                    authenticationFailed(credentialKey);
+                }
+            }
+        };
+    }
+
+    public long getValidations() {
+        return validations.get();
+    }
+
+    public long getValidationFailures() {
+        return validationFailures.get();
+    }
+
+    public long getCachedValidations() {
+        return cachedValidations.get();
+    }
+
+    public long getAuthenticationFailures() {
+        return authenticationFailures.get();
+    }
+
+    private FutureTask<Void> start(final ComputeManagementClient connector, final String credentialKey) {
+        FutureTask<Void> task = inFlight.get(credentialKey);
+        if (task != null) {
+            return task;
+        }
+        FutureTask<Void> created = new FutureTask<Void>(new Callable<Void>() {
+            @Override
+            public Void call() throws ConnectorException {
+                try {
+                    run(connector, credentialKey);
+                    return null;
+                } finally {
+                    inFlight.remove(credentialKey);
+                }
+            }
+        });
+        task = inFlight.putIfAbsent(credentialKey, created);
+        if (task != null) {
+            return task;
+        }
+        executor.execute(created);
+        return created;
+    }
+
+    private void run(ComputeManagementClient connector, String credentialKey) throws ConnectorException {
+        validations.incrementAndGet();
+        OperationTimer timer = ConnectorMetrics.getInstance().start(OPERATION);
+        try {
+            AzureActions.validate(connector);
+            credentialKeyVsValidation.put(credentialKey, new Validation(true, System.currentTimeMillis() + ttlMillis));
+        } catch (ConnectorException e) {
+            validationFailures.incrementAndGet();
+            Validation previous = credentialKeyVsValidation.getIfPresent(credentialKey);
+            //a transient failure does not disprove credentials that worked before, they are validated again shortly
+            boolean stillTrusted = previous != null && previous.valid && !isAuthenticationFailure(e.getCause());
+            credentialKeyVsValidation.put(credentialKey, new Validation(stillTrusted, System.currentTimeMillis() + retryMillis));
+            throw timer.failed(e);
+        } finally {
+            timer.stop();
+        }
+    }
+
+    private static void await(FutureTask<Void> task) throws ConnectorException {
+        try {
+            task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ConnectorException("Interrupted while validating the credentials", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof ConnectorException) {
+                throw (ConnectorException) cause;
+            }
+            throw new ConnectorException("Credentials validation failed", cause);
+        }
+    }
+
+    private static boolean isAuthenticationFailure(Throwable t) {
+        return t instanceof SSLException || AzureErrors.isAuthenticationFailure(t);
+    }
+
+    private static class Validation {
+
+        private final boolean valid;
+        private final long revalidateAt;
+
+        Validation(boolean valid, long revalidateAt) {
+            this.valid = valid;
+            this.revalidateAt = revalidateAt;
+        }
+    }
+}
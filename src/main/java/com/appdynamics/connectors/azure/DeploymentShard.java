@@ -0,0 +1,57 @@
+/*
+ *   Copyright 2018. AppDynamics LLC and its affiliates.
+ *   All Rights Reserved.
+ *   This is unpublished proprietary source code of AppDynamics LLC and its affiliates.
+ *   The copyright notice above does not evidence any actual or intended publication of such source code.
+ *
+ */
+package com.appdynamics.connectors.azure;
+
+import com.microsoft.windowsazure.management.compute.models.DeploymentSlot;
+
+/**
+ * One of the hosted service and deployment pairs holding the machines of an image. Shard 0 is the image's own hosted
+ * service; shard n is the hosted service suffixed with -n. The VHDs of every shard go to the storage account named
+ * after the image's hosted service.
+ */
+public class DeploymentShard {
+
+    private final int index;
+    private final String hostedServiceName;
+    private final DeploymentSlot deploymentSlot;
+    private final String deploymentName;
+    private final String storageAccountName;
+
+    private DeploymentShard(int index, String hostedServiceName, DeploymentSlot deploymentSlot, String storageAccountName) {
+        this.index = index;
+        this.hostedServiceName = hostedServiceName;
+        this.deploymentSlot = deploymentSlot;
+        this.deploymentName = hostedServiceName + "-" + Utils.getDeploymentSlotName(deploymentSlot);
+        this.storageAccountName = storageAccountName;
+    }
+
+    public static DeploymentShard of(ImageSettings imageSettings, int index) {
+        String baseName = imageSettings.getHostedServiceName();
+        return new DeploymentShard(index, index == 0 ? baseName : baseName + "-" + index, imageSettings.getDeploymentSlot(), baseName);
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public String getHostedServiceName() {
+        return hostedServiceName;
+    }
+
+    public DeploymentSlot getDeploymentSlot() {
+        return deploymentSlot;
+    }
+
+    public String getDeploymentName() {
+        return deploymentName;
+    }
+
+    public String getStorageAccountName() {
+        return storageAccountName;
+    }
+}
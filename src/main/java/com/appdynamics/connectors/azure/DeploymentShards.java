@@ -0,0 +1,257 @@
+/*
+ *   Copyright 2018. AppDynamics LLC and its affiliates.
+ *   All Rights Reserved.
+ *   This is unpublished proprietary source code of AppDynamics LLC and its affiliates.
+ *   The copyright notice above does not evidence any actual or intended publication of such source code.
+ *
+ */
+package com.appdynamics.connectors.azure;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.microsoft.windowsazure.management.compute.ComputeManagementClient;
+import com.singularity.ee.connectors.api.ConnectorException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Spreads the machines of an image over up to a maximum number of deployments, each in its own hosted service, since
+ * Azure runs one operation per deployment at a time and caps the roles of a cloud service. A new machine goes to the
+ * shard with the fewest creations and operations under way, then the fewest roles; a further shard is opened when
+ * every open one is full or has a backlog of operations. Machines are found again in the shard they were placed in, or
+ * by looking through the shards.
+ * <p/>
+ * Sharding is off unless appdynamics.azure.shards.max is raised above 1. The hosted service of shard n is named after
+ * the image's with "-n" appended, and hosted service names are global, so a shard whose name turns out to be taken
+ * is left out.
+ */
+public class DeploymentShards {
+
+    private static final Logger logger = Logger.getLogger(DeploymentShards.class.getName());
+
+    private static final DeploymentShards INSTANCE = new DeploymentShards(
+            Integer.getInteger("appdynamics.azure.shards.max", 1),
+            Integer.getInteger("appdynamics.azure.shard.max.roles", 50),
+            Integer.getInteger("appdynamics.azure.shard.open.backlog", 4));
+
+    //machines no longer looked up, such as terminated ones, are forgotten and found again by looking through the shards
+    private final Cache<String, Integer> roleVsShard = CacheBuilder.newBuilder()
+            .expireAfterAccess(1, TimeUnit.HOURS)
+            .build();
+
+    //creations placed in each shard and not yet accepted by Azure
+    private final ConcurrentMap<String, AtomicInteger> shardVsPlacing = new ConcurrentHashMap<String, AtomicInteger>();
+
+    //shards this connector opened, their hosted service exists even while the deployment is still empty
+    private final Set<String> openedShards = new HashSet<String>();
+
+    //shards whose hosted service name belongs to someone else
+    private final Set<String> excludedShards = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private final int maxShards;
+    private final int maxRolesPerShard;
+    private final int openBacklog;
+
+    private final AtomicLong placements = new AtomicLong();
+    private final AtomicLong shardsOpened = new AtomicLong();
+    private final AtomicLong resolutionProbes = new AtomicLong();
+
+    DeploymentShards(int maxShards, int maxRolesPerShard, int openBacklog) {
+        this.maxShards = Math.max(1, maxShards);
+        this.maxRolesPerShard = maxRolesPerShard;
+        this.openBacklog = Math.max(1, openBacklog);
+    }
+
+    public static DeploymentShards getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Picks the shard for a new machine. The placement counts as under way until {@link #placed} is called.
+     */
+    public DeploymentShard place(ComputeManagementClient connector, ImageSettings imageSettings, String roleInstanceName) throws ConnectorException {
+        placements.incrementAndGet();
+        if (maxShards == 1) {
+            DeploymentShard shard = DeploymentShard.of(imageSettings, 0);
+            getPlacing(connector, shard).incrementAndGet();
+            return shard;
+        }
+
+        DeploymentShard[] shards = new DeploymentShard[maxShards];
+        int[] roles = new int[maxShards];
+        int[] operations = new int[maxShards];
+        boolean[] found = new boolean[maxShards];
+        //the snapshots are shared with the state refreshes, so this costs at most one fetch per shard and poll window
+        for (int i = 0; i < maxShards; i++) {
+            shards[i] = DeploymentShard.of(imageSettings, i);
+            if (isExcluded(connector, shards[i])) {
+                continue;
+            }
+            try {
+                DeploymentSnapshot snapshot = DeploymentStatePoller.getInstance().getSnapshot(connector, shards[i].getHostedServiceName(), shards[i].getDeploymentName());
+                roles[i] = snapshot.getRoleInstanceCount();
+                found[i] = snapshot.isDeploymentFound();
+            } catch (ConnectorException e) {
+                logger.log(Level.FINE, "Unable to look up deployment " + shards[i].getDeploymentName() + ", placing as if it were empty", e);
+            }
+            operations[i] = OperationTracker.getInstance().getInFlightCount(connector, shards[i].getHostedServiceName(), shards[i].getDeploymentName());
+        }
+
+        DeploymentShard chosen;
+        synchronized (shardVsPlacing) {
+            int best = -1;
+            int bestBusy = 0;
+            int bestLoad = 0;
+            int unopened = -1;
+            for (int i = 0; i < maxShards; i++) {
+                String shardKey = shardKey(connector, shards[i]);
+                int placing = getPlacing(connector, shards[i]).get();
+                int load = roles[i] + placing;
+                if (load >= maxRolesPerShard || excludedShards.contains(shardKey)) {
+                    continue;
+                }
+                if (i == 0 || found[i] || openedShards.contains(shardKey)) {
+                    int busy = placing + operations[i];
+                    if (best < 0 || busy < bestBusy || (busy == bestBusy && load < bestLoad)) {
+                        best = i;
+                        bestBusy = busy;
+                        bestLoad = load;
+                    }
+                } else if (unopened < 0) {
+                    unopened = i;
+                }
+            }
+
+            int index;
+            //a new hosted service costs a create call, so it only pays off once the open deployments queue up work
+            if (best >= 0 && (bestBusy < openBacklog || unopened < 0)) {
+                index = best;
+            } else if (unopened >= 0) {
+                index = unopened;
+                openedShards.add(shardKey(connector, shards[index]));
+                shardsOpened.incrementAndGet();
+                logger.log(Level.FINE, "Opening deployment " + shards[index].getDeploymentName() + " for " + roleInstanceName);
+            } else {
+                throw new ConnectorException("All " + maxShards + " deployments of hosted service " + imageSettings.getHostedServiceName()
+                        + " hold " + maxRolesPerShard + " roles");
+            }
+            chosen = shards[index];
+            getPlacing(connector, chosen).incrementAndGet();
+        }
+        roleVsShard.put(roleKey(connector, imageSettings, roleInstanceName), chosen.getIndex());
+        return chosen;
+    }
+
+    /**
+     * Ends a placement once Azure accepted or refused the machine.
+     */
+    public void placed(ComputeManagementClient connector, ImageSettings imageSettings, DeploymentShard shard, String roleInstanceName, boolean created) {
+        getPlacing(connector, shard).decrementAndGet();
+        if (!created) {
+            roleVsShard.invalidate(roleKey(connector, imageSettings, roleInstanceName));
+        }
+    }
+
+    /**
+     * Leaves the shard out of further placements and lookups, as its hosted service could not be created.
+     */
+    public void exclude(ComputeManagementClient connector, DeploymentShard shard) {
+        if (shard.getIndex() > 0 && excludedShards.add(shardKey(connector, shard))) {
+            logger.log(Level.WARNING, "Hosted service " + shard.getHostedServiceName() + " cannot be created, no longer placing machines in it");
+        }
+    }
+
+    /**
+     * The shard holding the machine, or null if it is in none of them. The shard the machine was placed in is taken
+     * as is. Otherwise the shard of the latest operation the connector submitted for the machine is taken, and then
+     * the shard whose deployment, as seen within the given age, holds the machine. With sharding off the machine can
+     * only be in shard 0.
+     */
+    public DeploymentShard resolve(ComputeManagementClient connector, ImageSettings imageSettings, String roleInstanceName, long maxSnapshotAgeMillis)
+            throws ConnectorException {
+        if (maxShards == 1) {
+            return DeploymentShard.of(imageSettings, 0);
+        }
+        String key = roleKey(connector, imageSettings, roleInstanceName);
+        Integer index = roleVsShard.getIfPresent(key);
+        if (index != null) {
+            return DeploymentShard.of(imageSettings, index);
+        }
+
+        //a creation shows up in its deployment only some time after Azure accepted it
+        DeploymentShard tracked = null;
+        long trackedAt = 0;
+        for (int i = 0; i < maxShards; i++) {
+            DeploymentShard shard = DeploymentShard.of(imageSettings, i);
+            TrackedOperation operation = OperationTracker.getInstance().getOperation(connector, shard.getHostedServiceName(), shard.getDeploymentName(), roleInstanceName);
+            if (operation != null && (tracked == null || operation.getSubmittedAt() > trackedAt)) {
+                tracked = shard;
+                trackedAt = operation.getSubmittedAt();
+            }
+        }
+        if (tracked != null) {
+            roleVsShard.put(key, tracked.getIndex());
+            return tracked;
+        }
+
+        for (int i = 0; i < maxShards; i++) {
+            DeploymentShard shard = DeploymentShard.of(imageSettings, i);
+            if (isExcluded(connector, shard)) {
+                continue;
+            }
+            resolutionProbes.incrementAndGet();
+            if (DeploymentStatePoller.getInstance().getSnapshot(connector, shard.getHostedServiceName(), shard.getDeploymentName(), maxSnapshotAgeMillis)
+                    .hasRoleInstance(roleInstanceName)) {
+                roleVsShard.put(key, i);
+                return shard;
+            }
+        }
+        return null;
+    }
+
+    public long getPlacements() {
+        return placements.get();
+    }
+
+    public long getShardsOpened() {
+        return shardsOpened.get();
+    }
+
+    public long getResolutionProbes() {
+        return resolutionProbes.get();
+    }
+
+    private boolean isExcluded(ComputeManagementClient connector, DeploymentShard shard) {
+        return excludedShards.contains(shardKey(connector, shard));
+    }
+
+    private AtomicInteger getPlacing(ComputeManagementClient connector, DeploymentShard shard) {
+        String key = shardKey(connector, shard);
+        AtomicInteger placing = shardVsPlacing.get(key);
+        if (placing == null) {
+            AtomicInteger created = new AtomicInteger();
+            placing = shardVsPlacing.putIfAbsent(key, created);
+            if (placing == null) {
+                placing = created;
+            }
+        }
+        return placing;
+    }
+
+    private static String shardKey(ComputeManagementClient connector, DeploymentShard shard) {
+        return Utils.getSubscriptionId(connector) + "/" + shard.getHostedServiceName() + "/" + shard.getDeploymentName();
+    }
+
+    private static String roleKey(ComputeManagementClient connector, ImageSettings imageSettings, String roleInstanceName) {
+        return Utils.getSubscriptionId(connector) + "/" + imageSettings.getHostedServiceName() + "/" + imageSettings.getDeploymentSlot().name()
+                + "/" + roleInstanceName;
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ *   Copyright 2018. AppDynamics LLC and its affiliates.
+ *   All Rights Reserved.
+ *   This is unpublished proprietary source code of AppDynamics LLC and its affiliates.
+ *   The copyright notice above does not evidence any actual or intended publication of such source code.
+ *
+ */
+package com.appdynamics.connectors.azure;
+
+import com.microsoft.windowsazure.management.compute.models.RoleInstance;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Point-in-time view of the role instances of one deployment: the status of each instance, indexed by instance name,
+ * and the OS disk of each role where it is known.
+ */
+public class DeploymentSnapshot {
+
+    private final boolean deploymentFound;
+    private final Map<String, String> instanceStatusByName;
+    private final Map<String, String> osDiskByRoleName;
+    private final long fetchedAt;
+
+    private DeploymentSnapshot(boolean deploymentFound, Map<String, String> instanceStatusByName, Map<String, String> osDiskByRoleName, long fetchedAt) {
+        this.deploymentFound = deploymentFound;
+        this.instanceStatusByName = instanceStatusByName;
+        this.osDiskByRoleName = osDiskByRoleName;
+        this.fetchedAt = fetchedAt;
+    }
+
+    public static DeploymentSnapshot of(List<RoleInstance> roleInstances, long fetchedAt) {
+        Map<String, String> statusByName = new HashMap<String, String>();
+        if (roleInstances != null) {
+            for (RoleInstance roleInstance : roleInstances) {
+                statusByName.put(roleInstance.getInstanceName(), roleInstance.getInstanceStatus());
+            }
+        }
+        return of(statusByName, Collections.<String, String>emptyMap(), fetchedAt);
+    }
+
+    public static DeploymentSnapshot of(Map<String, String> instanceStatusByName, Map<String, String> osDiskByRoleName, long fetchedAt) {
+        return new DeploymentSnapshot(true, Collections.unmodifiableMap(instanceStatusByName), Collections.unmodifiableMap(osDiskByRoleName), fetchedAt);
+    }
+
+    public static DeploymentSnapshot notFound() {
+        return notFound(System.currentTimeMillis());
+    }
+
+    public static DeploymentSnapshot notFound(long fetchedAt) {
+        return new DeploymentSnapshot(false, Collections.<String, String>emptyMap(), Collections.<String, String>emptyMap(), fetchedAt);
+    }
+
+    public boolean isDeploymentFound() {
+        return deploymentFound;
+    }
+
+    public boolean hasRoleInstance(String roleInstanceName) {
+        return instanceStatusByName.containsKey(roleInstanceName);
+    }
+
+    /**
+     * The InstanceStatus Azure reported for the role instance, such as ReadyRole, or null when it is not in the
+     * deployment.
+     */
+    public String getInstanceStatus(String roleInstanceName) {
+        return instanceStatusByName.get(roleInstanceName);
+    }
+
+    public Set<String> getRoleInstanceNames() {
+        return instanceStatusByName.keySet();
+    }
+
+    public int getRoleInstanceCount() {
+        return instanceStatusByName.size();
+    }
+
+    public String getOsDiskName(String roleName) {
+        return osDiskByRoleName.get(roleName);
+    }
+
+    public long getFetchedAt() {
+        return fetchedAt;
+    }
+
+    public boolean isOlderThan(long ageMillis) {
+        return System.currentTimeMillis() - fetchedAt >= ageMillis;
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ *   Copyright 2018. AppDynamics LLC and its affiliates.
+ *   All Rights Reserved.
+ *   This is unpublished proprietary source code of AppDynamics LLC and its affiliates.
+ *   The copyright notice above does not evidence any actual or intended publication of such source code.
+ *
+ */
+package com.appdynamics.connectors.azure;
+
+import com.appdynamics.connectors.azure.ResourceExistenceCache.Kind;
+import com.microsoft.windowsazure.exception.ServiceException;
+import com.microsoft.windowsazure.management.compute.ComputeManagementClient;
+import com.singularity.ee.connectors.api.ConnectorException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Answers machine state lookups from a per-deployment snapshot so that a refresh sweep over many machines
+ * costs one getByName call per (hosted service, deployment) and polling window instead of one per machine.
+ * Concurrent callers asking for the same deployment share a single in-flight fetch.
+ */
+public class DeploymentStatePoller {
+
+    private static final Logger logger = Logger.getLogger(DeploymentStatePoller.class.getName());
+
+    private static final long DEFAULT_POLL_WINDOW_MILLIS = 15 * 1000;
+
+    private static final DeploymentStatePoller INSTANCE = new DeploymentStatePoller(
+            Long.getLong("appdynamics.azure.deployment.poll.window.millis", DEFAULT_POLL_WINDOW_MILLIS));
+
+    private final ConcurrentMap<String, FutureTask<DeploymentSnapshot>> snapshots = new ConcurrentHashMap<String, FutureTask<DeploymentSnapshot>>();
+
+    private final long pollWindowMillis;
+
+    private final AtomicLong deploymentFetches = new AtomicLong();
+    private final AtomicLong snapshotHits = new AtomicLong();
+
+    DeploymentStatePoller(long pollWindowMillis) {
+        this.pollWindowMillis = pollWindowMillis;
+    }
+
+    public static DeploymentStatePoller getInstance() {
+        return INSTANCE;
+    }
+
+    public DeploymentSnapshot getSnapshot(ComputeManagementClient connector, String hostedServiceName, String deploymentName) throws ConnectorException {
+        return getSnapshot(connector, hostedServiceName, deploymentName, pollWindowMillis);
+    }
+
+    /**
+     * Like {@link #getSnapshot(ComputeManagementClient, String, String)}, but fetches the deployment again when the
+     * snapshot is older than the given age, if that is shorter than the polling window. The subscription inventory
+     * answers first when it listed the deployment within that age.
+     */
+    public DeploymentSnapshot getSnapshot(ComputeManagementClient connector, String hostedServiceName, String deploymentName, long maxAgeMillis) throws ConnectorException {
+        DeploymentSnapshot listed = SubscriptionInventory.getInstance().getDeployment(connector, hostedServiceName, deploymentName, maxAgeMillis);
+        if (listed != null) {
+            return listed;
+        }
+
+        long windowMillis = Math.min(pollWindowMillis, maxAgeMillis);
+        String key = key(connector, hostedServiceName, deploymentName);
+        while (true) {
+            FutureTask<DeploymentSnapshot> task = snapshots.get(key);
+            boolean owner = false;
+            if (task == null) {
+                FutureTask<DeploymentSnapshot> newTask = new FutureTask<DeploymentSnapshot>(new DeploymentFetch(connector, hostedServiceName, deploymentName));
+                task = snapshots.putIfAbsent(key, newTask);
+                if (task == null) {
+                    task = newTask;
+                    owner = true;
+                    newTask.run();
+                }
+            }
+
+            DeploymentSnapshot snapshot;
+            try {
+                snapshot = task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ConnectorException("Interrupted while waiting for deployment state", e);
+            } catch (ExecutionException e) {
+                snapshots.remove(key, task);
+                Throwable cause = e.getCause();
+                if (cause instanceof ConnectorException) {
+                    throw (ConnectorException) cause;
+                }
+                throw new ConnectorException("Update VM state failed", cause);
+            }
+
+            if (!owner && snapshot.isOlderThan(windowMillis)) {
+                snapshots.remove(key, task);
+                continue;
+            }
+            if (!owner) {
+                snapshotHits.incrementAndGet();
+            }
+            return snapshot;
+        }
+    }
+
+    /**
+     * Drops the cached snapshot so the next lookup goes back to Azure. Called whenever the connector itself
+     * changes the deployment (create, delete, restart).
+     */
+    public void invalidate(ComputeManagementClient connector, String hostedServiceName, String deploymentName) {
+        snapshots.remove(key(connector, hostedServiceName, deploymentName));
+        SubscriptionInventory.getInstance().invalidate(Kind.DEPLOYMENT, Utils.getSubscriptionId(connector), hostedServiceName + "/" + deploymentName);
+    }
+
+    public void invalidateAll() {
+        snapshots.clear();
+    }
+
+    public long getDeploymentFetches() {
+        return deploymentFetches.get();
+    }
+
+    public long getSnapshotHits() {
+        return snapshotHits.get();
+    }
+
+    private static String key(ComputeManagementClient connector, String hostedServiceName, String deploymentName) {
+        return Utils.getSubscriptionId(connector) + "/" + hostedServiceName + "/" + deploymentName;
+    }
+
+    private class DeploymentFetch implements Callable<DeploymentSnapshot> {
+
+        private final ComputeManagementClient connector;
+        private final String hostedServiceName;
+        private final String deploymentName;
+
+        DeploymentFetch(ComputeManagementClient connector, String hostedServiceName, String deploymentName) {
+            this.connector = connector;
+            this.hostedServiceName = hostedServiceName;
+            this.deploymentName = deploymentName;
+        }
+
+        @Override
+        public DeploymentSnapshot call() throws Exception {
+            deploymentFetches.incrementAndGet();
+            try {
+                DeploymentSnapshot snapshot = DeploymentStatusReader.read(connector, hostedServiceName, deploymentName);
+                ResourceExistenceCache.getInstance().present(Kind.DEPLOYMENT, Utils.getSubscriptionId(connector), hostedServiceName + "/" + deploymentName);
+                return fetched(snapshot);
+            } catch (ServiceException e) {
+                if (AzureErrors.isNotFound(e)) {
+                    ResourceExistenceCache.getInstance().absent(Kind.DEPLOYMENT, Utils.getSubscriptionId(connector), hostedServiceName + "/" + deploymentName);
+                    return fetched(DeploymentSnapshot.notFound());
+                }
+                logger.log(Level.WARNING, "Update VM state failed", e);
+                throw new ConnectorException("Update VM state failed", e);
+            } catch (Exception e) {
+                logger.log(Level.WARNING, "Update VM state failed", e);
+                throw new ConnectorException("Update VM state failed", e);
+            }
+        }
+
+        private DeploymentSnapshot fetched(DeploymentSnapshot snapshot) {
+            SubscriptionInventory.getInstance().update(connector, hostedServiceName, deploymentName, snapshot);
+            return snapshot;
+        }
+    }
+}
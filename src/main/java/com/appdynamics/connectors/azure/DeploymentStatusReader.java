@@ -0,0 +1,176 @@
+/*
+ *   Copyright 2018. AppDynamics LLC and its affiliates.
+ *   All Rights Reserved.
+ *   This is unpublished proprietary source code of AppDynamics LLC and its affiliates.
+ *   The copyright notice above does not evidence any actual or intended publication of such source code.
+ *
+ */
+package com.appdynamics.connectors.azure;
+
+import com.microsoft.windowsazure.core.ServiceClient;
+import com.microsoft.windowsazure.exception.ServiceException;
+import com.microsoft.windowsazure.management.compute.ComputeManagementClient;
+import com.microsoft.windowsazure.management.compute.models.DeploymentGetResponse;
+import com.microsoft.windowsazure.management.compute.models.Role;
+import com.microsoft.windowsazure.management.compute.models.RoleInstance;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.HashMap;
+import java.util.Map;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+
+/**
+ * Reads the role instances of a deployment with the same Get Deployment request the SDK sends, over the client's
+ * HTTP pipeline, but streams the response instead of building a DOM and a full DeploymentGetResponse. Only the
+ * instance names and statuses, and the OS disk of each role, are kept.
+ * <p/>
+ * The request goes straight to the client's HttpClient. The SDK installs the client's filters, such as the retry-after
+ * and authentication filters, as interceptors of that HttpClient, so they see this request too; an SDK upgrade has to
+ * keep it that way. A client that does not expose its HTTP pipeline is read with getByName instead.
+ */
+public class DeploymentStatusReader {
+
+    private static final String OPERATION = "DeploymentStatusReader.read";
+
+    private static final XMLInputFactory XML_INPUT_FACTORY = createInputFactory();
+
+    private DeploymentStatusReader() {
+
+    }
+
+    /**
+     * Fetches the deployment. A missing deployment fails with the ServiceException the SDK would throw.
+     */
+    public static DeploymentSnapshot read(ComputeManagementClient connector, final String hostedServiceName, final String deploymentName) throws Exception {
+        return RateLimitedInvocationHandler.call(connector, OPERATION, true, new RateLimitedInvocationHandler.RemoteCall<DeploymentSnapshot>() {
+            @Override
+            public DeploymentSnapshot call(Object target) throws Exception {
+                if (!(target instanceof ServiceClient)) {
+                    return getByName((ComputeManagementClient) target, hostedServiceName, deploymentName);
+                }
+                return fetch((ComputeManagementClient) target, hostedServiceName, deploymentName);
+            }
+        });
+    }
+
+    private static DeploymentSnapshot fetch(ComputeManagementClient client, String hostedServiceName, String deploymentName)
+            throws IOException, ServiceException, XMLStreamException, URISyntaxException {
+        URI baseUri = client.getBaseUri();
+        String path = baseUri.getPath() == null ? "" : baseUri.getPath();
+        if (path.endsWith("/")) {
+            path = path.substring(0, path.length() - 1);
+        }
+        path += "/" + client.getCredentials().getSubscriptionId() + "/services/hostedservices/" + hostedServiceName + "/deployments/" + deploymentName;
+
+        //the multi-argument URI constructor percent-encodes each character not allowed in a path
+        HttpGet request = new HttpGet(new URI(baseUri.getScheme(), baseUri.getAuthority(), path, null, null).toASCIIString());
+        request.setHeader("x-ms-version", client.getApiVersion());
+        CloseableHttpResponse response = ((ServiceClient<?>) client).getHttpClient().execute(request);
+        try {
+            HttpEntity entity = response.getEntity();
+            if (response.getStatusLine().getStatusCode() != 200) {
+                throw ServiceException.createFromXml(request, null, response, entity);
+            }
+            InputStream content = entity.getContent();
+            try {
+                return parse(content, System.currentTimeMillis());
+            } finally {
+                content.close();
+            }
+        } finally {
+            response.close();
+        }
+    }
+
+    private static DeploymentSnapshot getByName(ComputeManagementClient client, String hostedServiceName, String deploymentName) throws Exception {
+        DeploymentGetResponse deployment = client.getDeploymentsOperations().getByName(hostedServiceName, deploymentName);
+        Map<String, String> instanceStatusByName = new HashMap<String, String>();
+        Map<String, String> osDiskByRoleName = new HashMap<String, String>();
+        if (deployment.getRoleInstances() != null) {
+            for (RoleInstance roleInstance : deployment.getRoleInstances()) {
+                instanceStatusByName.put(roleInstance.getInstanceName(), roleInstance.getInstanceStatus());
+            }
+        }
+        if (deployment.getRoles() != null) {
+            for (Role role : deployment.getRoles()) {
+                if (role.getOSVirtualHardDisk() != null && role.getOSVirtualHardDisk().getName() != null) {
+                    osDiskByRoleName.put(role.getRoleName(), role.getOSVirtualHardDisk().getName());
+                }
+            }
+        }
+        return DeploymentSnapshot.of(instanceStatusByName, osDiskByRoleName, System.currentTimeMillis());
+    }
+
+    /**
+     * Parses a Get Deployment response body.
+     */
+    public static DeploymentSnapshot parse(InputStream content, long fetchedAt) throws XMLStreamException {
+        Map<String, String> instanceStatusByName = new HashMap<String, String>();
+        Map<String, String> osDiskByRoleName = new HashMap<String, String>();
+
+        XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(content);
+        try {
+            //Deployment > RoleInstanceList > RoleInstance > InstanceName, and Deployment > RoleList > Role > RoleName
+            int depth = 0;
+            String list = null;
+            String child = null;
+            String name = null;
+            String value = null;
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    depth++;
+                    String element = reader.getLocalName();
+                    if (depth == 2) {
+                        list = element;
+                    } else if (depth == 3) {
+                        name = null;
+                        value = null;
+                    } else if (depth == 4) {
+                        child = element;
+                        if ("RoleInstanceList".equals(list) && ("InstanceName".equals(element) || "InstanceStatus".equals(element))
+                                || "RoleList".equals(list) && "RoleName".equals(element)) {
+                            String text = reader.getElementText();
+                            depth--;
+                            if ("InstanceStatus".equals(element)) {
+                                value = text;
+                            } else {
+                                name = text;
+                            }
+                        }
+                    } else if (depth == 5 && "RoleList".equals(list) && "OSVirtualHardDisk".equals(child) && "DiskName".equals(element)) {
+                        value = reader.getElementText();
+                        depth--;
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    if (depth == 3 && name != null) {
+                        if ("RoleInstanceList".equals(list)) {
+                            instanceStatusByName.put(name, value);
+                        } else if ("RoleList".equals(list) && value != null) {
+                            osDiskByRoleName.put(name, value);
+                        }
+                    }
+                    depth--;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return DeploymentSnapshot.of(instanceStatusByName, osDiskByRoleName, fetchedAt);
+    }
+
+    private static XMLInputFactory createInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ *   Copyright 2018. AppDynamics LLC and its affiliates.
+ *   All Rights Reserved.
+ *   This is unpublished proprietary source code of AppDynamics LLC and its affiliates.
+ *   The copyright notice above does not evidence any actual or intended publication of such source code.
+ *
+ */
+package com.appdynamics.connectors.azure;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Number of failures of one operation with one exception class and Azure error code.
+ */
+public class ErrorCounter implements ErrorCounterMBean {
+
+    private final String operation;
+    private final String exceptionClass;
+    private final String errorCode;
+    private final AtomicLong count = new AtomicLong();
+
+    ErrorCounter(String operation, String exceptionClass, String errorCode) {
+        this.operation = operation;
+        this.exceptionClass = exceptionClass;
+        this.errorCode = errorCode;
+    }
+
+    void increment() {
+        count.incrementAndGet();
+    }
+
+    @Override
+    public String getOperation() {
+        return operation;
+    }
+
+    @Override
+    public String getExceptionClass() {
+        return exceptionClass;
+    }
+
+    @Override
+    public String getErrorCode() {
+        return errorCode;
+    }
+
+    @Override
+    public long getCount() {
+        return count.get();
+    }
+}
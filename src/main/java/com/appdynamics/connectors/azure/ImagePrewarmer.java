@@ -0,0 +1,195 @@
+/*
+ *   Copyright 2018. AppDynamics LLC and its affiliates.
+ *   All Rights Reserved.
+ *   This is unpublished proprietary source code of AppDynamics LLC and its affiliates.
+ *   The copyright notice above does not evidence any actual or intended publication of such source code.
+ *
+ */
+package com.appdynamics.connectors.azure;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.microsoft.windowsazure.management.compute.ComputeManagementClient;
+import com.singularity.ee.connectors.api.IControllerServices;
+import com.singularity.ee.connectors.entity.api.IComputeCenter;
+import com.singularity.ee.connectors.entity.api.IImage;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Prepares the storage account and hosted service of images marked for pre-provisioning as soon as they are
+ * configured, instead of on the first scale-out, and remembers the hosted services known to be prepared so creating a
+ * machine in them skips straight to adding its role.
+ * <p/>
+ * Images do not name their compute center, so an image is prepared once the connector knows which compute center it
+ * belongs to: right away when only one compute center is configured, otherwise on the first operation pairing the
+ * image with a compute center.
+ */
+public class ImagePrewarmer {
+
+    private static final Logger logger = Logger.getLogger(ImagePrewarmer.class.getName());
+
+    private static final ImagePrewarmer INSTANCE = new ImagePrewarmer();
+
+    private final ExecutorService executor = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("azure-image-prewarm-%d").build());
+
+    private final ConcurrentMap<String, PrewarmedImage> imageVsPrewarm = new ConcurrentHashMap<String, PrewarmedImage>();
+
+    private final ConcurrentMap<String, IComputeCenter> computeCenters = new ConcurrentHashMap<String, IComputeCenter>();
+
+    private final Set<String> preparedHostedServices = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private ImagePrewarmer() {
+
+    }
+
+    public static ImagePrewarmer getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Tracks the image if it is marked for pre-provisioning, replacing what was tracked for it before.
+     */
+    public void configure(IImage image, IControllerServices controllerServices) {
+        if (!SettingsCache.getInstance().getImageSettings(image, controllerServices).isPreProvision()) {
+            remove(image);
+            return;
+        }
+        PrewarmedImage created = new PrewarmedImage(image, controllerServices);
+        PrewarmedImage previous = imageVsPrewarm.put(image.getName(), created);
+        if (previous != null) {
+            ConnectorMetrics.getInstance().unregisterImageReadiness(previous.readiness);
+        }
+        ConnectorMetrics.getInstance().registerImageReadiness(created.readiness);
+
+        if (computeCenters.size() == 1) {
+            prepare(created, computeCenters.values().iterator().next());
+        }
+    }
+
+    public void remove(IImage image) {
+        PrewarmedImage removed = imageVsPrewarm.remove(image.getName());
+        if (removed != null) {
+            ConnectorMetrics.getInstance().unregisterImageReadiness(removed.readiness);
+        }
+    }
+
+    public void addComputeCenter(IComputeCenter computeCenter) {
+        computeCenters.put(computeCenter.getName(), computeCenter);
+    }
+
+    public void removeComputeCenter(IComputeCenter computeCenter) {
+        computeCenters.remove(computeCenter.getName());
+    }
+
+    /**
+     * Records that the image is used with the compute center, and starts preparing the image if it was waiting for
+     * one.
+     */
+    public void bind(IComputeCenter computeCenter, IImage image) {
+        if (!computeCenters.containsKey(computeCenter.getName())) {
+            addComputeCenter(computeCenter);
+        }
+        PrewarmedImage prewarm = imageVsPrewarm.get(image.getName());
+        if (prewarm != null && prewarm.computeCenter == null) {
+            prepare(prewarm, computeCenter);
+        }
+    }
+
+    /**
+     * Retries preparing the image if the last attempt failed.
+     */
+    public void refresh(IImage image) {
+        PrewarmedImage prewarm = imageVsPrewarm.get(image.getName());
+        if (prewarm == null) {
+            return;
+        }
+        IComputeCenter computeCenter = prewarm.computeCenter;
+        if (computeCenter == null && computeCenters.size() == 1) {
+            computeCenter = computeCenters.values().iterator().next();
+        }
+        if (computeCenter != null) {
+            prepare(prewarm, computeCenter);
+        }
+        logger.log(Level.FINER, "Image " + image.getName() + " is " + prewarm.readiness.getState());
+    }
+
+    public ImageReadiness getReadiness(String imageName) {
+        PrewarmedImage prewarm = imageVsPrewarm.get(imageName);
+        return prewarm == null ? null : prewarm.readiness;
+    }
+
+    /**
+     * Whether the storage account and hosted service were already found or created.
+     */
+    public boolean isPrepared(String subscriptionId, String hostedServiceName) {
+        return preparedHostedServices.contains(key(subscriptionId, hostedServiceName));
+    }
+
+    public void markPrepared(String subscriptionId, String hostedServiceName) {
+        preparedHostedServices.add(key(subscriptionId, hostedServiceName));
+    }
+
+    /**
+     * Makes the next creation check the storage account and hosted service again, as one of them may be gone.
+     */
+    public void forget(String subscriptionId, String hostedServiceName) {
+        preparedHostedServices.remove(key(subscriptionId, hostedServiceName));
+        ResourceExistenceCache existence = ResourceExistenceCache.getInstance();
+        existence.invalidate(ResourceExistenceCache.Kind.HOSTED_SERVICE, subscriptionId, hostedServiceName);
+        existence.invalidate(ResourceExistenceCache.Kind.STORAGE_ACCOUNT, subscriptionId, hostedServiceName);
+    }
+
+    private void prepare(final PrewarmedImage prewarm, final IComputeCenter computeCenter) {
+        if (!prewarm.readiness.start()) {
+            return;
+        }
+        prewarm.computeCenter = computeCenter;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                IImage image = prewarm.image;
+                IControllerServices controllerServices = prewarm.controllerServices;
+                long start = System.currentTimeMillis();
+                try {
+                    ComputeManagementClient connector = ConnectorLocator.getInstance().getConnector(computeCenter, controllerServices);
+                    OsImageCatalog.getInstance().refresh(connector);
+                    AzureActions.prepareHostedService(connector, computeCenter, image, controllerServices);
+
+                    ImageSettings imageSettings = SettingsCache.getInstance().getImageSettings(image, controllerServices);
+                    boolean deploymentPresent = AzureActions.isDeploymentPresent(connector, imageSettings.getHostedServiceName(), imageSettings.getDeploymentName());
+
+                    prewarm.readiness.ready(deploymentPresent, System.currentTimeMillis() - start);
+                    logger.log(Level.INFO, "Image " + image.getName() + " prepared in " + (System.currentTimeMillis() - start) + " ms");
+                } catch (Exception e) {
+                    prewarm.readiness.failed(e);
+                    logger.log(Level.WARNING, "Unable to prepare image " + image.getName(), e);
+                }
+            }
+        });
+    }
+
+    private static String key(String subscriptionId, String hostedServiceName) {
+        return subscriptionId + "/" + hostedServiceName;
+    }
+
+    private static class PrewarmedImage {
+
+        private final IImage image;
+        private final IControllerServices controllerServices;
+        private final ImageReadiness readiness;
+        private volatile IComputeCenter computeCenter;
+
+        PrewarmedImage(IImage image, IControllerServices controllerServices) {
+            this.image = image;
+            this.controllerServices = controllerServices;
+            this.readiness = new ImageReadiness(image.getName(), SettingsCache.getInstance().getImageSettings(image, controllerServices).getHostedServiceName());
+        }
+    }
+}
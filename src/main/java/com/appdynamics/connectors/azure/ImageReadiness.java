@@ -0,0 +1,81 @@
+/*
+ *   Copyright 2018. AppDynamics LLC and its affiliates.
+ *   All Rights Reserved.
+ *   This is unpublished proprietary source code of AppDynamics LLC and its affiliates.
+ *   The copyright notice above does not evidence any actual or intended publication of such source code.
+ *
+ */
+package com.appdynamics.connectors.azure;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * How far the Azure resources of a pre-provisioned image have been prepared.
+ */
+public class ImageReadiness implements ImageReadinessMBean {
+
+    public enum State {
+        PENDING, PREPARING, READY, FAILED
+    }
+
+    private final String imageName;
+    private final String hostedServiceName;
+    private final AtomicReference<State> state = new AtomicReference<State>(State.PENDING);
+    private volatile boolean deploymentPresent;
+    private volatile long preparationMillis;
+    private volatile String lastError;
+
+    ImageReadiness(String imageName, String hostedServiceName) {
+        this.imageName = imageName;
+        this.hostedServiceName = hostedServiceName;
+    }
+
+    /**
+     * Claims the preparation, unless it is already running or done.
+     */
+    boolean start() {
+        return state.compareAndSet(State.PENDING, State.PREPARING) || state.compareAndSet(State.FAILED, State.PREPARING);
+    }
+
+    void ready(boolean deploymentPresent, long preparationMillis) {
+        this.deploymentPresent = deploymentPresent;
+        this.preparationMillis = preparationMillis;
+        this.lastError = null;
+        state.set(State.READY);
+    }
+
+    void failed(Throwable error) {
+        this.lastError = error.getMessage();
+        state.set(State.FAILED);
+    }
+
+    @Override
+    public String getImageName() {
+        return imageName;
+    }
+
+    @Override
+    public String getHostedServiceName() {
+        return hostedServiceName;
+    }
+
+    @Override
+    public String getState() {
+        return state.get().name();
+    }
+
+    @Override
+    public boolean isDeploymentPresent() {
+        return deploymentPresent;
+    }
+
+    @Override
+    public long getPreparationMillis() {
+        return preparationMillis;
+    }
+
+    @Override
+    public String getLastError() {
+        return lastError;
+    }
+}
@@ -0,0 +1,23 @@
+/*
+ *   Copyright 2018. AppDynamics LLC and its affiliates.
+ *   All Rights Reserved.
+ *   This is unpublished proprietary source code of AppDynamics LLC and its affiliates.
+ *   The copyright notice above does not evidence any actual or intended publication of such source code.
+ *
+ */
+package com.appdynamics.connectors.azure;
+
+public interface ImageReadinessMBean {
+
+    String getImageName();
+
+    String getHostedServiceName();
+
+    String getState();
+
+    boolean isDeploymentPresent();
+
+    long getPreparationMillis();
+
+    String getLastError();
+}
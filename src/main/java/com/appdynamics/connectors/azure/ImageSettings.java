@@ -0,0 +1,63 @@
+/*
+ *   Copyright 2018. AppDynamics LLC and its affiliates.
+ *   All Rights Reserved.
+ *   This is unpublished proprietary source code of AppDynamics LLC and its affiliates.
+ *   The copyright notice above does not evidence any actual or intended publication of such source code.
+ *
+ */
+package com.appdynamics.connectors.azure;
+
+import com.microsoft.windowsazure.management.compute.models.DeploymentSlot;
+import com.singularity.ee.connectors.api.IControllerServices;
+import com.singularity.ee.connectors.entity.api.IProperty;
+
+/**
+ * The settings of an image, resolved from its properties.
+ */
+public class ImageSettings {
+
+    private final String hostedServiceName;
+    private final DeploymentSlot deploymentSlot;
+    private final String deploymentName;
+    private final String location;
+    private final boolean preProvision;
+
+    public ImageSettings(String hostedServiceName, DeploymentSlot deploymentSlot, String location, boolean preProvision) {
+        this.hostedServiceName = hostedServiceName;
+        this.deploymentSlot = deploymentSlot;
+        this.deploymentName = hostedServiceName + "-" + Utils.getDeploymentSlotName(deploymentSlot);
+        this.location = location;
+        this.preProvision = preProvision;
+    }
+
+    public static ImageSettings from(IProperty[] properties, IControllerServices controllerServices) {
+        return new ImageSettings(
+                Utils.getHostedServiceName(properties, controllerServices),
+                Utils.getDeploymentSlot(properties, controllerServices),
+                Utils.getLocation(properties, controllerServices),
+                Utils.isPreProvision(properties, controllerServices));
+    }
+
+    public String getHostedServiceName() {
+        return hostedServiceName;
+    }
+
+    public DeploymentSlot getDeploymentSlot() {
+        return deploymentSlot;
+    }
+
+    /**
+     * The deployment holding the image's machines, named after the hosted service and the slot.
+     */
+    public String getDeploymentName() {
+        return deploymentName;
+    }
+
+    public String getLocation() {
+        return location;
+    }
+
+    public boolean isPreProvision() {
+        return preProvision;
+    }
+}
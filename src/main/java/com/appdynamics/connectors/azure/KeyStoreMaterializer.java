@@ -0,0 +1,163 @@
+/*
+ *   Copyright 2018. AppDynamics LLC and its affiliates.
+ *   All Rights Reserved.
+ *   This is unpublished proprietary source code of AppDynamics LLC and its affiliates.
+ *   The copyright notice above does not evidence any actual or intended publication of such source code.
+ *
+ */
+package com.appdynamics.connectors.azure;
+
+import com.google.common.hash.Hashing;
+import com.singularity.ee.connectors.api.ConnectorException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes uploaded key stores to disk so the Azure SDK can load them. Each distinct key store content is written
+ * once, to a file named after its digest, through a temporary file and a rename so readers never see a partial file.
+ * Later lookups for the same content return the existing path without touching the disk. Key stores of rotated
+ * credentials are deleted only when {@link ConnectorLocator} no longer holds clients built from them.
+ */
+public class KeyStoreMaterializer {
+
+    private static final Logger logger = Logger.getLogger(KeyStoreMaterializer.class.getName());
+
+    private static final KeyStoreMaterializer INSTANCE = new KeyStoreMaterializer();
+
+    private final ConcurrentMap<String, String> digestVsLocation = new ConcurrentHashMap<String, String>();
+
+    private final Set<String> computeCenterNames = new HashSet<String>();
+
+    //guarded by this
+    private long handedOut;
+
+    private final AtomicLong materializations = new AtomicLong();
+    private final AtomicLong reuses = new AtomicLong();
+
+    private KeyStoreMaterializer() {
+
+    }
+
+    public static KeyStoreMaterializer getInstance() {
+        return INSTANCE;
+    }
+
+    //folder gets created in the Glassfish domains/domain1/config folder.
+    //Only called when management clients are built, so one lock for all of it is enough
+    public synchronized String materialize(byte[] jksFile, String computeCenterName) throws ConnectorException {
+        String digest = Hashing.sha256().hashBytes(jksFile).toString().substring(0, 16);
+        String cacheKey = computeCenterName + "/" + digest;
+        handedOut++;
+        computeCenterNames.add(computeCenterName);
+
+        String location = digestVsLocation.get(cacheKey);
+        if (location != null && new File(location).exists()) {
+            reuses.incrementAndGet();
+            return location;
+        }
+
+        File computeCloudDir = new File("azure" + File.separator + computeCenterName);
+        if (!computeCloudDir.exists()) {
+            computeCloudDir.mkdirs();
+        }
+
+        File jksCert = new File(computeCloudDir, computeCenterName + "-" + digest + ".jks");
+        if (!jksCert.exists()) {
+            write(jksFile, computeCloudDir, jksCert);
+            materializations.incrementAndGet();
+        }
+
+        location = jksCert.getAbsolutePath();
+        digestVsLocation.put(cacheKey, location);
+        return location;
+    }
+
+    /**
+     * How many key stores were handed out so far, read before looking at which ones are in use.
+     */
+    public synchronized long getHandedOut() {
+        return handedOut;
+    }
+
+    /**
+     * Deletes the key stores of rotated credentials, and the file written by older versions of the connector, that
+     * are not at one of the given locations. Does nothing when a key store was handed out since {@code handedOutSeen}
+     * was read, as clients may be being built from it.
+     */
+    public synchronized void removeStaleKeyStores(Set<String> locationsInUse, long handedOutSeen) {
+        if (handedOut != handedOutSeen) {
+            return;
+        }
+        for (String computeCenterName : computeCenterNames) {
+            File[] files = new File("azure" + File.separator + computeCenterName).listFiles();
+            if (files == null) {
+                continue;
+            }
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith(computeCenterName) && name.endsWith(".jks") && !locationsInUse.contains(file.getAbsolutePath())) {
+                    if (file.delete()) {
+                        logger.log(Level.FINER, "Deleted stale key store " + file.getAbsolutePath());
+                    } else {
+                        logger.log(Level.FINER, "Unable to delete stale key store " + file.getAbsolutePath());
+                    }
+                }
+            }
+        }
+        for (Iterator<Map.Entry<String, String>> i = digestVsLocation.entrySet().iterator(); i.hasNext(); ) {
+            if (!locationsInUse.contains(i.next().getValue())) {
+                i.remove();
+            }
+        }
+    }
+
+    public long getMaterializations() {
+        return materializations.get();
+    }
+
+    public long getReuses() {
+        return reuses.get();
+    }
+
+    private void write(byte[] jksFile, File directory, File target) throws ConnectorException {
+        File temp = new File(directory, target.getName() + ".tmp");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(temp);
+            out.write(jksFile);
+            out.flush();
+            out.getFD().sync();
+        } catch (FileNotFoundException e) {
+            logger.log(Level.WARNING, "Java Key Store file not found", e);
+            throw new ConnectorException("Java Key Store file not found", e);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Error saving Java Key Store file", e);
+            throw new ConnectorException("Error saving Java Key Store file", e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    logger.log(Level.FINER, "Unable to close Java Key Store file", e);
+                }
+            }
+        }
+
+        if (!temp.renameTo(target) && !target.exists()) {
+            temp.delete();
+            throw new ConnectorException("Error saving Java Key Store file " + target.getAbsolutePath());
+        }
+        temp.delete();
+    }
+}
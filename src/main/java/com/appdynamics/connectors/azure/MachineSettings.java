@@ -0,0 +1,63 @@
+/*
+ *   Copyright 2018. AppDynamics LLC and its affiliates.
+ *   All Rights Reserved.
+ *   This is unpublished proprietary source code of AppDynamics LLC and its affiliates.
+ *   The copyright notice above does not evidence any actual or intended publication of such source code.
+ *
+ */
+package com.appdynamics.connectors.azure;
+
+import com.singularity.ee.connectors.api.IControllerServices;
+import com.singularity.ee.connectors.entity.api.IProperty;
+
+/**
+ * The settings of a machine descriptor, resolved from its properties.
+ */
+public class MachineSettings {
+
+    private final String roleInstanceName;
+    private final String osImage;
+    private final String size;
+    private final String adminUserName;
+    private final String adminUserPassword;
+
+    public MachineSettings(String roleInstanceName, String osImage, String size, String adminUserName, String adminUserPassword) {
+        this.roleInstanceName = roleInstanceName;
+        this.osImage = osImage;
+        this.size = size;
+        this.adminUserName = adminUserName;
+        this.adminUserPassword = adminUserPassword;
+    }
+
+    public static MachineSettings from(IProperty[] properties, IControllerServices controllerServices) {
+        return new MachineSettings(
+                Utils.getRoleInstanceName(properties, controllerServices),
+                Utils.getOsImage(properties, controllerServices),
+                Utils.getSize(properties, controllerServices),
+                Utils.getAdminUserName(properties, controllerServices),
+                Utils.getAdminUserPassword(properties, controllerServices));
+    }
+
+    public String getRoleInstanceName() {
+        return roleInstanceName;
+    }
+
+    /**
+     * The OS image label as configured, resolved against the image catalog when the machine is created.
+     */
+    public String getOsImage() {
+        return osImage;
+    }
+
+    public String getSize() {
+        return size;
+    }
+
+    public String getAdminUserName() {
+        return adminUserName;
+    }
+
+    public String getAdminUserPassword() {
+        return adminUserPassword;
+    }
+}
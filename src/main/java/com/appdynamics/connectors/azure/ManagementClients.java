@@ -0,0 +1,71 @@
+/*
+ *   Copyright 2018. AppDynamics LLC and its affiliates.
+ *   All Rights Reserved.
+ *   This is unpublished proprietary source code of AppDynamics LLC and its affiliates.
+ *   The copyright notice above does not evidence any actual or intended publication of such source code.
+ *
+ */
+package com.appdynamics.connectors.azure;
+
+import com.microsoft.windowsazure.Configuration;
+import com.microsoft.windowsazure.management.compute.ComputeManagementClient;
+import com.microsoft.windowsazure.management.storage.StorageManagementClient;
+
+/**
+ * The management configuration and clients built for one set of credentials.
+ */
+public class ManagementClients {
+
+    private final String subscriptionId;
+    private final Configuration configuration;
+    private final ComputeManagementClient computeManagementClient;
+    private final StorageManagementClient storageManagementClient;
+    private final ConnectionPool connectionPool;
+    private final String keyStoreLocation;
+    private volatile long lastAccess = System.currentTimeMillis();
+
+    public ManagementClients(String subscriptionId, Configuration configuration, ComputeManagementClient computeManagementClient,
+                             StorageManagementClient storageManagementClient, ConnectionPool connectionPool, String keyStoreLocation) {
+        this.subscriptionId = subscriptionId;
+        this.configuration = configuration;
+        this.computeManagementClient = computeManagementClient;
+        this.storageManagementClient = storageManagementClient;
+        this.connectionPool = connectionPool;
+        this.keyStoreLocation = keyStoreLocation;
+    }
+
+    public String getSubscriptionId() {
+        return subscriptionId;
+    }
+
+    public Configuration getConfiguration() {
+        return configuration;
+    }
+
+    public ComputeManagementClient getComputeManagementClient() {
+        return computeManagementClient;
+    }
+
+    public StorageManagementClient getStorageManagementClient() {
+        return storageManagementClient;
+    }
+
+    public ConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+
+    /**
+     * The key store file the clients were built from.
+     */
+    public String getKeyStoreLocation() {
+        return keyStoreLocation;
+    }
+
+    void touch() {
+        lastAccess = System.currentTimeMillis();
+    }
+
+    boolean isIdleLongerThan(long idleMillis) {
+        return System.currentTimeMillis() - lastAccess > idleMillis;
+    }
+}
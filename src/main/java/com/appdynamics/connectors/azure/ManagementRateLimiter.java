@@ -0,0 +1,109 @@
+/*
+ *   Copyright 2018. AppDynamics LLC and its affiliates.
+ *   All Rights Reserved.
+ *   This is unpublished proprietary source code of AppDynamics LLC and its affiliates.
+ *   The copyright notice above does not evidence any actual or intended publication of such source code.
+ *
+ */
+package com.appdynamics.connectors.azure;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Paces management API calls with one token bucket per subscription, since Azure throttles per subscription. A
+ * throttled response carrying a retry-after hint pauses every caller of that subscription until the hint expired.
+ */
+public class ManagementRateLimiter {
+
+    private static final ManagementRateLimiter INSTANCE = new ManagementRateLimiter(
+            Double.parseDouble(System.getProperty("appdynamics.azure.management.requests.per.second", "10")),
+            Integer.getInteger("appdynamics.azure.management.requests.burst", 20));
+
+    private final ConcurrentMap<String, TokenBucket> subscriptionVsBucket = new ConcurrentHashMap<String, TokenBucket>();
+
+    private final double permitsPerSecond;
+    private final int burst;
+
+    private final AtomicLong acquisitions = new AtomicLong();
+    private final AtomicLong delayedAcquisitions = new AtomicLong();
+
+    ManagementRateLimiter(double permitsPerSecond, int burst) {
+        this.permitsPerSecond = permitsPerSecond;
+        this.burst = burst;
+    }
+
+    public static ManagementRateLimiter getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Blocks until the subscription may issue another management call.
+     */
+    public void acquire(String subscriptionId) throws InterruptedException {
+        acquisitions.incrementAndGet();
+        long waitMillis = getBucket(subscriptionId).reserve();
+        if (waitMillis > 0) {
+            delayedAcquisitions.incrementAndGet();
+            Thread.sleep(waitMillis);
+        }
+    }
+
+    /**
+     * Holds back every call of the subscription until the given time, used for retry-after hints.
+     */
+    public void deferUntil(String subscriptionId, long timeMillis) {
+        getBucket(subscriptionId).deferUntil(timeMillis);
+    }
+
+    public long getAcquisitions() {
+        return acquisitions.get();
+    }
+
+    public long getDelayedAcquisitions() {
+        return delayedAcquisitions.get();
+    }
+
+    private TokenBucket getBucket(String subscriptionId) {
+        TokenBucket bucket = subscriptionVsBucket.get(subscriptionId);
+        if (bucket == null) {
+            TokenBucket created = new TokenBucket(permitsPerSecond, burst);
+            bucket = subscriptionVsBucket.putIfAbsent(subscriptionId, created);
+            if (bucket == null) {
+                bucket = created;
+            }
+        }
+        return bucket;
+    }
+
+    private static class TokenBucket {
+
+        private final double permitsPerMilli;
+        private final double capacity;
+        private double tokens;
+        private long lastRefill = System.currentTimeMillis();
+        private long deferredUntil;
+
+        TokenBucket(double permitsPerSecond, int capacity) {
+            this.permitsPerMilli = permitsPerSecond / 1000;
+            this.capacity = Math.max(1, capacity);
+            this.tokens = this.capacity;
+        }
+
+        //Takes a token right away and returns how long the caller has to wait for it, so waiters queue up in order
+        synchronized long reserve() {
+            long now = System.currentTimeMillis();
+            tokens = Math.min(capacity, tokens + (now - lastRefill) * permitsPerMilli);
+            lastRefill = now;
+            tokens -= 1;
+
+            long waitMillis = tokens >= 0 ? 0 : (long) Math.ceil(-tokens / permitsPerMilli);
+            return Math.max(waitMillis, deferredUntil - now);
+        }
+
+        synchronized void deferUntil(long timeMillis) {
+            deferredUntil = Math.max(deferredUntil, timeMillis);
+        }
+    }
+}
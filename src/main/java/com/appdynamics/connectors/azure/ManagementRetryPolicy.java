@@ -0,0 +1,92 @@
+/*
+ *   Copyright 2018. AppDynamics LLC and its affiliates.
+ *   All Rights Reserved.
+ *   This is unpublished proprietary source code of AppDynamics LLC and its affiliates.
+ *   The copyright notice above does not evidence any actual or intended publication of such source code.
+ *
+ */
+package com.appdynamics.connectors.azure;
+
+import com.microsoft.windowsazure.exception.ServiceException;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides which failed management calls are worth another attempt and how long to wait before it. Throttled calls
+ * were rejected before Azure did anything and are always retried, other transient failures only for read calls, as a
+ * create or delete may have been accepted before the connection broke.
+ */
+public class ManagementRetryPolicy {
+
+    private static final ManagementRetryPolicy INSTANCE = new ManagementRetryPolicy(
+            Integer.getInteger("appdynamics.azure.management.retry.max.attempts", 4),
+            Long.getLong("appdynamics.azure.management.retry.base.millis", 500),
+            Long.getLong("appdynamics.azure.management.retry.max.millis", 30 * 1000));
+
+    private final Random random = new Random();
+
+    private final int maxAttempts;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+
+    private final AtomicLong throttled = new AtomicLong();
+    private final AtomicLong retried = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    ManagementRetryPolicy(int maxAttempts, long baseDelayMillis, long maxDelayMillis) {
+        this.maxAttempts = maxAttempts;
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    public static ManagementRetryPolicy getInstance() {
+        return INSTANCE;
+    }
+
+    public boolean isThrottled(Throwable t) {
+        return t instanceof ServiceException && AzureErrors.isThrottled(t);
+    }
+
+    public boolean isTransient(Throwable t) {
+        return t instanceof IOException || (t instanceof ServiceException && AzureErrors.isServerError(t));
+    }
+
+    /**
+     * Whether the call that failed with the given error on the given attempt, counted from 1, should be retried.
+     */
+    public boolean shouldRetry(Throwable t, int attempt, boolean readOnly) {
+        boolean isThrottled = isThrottled(t);
+        if (isThrottled) {
+            throttled.incrementAndGet();
+        }
+        if (attempt < maxAttempts && (isThrottled || (readOnly && isTransient(t)))) {
+            retried.incrementAndGet();
+            return true;
+        }
+        failed.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Exponential backoff with jitter, so callers throttled together do not come back together.
+     */
+    public long getDelayMillis(int attempt) {
+        long ceiling = Math.min(maxDelayMillis, baseDelayMillis << Math.min(attempt - 1, 16));
+        synchronized (random) {
+            return ceiling / 2 + (long) (random.nextDouble() * (ceiling / 2));
+        }
+    }
+
+    public long getThrottled() {
+        return throttled.get();
+    }
+
+    public long getRetried() {
+        return retried.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+}
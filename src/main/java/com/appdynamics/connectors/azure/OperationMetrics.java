@@ -0,0 +1,145 @@
+/*
+ *   Copyright 2018. AppDynamics LLC and its affiliates.
+ *   All Rights Reserved.
+ *   This is unpublished proprietary source code of AppDynamics LLC and its affiliates.
+ *   The copyright notice above does not evidence any actual or intended publication of such source code.
+ *
+ */
+package com.appdynamics.connectors.azure;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histogram, in-flight gauge and error count of one operation. Latencies go into fixed buckets, so recording
+ * is a handful of atomic increments and percentiles are reported as the upper bound of their bucket.
+ */
+public class OperationMetrics implements OperationMetricsMBean {
+
+    private static final long[] BUCKET_BOUNDS_MILLIS = {1, 2, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000,
+            30000, 60000, 300000, Long.MAX_VALUE};
+
+    private final String operation;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_BOUNDS_MILLIS.length);
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong errorCount = new AtomicLong();
+    private final AtomicLong totalMillis = new AtomicLong();
+    private final AtomicLong maxMillis = new AtomicLong();
+
+    OperationMetrics(String operation) {
+        this.operation = operation;
+    }
+
+    void started() {
+        inFlight.incrementAndGet();
+    }
+
+    void stopped(long elapsedMillis) {
+        inFlight.decrementAndGet();
+        count.incrementAndGet();
+        totalMillis.addAndGet(elapsedMillis);
+        buckets.incrementAndGet(bucketOf(elapsedMillis));
+
+        long max = maxMillis.get();
+        while (elapsedMillis > max && !maxMillis.compareAndSet(max, elapsedMillis)) {
+            max = maxMillis.get();
+        }
+    }
+
+    void failed() {
+        errorCount.incrementAndGet();
+    }
+
+    @Override
+    public String getOperation() {
+        return operation;
+    }
+
+    @Override
+    public long getCount() {
+        return count.get();
+    }
+
+    @Override
+    public long getErrorCount() {
+        return errorCount.get();
+    }
+
+    @Override
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    @Override
+    public double getMeanMillis() {
+        long n = count.get();
+        return n == 0 ? 0 : (double) totalMillis.get() / n;
+    }
+
+    @Override
+    public long getMaxMillis() {
+        return maxMillis.get();
+    }
+
+    @Override
+    public long getP50Millis() {
+        return percentile(0.50);
+    }
+
+    @Override
+    public long getP95Millis() {
+        return percentile(0.95);
+    }
+
+    @Override
+    public long getP99Millis() {
+        return percentile(0.99);
+    }
+
+    @Override
+    public long[] getBucketBoundsMillis() {
+        return BUCKET_BOUNDS_MILLIS.clone();
+    }
+
+    @Override
+    public long[] getBucketCounts() {
+        long[] counts = new long[buckets.length()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = buckets.get(i);
+        }
+        return counts;
+    }
+
+    private long percentile(double fraction) {
+        long[] counts = getBucketCounts();
+        long total = 0;
+        for (long c : counts) {
+            total += c;
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(total * fraction);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(BUCKET_BOUNDS_MILLIS[i], maxMillis.get());
+            }
+        }
+        return maxMillis.get();
+    }
+
+    private static int bucketOf(long elapsedMillis) {
+        for (int i = 0; i < BUCKET_BOUNDS_MILLIS.length; i++) {
+            if (elapsedMillis <= BUCKET_BOUNDS_MILLIS[i]) {
+                return i;
+            }
+        }
+        return BUCKET_BOUNDS_MILLIS.length - 1;
+    }
+}
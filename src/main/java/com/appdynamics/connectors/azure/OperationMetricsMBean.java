@@ -0,0 +1,33 @@
+/*
+ *   Copyright 2018. AppDynamics LLC and its affiliates.
+ *   All Rights Reserved.
+ *   This is unpublished proprietary source code of AppDynamics LLC and its affiliates.
+ *   The copyright notice above does not evidence any actual or intended publication of such source code.
+ *
+ */
+package com.appdynamics.connectors.azure;
+
+public interface OperationMetricsMBean {
+
+    String getOperation();
+
+    long getCount();
+
+    long getErrorCount();
+
+    int getInFlight();
+
+    double getMeanMillis();
+
+    long getMaxMillis();
+
+    long getP50Millis();
+
+    long getP95Millis();
+
+    long getP99Millis();
+
+    long[] getBucketBoundsMillis();
+
+    long[] getBucketCounts();
+}
@@ -0,0 +1,38 @@
+/*
+ *   Copyright 2018. AppDynamics LLC and its affiliates.
+ *   All Rights Reserved.
+ *   This is unpublished proprietary source code of AppDynamics LLC and its affiliates.
+ *   The copyright notice above does not evidence any actual or intended publication of such source code.
+ *
+ */
+package com.appdynamics.connectors.azure;
+
+/**
+ * Times one call of an operation. Stop it in a finally block, and pass any failure through {@link #failed} on the way
+ * out: {@code throw timer.failed(e);}
+ */
+public class OperationTimer {
+
+    private final OperationMetrics metrics;
+    private final long startNanos = System.nanoTime();
+    private boolean stopped;
+
+    OperationTimer(OperationMetrics metrics) {
+        this.metrics = metrics;
+        metrics.started();
+    }
+
+    public <E extends Throwable> E failed(E error) {
+        metrics.failed();
+        ConnectorMetrics.getInstance().recordError(metrics.getOperation(), error);
+        return error;
+    }
+
+    public void stop() {
+        if (stopped) {
+            return;
+        }
+        stopped = true;
+        metrics.stopped((System.nanoTime() - startNanos) / 1000000);
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ *   Copyright 2018. AppDynamics LLC and its affiliates.
+ *   All Rights Reserved.
+ *   This is unpublished proprietary source code of AppDynamics LLC and its affiliates.
+ *   The copyright notice above does not evidence any actual or intended publication of such source code.
+ *
+ */
+package com.appdynamics.connectors.azure;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.microsoft.windowsazure.core.OperationResponse;
+import com.microsoft.windowsazure.core.OperationStatus;
+import com.microsoft.windowsazure.core.OperationStatusResponse;
+import com.microsoft.windowsazure.management.compute.ComputeManagementClient;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps track of the long-running operations the connector submits with the SDK's begin-style calls. A single shared
+ * poller asks Azure for the status of every in-flight request id, so no Controller thread has to wait for a VM to
+ * boot or to be torn down. The latest operation per role stays queryable for a while after it finished so
+ * refreshMachineState can report it.
+ */
+public class OperationTracker {
+
+    private static final Logger logger = Logger.getLogger(OperationTracker.class.getName());
+
+    private static final OperationTracker INSTANCE = new OperationTracker(
+            Long.getLong("appdynamics.azure.operation.poll.interval.millis", 5 * 1000),
+            Long.getLong("appdynamics.azure.operation.timeout.millis", 60 * 60 * 1000),
+            Long.getLong("appdynamics.azure.operation.retention.millis", 10 * 60 * 1000));
+
+    private final ScheduledExecutorService poller = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("azure-operation-poller-%d").build());
+
+    private final ConcurrentMap<String, TrackedOperation> inFlight = new ConcurrentHashMap<String, TrackedOperation>();
+
+    private final ConcurrentMap<String, TrackedOperation> latestByRole = new ConcurrentHashMap<String, TrackedOperation>();
+
+    private final long operationTimeoutMillis;
+    private final long retentionMillis;
+
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong succeeded = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    OperationTracker(long pollIntervalMillis, long operationTimeoutMillis, long retentionMillis) {
+        this.operationTimeoutMillis = operationTimeoutMillis;
+        this.retentionMillis = retentionMillis;
+        poller.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    pollAll();
+                } catch (Throwable t) {
+                    logger.log(Level.WARNING, "Polling long-running operations failed", t);
+                }
+            }
+        }, pollIntervalMillis, pollIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public static OperationTracker getInstance() {
+        return INSTANCE;
+    }
+
+    public TrackedOperation track(TrackedOperation.Kind kind, ComputeManagementClient computeClient, OperationResponse accepted,
+                                  String hostedServiceName, String deploymentName, List<String> roleInstanceNames) {
+        TrackedOperation operation = new TrackedOperation(accepted.getRequestId(), kind, computeClient, hostedServiceName,
+                deploymentName, Collections.unmodifiableList(roleInstanceNames));
+        submitted.incrementAndGet();
+        for (String roleInstanceName : roleInstanceNames) {
+            latestByRole.put(roleKey(computeClient, hostedServiceName, deploymentName, roleInstanceName), operation);
+        }
+
+        if (operation.getRequestId() == null) {
+            logger.log(Level.FINER, kind + " operation on " + deploymentName + " returned no request id, treating it as completed");
+            finish(operation, OperationStatus.SUCCEEDED, null);
+        } else {
+            logger.log(Level.FINER, kind + " operation " + operation.getRequestId() + " accepted for " + roleInstanceNames);
+            inFlight.put(operation.getRequestId(), operation);
+        }
+        return operation;
+    }
+
+    public TrackedOperation track(TrackedOperation.Kind kind, ComputeManagementClient computeClient, OperationResponse accepted,
+                                  String hostedServiceName, String deploymentName, String roleInstanceName) {
+        return track(kind, computeClient, accepted, hostedServiceName, deploymentName, Collections.singletonList(roleInstanceName));
+    }
+
+    /**
+     * The most recent operation submitted for the role, or null if there is none within the retention period.
+     */
+    public TrackedOperation getOperation(ComputeManagementClient computeClient, String hostedServiceName, String deploymentName, String roleInstanceName) {
+        return latestByRole.get(roleKey(computeClient, hostedServiceName, deploymentName, roleInstanceName));
+    }
+
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    /**
+     * The operations still in progress on the deployment, which keep Azure from starting another one on it.
+     */
+    public List<TrackedOperation> getInFlight(ComputeManagementClient computeClient, String hostedServiceName, String deploymentName) {
+        String subscriptionId = Utils.getSubscriptionId(computeClient);
+        List<TrackedOperation> operations = new ArrayList<TrackedOperation>();
+        for (TrackedOperation operation : inFlight.values()) {
+            if (hostedServiceName.equals(operation.getHostedServiceName()) && deploymentName.equals(operation.getDeploymentName())
+                    && subscriptionId.equals(Utils.getSubscriptionId(operation.getComputeClient()))) {
+                operations.add(operation);
+            }
+        }
+        return operations;
+    }
+
+    public int getInFlightCount(ComputeManagementClient computeClient, String hostedServiceName, String deploymentName) {
+        return getInFlight(computeClient, hostedServiceName, deploymentName).size();
+    }
+
+    public long getSubmitted() {
+        return submitted.get();
+    }
+
+    public long getSucceeded() {
+        return succeeded.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    void pollAll() {
+        for (TrackedOperation operation : inFlight.values()) {
+            poll(operation);
+        }
+        purgeCompleted();
+    }
+
+    private void poll(TrackedOperation operation) {
+        boolean timedOut = System.currentTimeMillis() - operation.getSubmittedAt() > operationTimeoutMillis;
+        try {
+            OperationStatusResponse response = operation.getComputeClient().getOperationStatus(operation.getRequestId());
+            if (response.getStatus() != null && response.getStatus() != OperationStatus.INPROGRESS) {
+                String errorMessage = response.getError() != null ? response.getError().getCode() + ": " + response.getError().getMessage() : null;
+                finish(operation, response.getStatus(), errorMessage);
+                return;
+            }
+        } catch (Exception e) {
+            logger.log(Level.FINE, "Unable to get status of operation " + operation.getRequestId(), e);
+        }
+
+        if (timedOut) {
+            finish(operation, OperationStatus.FAILED, "Operation did not complete within " + operationTimeoutMillis + " ms");
+        }
+    }
+
+    private void finish(TrackedOperation operation, OperationStatus status, String errorMessage) {
+        if (operation.getRequestId() != null) {
+            inFlight.remove(operation.getRequestId());
+        }
+        if (status == OperationStatus.SUCCEEDED) {
+            succeeded.incrementAndGet();
+            logger.log(Level.FINER, operation.getKind() + " operation " + operation.getRequestId() + " succeeded");
+        } else {
+            failed.incrementAndGet();
+            logger.log(Level.WARNING, operation.getKind() + " operation " + operation.getRequestId() + " for "
+                    + operation.getRoleInstanceNames() + " failed: " + errorMessage);
+        }
+        operation.complete(status, errorMessage);
+        DeploymentStatePoller.getInstance().invalidate(operation.getComputeClient(), operation.getHostedServiceName(), operation.getDeploymentName());
+    }
+
+    private void purgeCompleted() {
+        Iterator<Map.Entry<String, TrackedOperation>> iterator = latestByRole.entrySet().iterator();
+        while (iterator.hasNext()) {
+            TrackedOperation operation = iterator.next().getValue();
+            if (!operation.isInProgress() && System.currentTimeMillis() - operation.getCompletedAt() > retentionMillis) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private static String roleKey(ComputeManagementClient computeClient, String hostedServiceName, String deploymentName, String roleInstanceName) {
+        return Utils.getSubscriptionId(computeClient) + "/" + hostedServiceName + "/" + deploymentName + "/" + roleInstanceName;
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ *   Copyright 2018. AppDynamics LLC and its affiliates.
+ *   All Rights Reserved.
+ *   This is unpublished proprietary source code of AppDynamics LLC and its affiliates.
+ *   The copyright notice above does not evidence any actual or intended publication of such source code.
+ *
+ */
+package com.appdynamics.connectors.azure;
+
+import com.microsoft.windowsazure.management.compute.models.ConfigurationSetTypes;
+
+/**
+ * An OS image VMs can be created from, either listed by the subscription or one of the built-in {@link AzureOsImage}s.
+ */
+public class OsImage {
+
+    private final String name;
+    private final String label;
+    private final String osFamily;
+    private final String configSetType;
+
+    public OsImage(String name, String label, String osFamily) {
+        this.name = name;
+        this.label = label;
+        this.osFamily = osFamily;
+        if ("Windows".equalsIgnoreCase(osFamily)) {
+            this.configSetType = ConfigurationSetTypes.WINDOWSPROVISIONINGCONFIGURATION;
+        } else {
+            this.configSetType = ConfigurationSetTypes.LINUXPROVISIONINGCONFIGURATION;
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    public String getOsFamily() {
+        return osFamily;
+    }
+
+    public String getConfigSetType() {
+        return configSetType;
+    }
+
+    @Override
+    public String toString() {
+        return label + " (" + name + ")";
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ *   Copyright 2018. AppDynamics LLC and its affiliates.
+ *   All Rights Reserved.
+ *   This is unpublished proprietary source code of AppDynamics LLC and its affiliates.
+ *   The copyright notice above does not evidence any actual or intended publication of such source code.
+ *
+ */
+package com.appdynamics.connectors.azure;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.microsoft.windowsazure.management.compute.ComputeManagementClient;
+import com.microsoft.windowsazure.management.compute.models.VirtualMachineOSImageListResponse;
+import com.singularity.ee.connectors.api.ConnectorException;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The OS images available to each subscription, listed from Azure in the background and indexed by label, image
+ * family and name. Lookups are served from the last listing, which is refreshed once it is older than the TTL; until
+ * the first listing arrives, or while Azure cannot be reached, the built-in {@link AzureOsImage}s are used. Only a
+ * label that is neither listed nor built in waits for a listing in flight.
+ */
+public class OsImageCatalog {
+
+    private static final Logger logger = Logger.getLogger(OsImageCatalog.class.getName());
+
+    private static final OsImageCatalog INSTANCE = new OsImageCatalog();
+
+    private static final long TTL_MILLIS = Long.getLong("appdynamics.azure.image.catalog.ttl.millis", 6 * 60 * 60 * 1000);
+
+    private static final long RETRY_MILLIS = Long.getLong("appdynamics.azure.image.catalog.retry.millis", 60 * 1000);
+
+    private static final long WAIT_MILLIS = Long.getLong("appdynamics.azure.image.catalog.wait.millis", 30 * 1000);
+
+    private final ExecutorService loader = Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("azure-image-catalog-%d").build());
+
+    private final ConcurrentMap<String, Catalog> subscriptionVsCatalog = new ConcurrentHashMap<String, Catalog>();
+
+    private final AtomicLong loads = new AtomicLong();
+    private final AtomicLong loadFailures = new AtomicLong();
+    private final AtomicLong fallbacks = new AtomicLong();
+
+    private OsImageCatalog() {
+
+    }
+
+    public static OsImageCatalog getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Resolves an image by its label, image family or name.
+     */
+    public OsImage getImage(ComputeManagementClient client, String label) throws ConnectorException {
+        Catalog catalog = getCatalog(client);
+
+        OsImage image = catalog.find(label);
+        if (image != null) {
+            return image;
+        }
+
+        AzureOsImage builtIn = AzureOsImage.findImage(label);
+        if (builtIn != null) {
+            fallbacks.incrementAndGet();
+            return builtIn.toOsImage();
+        }
+
+        if (catalog.awaitLoading()) {
+            image = catalog.find(label);
+        }
+        if (image == null) {
+            throw new ConnectorException("No OS Image found for Label :[" + label + "]");
+        }
+        return image;
+    }
+
+    /**
+     * Starts listing the subscription's images unless a listing is already in flight.
+     */
+    public void refresh(ComputeManagementClient client) {
+        getCatalog(client).load(client);
+    }
+
+    public long getLoads() {
+        return loads.get();
+    }
+
+    public long getLoadFailures() {
+        return loadFailures.get();
+    }
+
+    public long getFallbacks() {
+        return fallbacks.get();
+    }
+
+    private Catalog getCatalog(ComputeManagementClient client) {
+        String subscriptionId = Utils.getSubscriptionId(client);
+        Catalog catalog = subscriptionVsCatalog.get(subscriptionId);
+        if (catalog == null) {
+            Catalog created = new Catalog(subscriptionId);
+            catalog = subscriptionVsCatalog.putIfAbsent(subscriptionId, created);
+            if (catalog == null) {
+                catalog = created;
+            }
+        }
+        if (catalog.isStale()) {
+            catalog.load(client);
+        }
+        return catalog;
+    }
+
+    private static Map<String, OsImage> index(VirtualMachineOSImageListResponse response) {
+        Map<String, OsImage> index = new HashMap<String, OsImage>();
+        //Several versions of an image share label and family, the most recently published one wins
+        Map<String, Calendar> published = new HashMap<String, Calendar>();
+        for (VirtualMachineOSImageListResponse.VirtualMachineOSImage listed : response.getImages()) {
+            OsImage image = new OsImage(listed.getName(), listed.getLabel(), listed.getOperatingSystemType());
+            index.put(listed.getName(), image);
+            putLatest(index, published, listed.getLabel(), image, listed.getPublishedDate());
+            putLatest(index, published, listed.getImageFamily(), image, listed.getPublishedDate());
+        }
+        return index;
+    }
+
+    private static void putLatest(Map<String, OsImage> index, Map<String, Calendar> published, String key, OsImage image, Calendar publishedDate) {
+        if (key == null) {
+            return;
+        }
+        Calendar current = published.get(key);
+        if (!index.containsKey(key) || (publishedDate != null && (current == null || publishedDate.after(current)))) {
+            index.put(key, image);
+            published.put(key, publishedDate);
+        }
+    }
+
+    private class Catalog {
+
+        private final String subscriptionId;
+        private final AtomicReference<FutureTask<Void>> loading = new AtomicReference<FutureTask<Void>>();
+        private volatile Map<String, OsImage> images;
+        private volatile long nextLoadAt;
+
+        Catalog(String subscriptionId) {
+            this.subscriptionId = subscriptionId;
+        }
+
+        OsImage find(String label) {
+            Map<String, OsImage> current = images;
+            return current == null || label == null ? null : current.get(label);
+        }
+
+        boolean isStale() {
+            return System.currentTimeMillis() >= nextLoadAt;
+        }
+
+        void load(final ComputeManagementClient client) {
+            FutureTask<Void> current = loading.get();
+            if (current != null && !current.isDone()) {
+                return;
+            }
+            FutureTask<Void> task = new FutureTask<Void>(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Map<String, OsImage> listed = index(client.getVirtualMachineOSImagesOperations().list());
+                        images = listed;
+                        nextLoadAt = System.currentTimeMillis() + TTL_MILLIS;
+                        loads.incrementAndGet();
+                        logger.log(Level.FINER, "Listed " + listed.size() + " OS image keys for subscription " + subscriptionId);
+                    } catch (Exception e) {
+                        nextLoadAt = System.currentTimeMillis() + RETRY_MILLIS;
+                        loadFailures.incrementAndGet();
+                        logger.log(Level.WARNING, "Unable to list the OS images of subscription " + subscriptionId + ", using the built-in images", e);
+                    }
+                }
+            }, null);
+            if (loading.compareAndSet(current, task)) {
+                //keeps further lookups from queueing listings until this one finished
+                nextLoadAt = Long.MAX_VALUE;
+                loader.execute(task);
+            }
+        }
+
+        boolean awaitLoading() throws ConnectorException {
+            FutureTask<Void> current = loading.get();
+            if (current == null) {
+                return false;
+            }
+            try {
+                current.get(WAIT_MILLIS, TimeUnit.MILLISECONDS);
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ConnectorException("Interrupted while listing the OS images", e);
+            } catch (ExecutionException e) {
+                return false;
+            } catch (TimeoutException e) {
+                logger.log(Level.WARNING, "Listing the OS images of subscription " + subscriptionId + " is taking longer than " + WAIT_MILLIS + " ms");
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ *   Copyright 2018. AppDynamics LLC and its affiliates.
+ *   All Rights Reserved.
+ *   This is unpublished proprietary source code of AppDynamics LLC and its affiliates.
+ *   The copyright notice above does not evidence any actual or intended publication of such source code.
+ *
+ */
+package com.appdynamics.connectors.azure;
+
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.singularity.ee.connectors.api.ConnectorException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The provisioning steps of a creation and what each of them waits for. A step starts on a shared, bounded pool as
+ * soon as the steps it depends on completed, so independent steps run side by side, and fails without running when
+ * one of them failed. A step that waits for Azure to finish something in the background returns a future instead of
+ * blocking, so the pool threads only make calls and only the caller of {@link #await} waits. Every step is timed as
+ * the operation {@code provision/<step>}.
+ */
+public class ProvisioningPlan {
+
+    private static final int THREADS = Integer.getInteger("appdynamics.azure.provisioning.threads", 16);
+
+    private static final ListeningExecutorService executor;
+
+    static {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(THREADS, THREADS, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("azure-provisioning-%d").build());
+        pool.allowCoreThreadTimeOut(true);
+        executor = MoreExecutors.listeningDecorator(pool);
+    }
+
+    private final String target;
+    private final Map<String, ListenableFuture<Void>> steps = new LinkedHashMap<String, ListenableFuture<Void>>();
+
+    /**
+     * @param target what is provisioned, for error messages
+     */
+    public ProvisioningPlan(String target) {
+        this.target = target;
+    }
+
+    /**
+     * Adds a step to run once the named steps, which must have been added before, completed.
+     */
+    public ProvisioningPlan step(final String name, final Callable<Void> work, String... dependsOn) {
+        ListenableFuture<Void> step = Futures.transform(dependencies(name, dependsOn), new AsyncFunction<List<Void>, Void>() {
+            @Override
+            public ListenableFuture<Void> apply(List<Void> input) {
+                return executor.submit(timed(name, work));
+            }
+        });
+        steps.put(name, step);
+        return this;
+    }
+
+    /**
+     * Adds a step whose work only starts something and returns its completion, which ends the step. Runs once the
+     * named steps, which must have been added before, completed.
+     */
+    public ProvisioningPlan asyncStep(final String name, final Callable<ListenableFuture<Void>> work, String... dependsOn) {
+        ListenableFuture<Void> step = Futures.transform(dependencies(name, dependsOn), new AsyncFunction<List<Void>, Void>() {
+            @Override
+            public ListenableFuture<Void> apply(List<Void> input) {
+                return Futures.dereference(executor.submit(timedAsync(name, work)));
+            }
+        });
+        steps.put(name, step);
+        return this;
+    }
+
+    /**
+     * Waits until every step completed, and fails with the first step failure.
+     */
+    public void await() throws ConnectorException {
+        try {
+            Futures.allAsList(steps.values()).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ConnectorException("Interrupted while provisioning " + target, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof ConnectorException) {
+                throw (ConnectorException) cause;
+            }
+            throw new ConnectorException("Unable to provision " + target, cause);
+        }
+    }
+
+    private ListenableFuture<List<Void>> dependencies(String name, String... dependsOn) {
+        List<ListenableFuture<Void>> dependencies = new ArrayList<ListenableFuture<Void>>();
+        for (String dependency : dependsOn) {
+            ListenableFuture<Void> step = steps.get(dependency);
+            if (step == null) {
+                throw new IllegalArgumentException("Step " + name + " depends on unknown step " + dependency);
+            }
+            dependencies.add(step);
+        }
+        return Futures.allAsList(dependencies);
+    }
+
+    private static Callable<Void> timed(final String name, final Callable<Void> work) {
+        return new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                OperationTimer timer = ConnectorMetrics.getInstance().start("provision/" + name);
+                try {
+                    return work.call();
+                } catch (Exception e) {
+                    throw timer.failed(e);
+                } finally {
+                    timer.stop();
+                }
+            }
+        };
+    }
+
+    //The timer runs until the returned completion, not only the call that started it
+    private static Callable<ListenableFuture<Void>> timedAsync(final String name, final Callable<ListenableFuture<Void>> work) {
+        return new Callable<ListenableFuture<Void>>() {
+            @Override
+            public ListenableFuture<Void> call() throws Exception {
+                final OperationTimer timer = ConnectorMetrics.getInstance().start("provision/" + name);
+                ListenableFuture<Void> completion = null;
+                try {
+                    completion = work.call();
+                } catch (Exception e) {
+                    throw timer.failed(e);
+                } finally {
+                    if (completion == null) {
+                        timer.stop();
+                    }
+                }
+                Futures.addCallback(completion, new FutureCallback<Void>() {
+                    @Override
+                    public void onSuccess(Void result) {
+                        timer.stop();
+                    }
+
+                    @Override
+                    public void onFailure(Throwable t) {
+                        timer.failed(t);
+                        timer.stop();
+                    }
+                });
+                return completion;
+            }
+        };
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ *   Copyright 2018. AppDynamics LLC and its affiliates.
+ *   All Rights Reserved.
+ *   This is unpublished proprietary source code of AppDynamics LLC and its affiliates.
+ *   The copyright notice above does not evidence any actual or intended publication of such source code.
+ *
+ */
+package com.appdynamics.connectors.azure;
+
+import com.microsoft.windowsazure.core.pipeline.filter.ServiceRequestContext;
+import com.microsoft.windowsazure.core.pipeline.filter.ServiceResponseContext;
+import com.microsoft.windowsazure.core.pipeline.filter.ServiceResponseFilter;
+import com.microsoft.windowsazure.exception.ServiceException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Wraps a management client, and the operation groups it hands out, so every remote call goes through the
+ * subscription's rate limiter and is retried according to the {@link ManagementRetryPolicy}. Remote calls are the
+ * methods declaring {@link ServiceException}; the original exception is rethrown once retries are exhausted, so
+ * callers keep their error handling. Each remote call, retries included, is timed in {@link ConnectorMetrics}.
+ */
+class RateLimitedInvocationHandler implements InvocationHandler {
+
+    private static final Logger logger = Logger.getLogger(RateLimitedInvocationHandler.class.getName());
+
+    private final Object target;
+    private final Class<?> type;
+    private final String subscriptionId;
+
+    private RateLimitedInvocationHandler(Object target, Class<?> type, String subscriptionId) {
+        this.target = target;
+        this.type = type;
+        this.subscriptionId = subscriptionId;
+    }
+
+    static <T> T wrap(Class<T> type, T target, String subscriptionId) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type},
+                new RateLimitedInvocationHandler(target, type, subscriptionId)));
+    }
+
+    /**
+     * Feeds retry-after hints of throttled responses into the subscription's rate limiter.
+     */
+    static ServiceResponseFilter retryAfterFilter(final String subscriptionId) {
+        return new ServiceResponseFilter() {
+            @Override
+            public void filter(ServiceRequestContext request, ServiceResponseContext response) {
+                if (response.getStatus() != 429 && response.getStatus() != 503) {
+                    return;
+                }
+                String retryAfter = response.getHeader("Retry-After");
+                if (retryAfter == null) {
+                    return;
+                }
+                try {
+                    long seconds = Long.parseLong(retryAfter.trim());
+                    ManagementRateLimiter.getInstance().deferUntil(subscriptionId, System.currentTimeMillis() + seconds * 1000);
+                } catch (NumberFormatException e) {
+                    logger.log(Level.FINER, "Ignoring Retry-After header " + retryAfter);
+                }
+            }
+        };
+    }
+
+    @Override
+    public Object invoke(Object proxy, final Method method, final Object[] args) throws Throwable {
+        if (isOperationGroup(method)) {
+            return rewrap(method.getReturnType(), invokeTarget(method, args));
+        }
+        if (!Arrays.asList(method.getExceptionTypes()).contains(ServiceException.class)) {
+            Object result = invokeTarget(method, args);
+            //FilterableService hands out a new client, which has to stay wrapped
+            if (method.getName().startsWith("with") && type.isInstance(result)) {
+                return rewrap(type, result);
+            }
+            return result;
+        }
+
+        return invokeTimed(type.getSimpleName() + "." + method.getName(), isReadOnly(method), new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                try {
+                    return invokeTarget(method, args);
+                } catch (Exception e) {
+                    throw e;
+                } catch (Error e) {
+                    throw e;
+                } catch (Throwable t) {
+                    throw new UndeclaredThrowableException(t);
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs a remote call made with the client itself instead of through one of its operations, such as a request
+     * sent over the client's HTTP pipeline, under the same rate limit, retries and timing. A client that is not
+     * wrapped is called directly.
+     */
+    static <T> T call(Object client, String operation, boolean readOnly, final RemoteCall<T> remoteCall) throws Exception {
+        if (!Proxy.isProxyClass(client.getClass()) || !(Proxy.getInvocationHandler(client) instanceof RateLimitedInvocationHandler)) {
+            return remoteCall.call(client);
+        }
+        final RateLimitedInvocationHandler handler = (RateLimitedInvocationHandler) Proxy.getInvocationHandler(client);
+        Object result = handler.invokeTimed(operation, readOnly, new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                return remoteCall.call(handler.target);
+            }
+        });
+        @SuppressWarnings("unchecked")
+        T typed = (T) result;
+        return typed;
+    }
+
+    interface RemoteCall<T> {
+
+        T call(Object target) throws Exception;
+    }
+
+    private Object invokeTimed(String operation, boolean readOnly, Callable<Object> call) throws Exception {
+        OperationTimer timer = ConnectorMetrics.getInstance().start(operation);
+        try {
+            return invokeWithRetry(operation, readOnly, call);
+        } catch (Exception e) {
+            throw timer.failed(e);
+        } catch (Error e) {
+            throw timer.failed(e);
+        } finally {
+            timer.stop();
+        }
+    }
+
+    private Object invokeWithRetry(String operation, boolean readOnly, Callable<Object> call) throws Exception {
+        ManagementRetryPolicy retryPolicy = ManagementRetryPolicy.getInstance();
+        for (int attempt = 1; ; attempt++) {
+            try {
+                ManagementRateLimiter.getInstance().acquire(subscriptionId);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ServiceException("Interrupted while waiting for the management API rate limit", e);
+            }
+
+            try {
+                return call.call();
+            } catch (Exception e) {
+                if (!retryPolicy.shouldRetry(e, attempt, readOnly)) {
+                    throw e;
+                }
+                long delayMillis = retryPolicy.getDelayMillis(attempt);
+                logger.log(Level.FINE, operation + " failed on attempt " + attempt + ", retrying in " + delayMillis + " ms: " + e.getMessage());
+                try {
+                    Thread.sleep(delayMillis);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private Object invokeTarget(Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private <T> T rewrap(Class<T> wrappedType, Object result) {
+        return result == null ? null : wrap(wrappedType, wrappedType.cast(result), subscriptionId);
+    }
+
+    private static boolean isOperationGroup(Method method) {
+        return method.getReturnType().isInterface() && method.getName().endsWith("Operations") && method.getParameterTypes().length == 0;
+    }
+
+    private static boolean isReadOnly(Method method) {
+        String name = method.getName();
+        return name.startsWith("get") || name.startsWith("list") || name.startsWith("check");
+    }
+}
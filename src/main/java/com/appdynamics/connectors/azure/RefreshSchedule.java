@@ -0,0 +1,119 @@
+/*
+ *   Copyright 2018. AppDynamics LLC and its affiliates.
+ *   All Rights Reserved.
+ *   This is unpublished proprietary source code of AppDynamics LLC and its affiliates.
+ *   The copyright notice above does not evidence any actual or intended publication of such source code.
+ *
+ */
+package com.appdynamics.connectors.azure;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.microsoft.windowsazure.management.compute.ComputeManagementClient;
+import com.singularity.ee.connectors.entity.api.MachineState;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides when the state of a machine has to be looked up in Azure again. Machines starting or stopping are looked up
+ * every few seconds; a machine found started or stopped is looked up less often each time its state is confirmed, up
+ * to a maximum interval. Refreshes in between are answered with the last observed state. Any operation the connector
+ * submits or sees complete for the machine makes its next refresh look it up again.
+ */
+public class RefreshSchedule {
+
+    private static final RefreshSchedule INSTANCE = new RefreshSchedule(
+            Long.getLong("appdynamics.azure.refresh.transitional.millis", 5 * 1000),
+            Long.getLong("appdynamics.azure.refresh.stable.min.millis", 15 * 1000),
+            Long.getLong("appdynamics.azure.refresh.stable.max.millis", 2 * 60 * 1000));
+
+    //machines no longer refreshed, such as terminated ones, are forgotten
+    private final Cache<String, Observation> roleVsObservation = CacheBuilder.newBuilder()
+            .expireAfterAccess(1, TimeUnit.HOURS)
+            .build();
+
+    private final long transitionalMillis;
+    private final long stableMinMillis;
+    private final long stableMaxMillis;
+
+    private final AtomicLong lookups = new AtomicLong();
+    private final AtomicLong cachedRefreshes = new AtomicLong();
+
+    RefreshSchedule(long transitionalMillis, long stableMinMillis, long stableMaxMillis) {
+        this.transitionalMillis = transitionalMillis;
+        this.stableMinMillis = stableMinMillis;
+        this.stableMaxMillis = Math.max(stableMinMillis, stableMaxMillis);
+    }
+
+    public static RefreshSchedule getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * The last observed state of the machine if it is not due for a lookup, otherwise null.
+     */
+    public MachineState getCachedState(ComputeManagementClient connector, String hostedServiceName, String deploymentName,
+                                       String roleInstanceName, TrackedOperation operation) {
+        Observation observation = roleVsObservation.getIfPresent(key(connector, hostedServiceName, deploymentName, roleInstanceName));
+        if (observation == null || System.currentTimeMillis() >= observation.nextLookupAt
+                || (operation != null && (operation.getSubmittedAt() > observation.observedAt || operation.getCompletedAt() > observation.observedAt))) {
+            lookups.incrementAndGet();
+            return null;
+        }
+        cachedRefreshes.incrementAndGet();
+        return observation.state;
+    }
+
+    /**
+     * How old a deployment snapshot may be to still tell something new about the machine.
+     */
+    public long getMaxSnapshotAge(ComputeManagementClient connector, String hostedServiceName, String deploymentName, String roleInstanceName) {
+        Observation observation = roleVsObservation.getIfPresent(key(connector, hostedServiceName, deploymentName, roleInstanceName));
+        return observation == null ? Long.MAX_VALUE : observation.intervalMillis;
+    }
+
+    /**
+     * Records the state found in a snapshot fetched at the given time, and schedules the next lookup.
+     */
+    public void record(ComputeManagementClient connector, String hostedServiceName, String deploymentName, String roleInstanceName,
+                       MachineState state, long observedAt) {
+        String key = key(connector, hostedServiceName, deploymentName, roleInstanceName);
+        Observation previous = roleVsObservation.getIfPresent(key);
+        long intervalMillis;
+        if (state == MachineState.STARTING || state == MachineState.STOPPING) {
+            intervalMillis = transitionalMillis;
+        } else if (previous != null && previous.state == state && previous.intervalMillis >= stableMinMillis) {
+            intervalMillis = Math.min(previous.intervalMillis * 2, stableMaxMillis);
+        } else {
+            intervalMillis = stableMinMillis;
+        }
+        roleVsObservation.put(key, new Observation(state, observedAt, intervalMillis));
+    }
+
+    public long getLookups() {
+        return lookups.get();
+    }
+
+    public long getCachedRefreshes() {
+        return cachedRefreshes.get();
+    }
+
+    private static String key(ComputeManagementClient connector, String hostedServiceName, String deploymentName, String roleInstanceName) {
+        return Utils.getSubscriptionId(connector) + "/" + hostedServiceName + "/" + deploymentName + "/" + roleInstanceName;
+    }
+
+    private static class Observation {
+
+        private final MachineState state;
+        private final long observedAt;
+        private final long intervalMillis;
+        private final long nextLookupAt;
+
+        Observation(MachineState state, long observedAt, long intervalMillis) {
+            this.state = state;
+            this.observedAt = observedAt;
+            this.intervalMillis = intervalMillis;
+            this.nextLookupAt = observedAt + intervalMillis;
+        }
+    }
+}
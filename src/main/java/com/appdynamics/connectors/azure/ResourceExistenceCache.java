@@ -0,0 +1,108 @@
+/*
+ *   Copyright 2018. AppDynamics LLC and its affiliates.
+ *   All Rights Reserved.
+ *   This is unpublished proprietary source code of AppDynamics LLC and its affiliates.
+ *   The copyright notice above does not evidence any actual or intended publication of such source code.
+ *
+ */
+package com.appdynamics.connectors.azure;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers for a short while whether the hosted services, storage accounts, VHD containers and deployments of a
+ * subscription exist, so creations do not probe them with a get call each time. Resources found or created are
+ * remembered longer than resources found missing, which someone may create any moment. The connector updates the
+ * entries itself when it creates or deletes a resource, and drops them when a call on the resource fails. Hosted
+ * services and deployments not remembered are looked up in the {@link SubscriptionInventory} before Azure.
+ */
+public class ResourceExistenceCache {
+
+    public enum Kind {
+        HOSTED_SERVICE, STORAGE_ACCOUNT, CONTAINER, DEPLOYMENT
+    }
+
+    private static final ResourceExistenceCache INSTANCE = new ResourceExistenceCache(
+            Long.getLong("appdynamics.azure.existence.present.ttl.millis", 60 * 1000),
+            Long.getLong("appdynamics.azure.existence.absent.ttl.millis", 10 * 1000));
+
+    private final Cache<String, Entry> resourceVsEntry;
+
+    private final long presentTtlMillis;
+    private final long absentTtlMillis;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    ResourceExistenceCache(long presentTtlMillis, long absentTtlMillis) {
+        this.presentTtlMillis = presentTtlMillis;
+        this.absentTtlMillis = absentTtlMillis;
+        this.resourceVsEntry = CacheBuilder.newBuilder()
+                .expireAfterWrite(Math.max(presentTtlMillis, absentTtlMillis), TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    public static ResourceExistenceCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Whether the resource exists, or null when that is not known and it has to be looked up.
+     */
+    public Boolean exists(Kind kind, String subscriptionId, String name) {
+        Entry entry = resourceVsEntry.getIfPresent(key(kind, subscriptionId, name));
+        Boolean exists = null;
+        if (entry != null && System.currentTimeMillis() < entry.expiresAt) {
+            exists = entry.exists;
+        } else if (kind == Kind.HOSTED_SERVICE || kind == Kind.DEPLOYMENT) {
+            exists = SubscriptionInventory.getInstance().exists(kind, subscriptionId, name);
+        }
+        if (exists == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return exists;
+    }
+
+    public void present(Kind kind, String subscriptionId, String name) {
+        resourceVsEntry.put(key(kind, subscriptionId, name), new Entry(true, System.currentTimeMillis() + presentTtlMillis));
+        SubscriptionInventory.getInstance().present(kind, subscriptionId, name);
+    }
+
+    public void absent(Kind kind, String subscriptionId, String name) {
+        resourceVsEntry.put(key(kind, subscriptionId, name), new Entry(false, System.currentTimeMillis() + absentTtlMillis));
+        SubscriptionInventory.getInstance().absent(kind, subscriptionId, name);
+    }
+
+    public void invalidate(Kind kind, String subscriptionId, String name) {
+        resourceVsEntry.invalidate(key(kind, subscriptionId, name));
+        SubscriptionInventory.getInstance().invalidate(kind, subscriptionId, name);
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    private static String key(Kind kind, String subscriptionId, String name) {
+        return kind + "/" + subscriptionId + "/" + name;
+    }
+
+    private static class Entry {
+
+        private final boolean exists;
+        private final long expiresAt;
+
+        Entry(boolean exists, long expiresAt) {
+            this.exists = exists;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
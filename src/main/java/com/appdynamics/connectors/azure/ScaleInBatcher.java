@@ -0,0 +1,250 @@
+/*
+ *   Copyright 2018. AppDynamics LLC and its affiliates.
+ *   All Rights Reserved.
+ *   This is unpublished proprietary source code of AppDynamics LLC and its affiliates.
+ *   The copyright notice above does not evidence any actual or intended publication of such source code.
+ *
+ */
+package com.appdynamics.connectors.azure;
+
+import com.appdynamics.connectors.azure.ResourceExistenceCache.Kind;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.microsoft.windowsazure.core.OperationResponse;
+import com.microsoft.windowsazure.exception.ServiceException;
+import com.microsoft.windowsazure.management.compute.ComputeManagementClient;
+import com.microsoft.windowsazure.management.compute.models.DeploymentDeleteRoleInstanceParameters;
+import com.singularity.ee.connectors.api.ConnectorException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Collects VM role deletions per deployment over a short window and runs them as one batch. The deployment is
+ * fetched once per batch; the roles are then removed with a single multi-role delete, or the whole deployment is
+ * deleted when the batch removes every role in it. Batches for the same deployment never overlap, and every role gets
+ * its own result future, completed as soon as Azure accepted its deletion.
+ */
+public class ScaleInBatcher {
+
+    private static final Logger logger = Logger.getLogger(ScaleInBatcher.class.getName());
+
+    private static final ScaleInBatcher INSTANCE = new ScaleInBatcher(
+            Long.getLong("appdynamics.azure.scalein.batch.window.millis", 250));
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("azure-scalein-scheduler-%d").build());
+
+    private final ExecutorService workers = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("azure-scalein-worker-%d").build());
+
+    private final Map<String, DeploymentQueue> queues = new HashMap<String, DeploymentQueue>();
+
+    private final long batchWindowMillis;
+
+    ScaleInBatcher(long batchWindowMillis) {
+        this.batchWindowMillis = batchWindowMillis;
+    }
+
+    public static ScaleInBatcher getInstance() {
+        return INSTANCE;
+    }
+
+    public ListenableFuture<Void> submit(ComputeManagementClient computeClient, String hostedServiceName, String deploymentName, String roleInstanceName) {
+        String key = Utils.getSubscriptionId(computeClient) + "/" + hostedServiceName + "/" + deploymentName;
+
+        //the queue is only removed while both locks are held, so a role is never added to a queue already dropped
+        synchronized (queues) {
+            DeploymentQueue queue = queues.get(key);
+            if (queue == null) {
+                queue = new DeploymentQueue(key, hostedServiceName, deploymentName);
+                queues.put(key, queue);
+            }
+
+            synchronized (queue) {
+                queue.computeClient = computeClient;
+                //a machine terminated again before its batch ran joins the pending deletion
+                SettableFuture<Void> result = queue.pending.get(roleInstanceName);
+                if (result == null) {
+                    result = SettableFuture.create();
+                    queue.pending.put(roleInstanceName, result);
+                }
+                if (!queue.scheduled && !queue.running) {
+                    queue.scheduled = true;
+                    scheduler.schedule(new Dispatch(queue), batchWindowMillis, TimeUnit.MILLISECONDS);
+                }
+                return result;
+            }
+        }
+    }
+
+    private static class DeploymentQueue {
+        private final String key;
+        private final String hostedServiceName;
+        private final String deploymentName;
+        private final Map<String, SettableFuture<Void>> pending = new LinkedHashMap<String, SettableFuture<Void>>();
+        private ComputeManagementClient computeClient;
+        private boolean scheduled;
+        private boolean running;
+
+        DeploymentQueue(String key, String hostedServiceName, String deploymentName) {
+            this.key = key;
+            this.hostedServiceName = hostedServiceName;
+            this.deploymentName = deploymentName;
+        }
+    }
+
+    private class Dispatch implements Runnable {
+
+        private final DeploymentQueue queue;
+
+        Dispatch(DeploymentQueue queue) {
+            this.queue = queue;
+        }
+
+        @Override
+        public void run() {
+            final Map<String, SettableFuture<Void>> batch;
+            final ComputeManagementClient computeClient;
+            synchronized (queue) {
+                batch = new LinkedHashMap<String, SettableFuture<Void>>(queue.pending);
+                queue.pending.clear();
+                queue.scheduled = false;
+                queue.running = true;
+                computeClient = queue.computeClient;
+            }
+
+            workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        runBatch(queue, computeClient, batch);
+                    } finally {
+                        DeploymentStatePoller.getInstance().invalidate(computeClient, queue.hostedServiceName, queue.deploymentName);
+                        synchronized (queues) {
+                            synchronized (queue) {
+                                queue.running = false;
+                                if (!queue.pending.isEmpty()) {
+                                    queue.scheduled = true;
+                                    scheduler.execute(new Dispatch(queue));
+                                } else {
+                                    //an idle deployment keeps no queue, the next submit creates a new one
+                                    queues.remove(queue.key);
+                                }
+                            }
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    private void runBatch(DeploymentQueue queue, ComputeManagementClient computeClient, Map<String, SettableFuture<Void>> batch) {
+        logger.log(Level.FINER, "Deleting " + batch.size() + " role(s) from deployment " + queue.deploymentName);
+        try {
+            DeploymentSnapshot deployment = getDeployment(computeClient, queue);
+            Set<String> present = deployment.getRoleInstanceNames();
+
+            List<String> deleted = new ArrayList<String>();
+            for (Map.Entry<String, SettableFuture<Void>> entry : batch.entrySet()) {
+                if (present.contains(entry.getKey())) {
+                    deleted.add(entry.getKey());
+                } else {
+                    logger.log(Level.FINER, "Instance [" + entry.getKey() + "] not found. Removing it from the controller.");
+                    entry.getValue().set(null);
+                }
+            }
+            if (deleted.isEmpty()) {
+                return;
+            }
+
+            TrackedOperation operation = delete(computeClient, queue, deleted, present.size());
+            for (String roleInstanceName : deleted) {
+                batch.get(roleInstanceName).set(null);
+            }
+            awaitCompletion(operation);
+            if (deleted.size() == present.size()) {
+                ResourceExistenceCache.getInstance().absent(Kind.DEPLOYMENT, Utils.getSubscriptionId(computeClient), queue.hostedServiceName + "/" + queue.deploymentName);
+            } else if (deleted.size() > 1) {
+                deleteDisks(computeClient, deployment, deleted);
+            }
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Unable to delete VM instance", e);
+            ConnectorException failure = new ConnectorException("Unable to delete VM instance", e);
+            for (SettableFuture<Void> result : batch.values()) {
+                result.setException(failure);
+            }
+        }
+    }
+
+    private static DeploymentSnapshot getDeployment(ComputeManagementClient computeClient, DeploymentQueue queue) throws Exception {
+        String subscriptionId = Utils.getSubscriptionId(computeClient);
+        try {
+            DeploymentSnapshot deployment = DeploymentStatusReader.read(computeClient, queue.hostedServiceName, queue.deploymentName);
+            ResourceExistenceCache.getInstance().present(Kind.DEPLOYMENT, subscriptionId, queue.hostedServiceName + "/" + queue.deploymentName);
+            return deployment;
+        } catch (ServiceException e) {
+            if (AzureErrors.isNotFound(e)) {
+                ResourceExistenceCache.getInstance().absent(Kind.DEPLOYMENT, subscriptionId, queue.hostedServiceName + "/" + queue.deploymentName);
+                return DeploymentSnapshot.notFound();
+            }
+            throw e;
+        }
+    }
+
+    private static TrackedOperation delete(ComputeManagementClient computeClient, DeploymentQueue queue, List<String> deleted, int presentCount) throws Exception {
+        OperationResponse accepted;
+        if (deleted.size() == presentCount) {
+            //a deployment cannot be left without roles
+            logger.log(Level.FINER, "Every instance of the deployment is deleted. Deleting the deployment.");
+            accepted = computeClient.getDeploymentsOperations().beginDeletingByName(queue.hostedServiceName, queue.deploymentName, true);
+        } else if (deleted.size() == 1) {
+            logger.log(Level.FINER, "Deleting the machine " + deleted.get(0));
+            accepted = computeClient.getVirtualMachinesOperations().beginDeleting(queue.hostedServiceName, queue.deploymentName, deleted.get(0), true);
+        } else {
+            logger.log(Level.FINER, "Deleting the machines " + deleted);
+            DeploymentDeleteRoleInstanceParameters parameters = new DeploymentDeleteRoleInstanceParameters();
+            parameters.setName(new ArrayList<String>(deleted));
+            accepted = computeClient.getDeploymentsOperations().beginDeletingRoleInstanceByDeploymentName(queue.hostedServiceName, queue.deploymentName, parameters);
+        }
+        return OperationTracker.getInstance().track(TrackedOperation.Kind.DELETE, computeClient, accepted, queue.hostedServiceName, queue.deploymentName, deleted);
+    }
+
+    //Unlike deleting a single role or the deployment, the multi-role delete leaves the OS disks and their VHDs behind
+    private static void deleteDisks(ComputeManagementClient computeClient, DeploymentSnapshot deployment, List<String> deleted) {
+        for (String roleName : deleted) {
+            String diskName = deployment.getOsDiskName(roleName);
+            if (diskName == null) {
+                continue;
+            }
+            try {
+                computeClient.getVirtualMachineDisksOperations().deleteDisk(diskName, true);
+            } catch (Exception e) {
+                logger.log(Level.WARNING, "Unable to delete disk " + diskName + " of role " + roleName, e);
+            }
+        }
+    }
+
+    //Callers are released once Azure accepted the deletion, but the deployment stays busy until the operation finished
+    private static void awaitCompletion(TrackedOperation operation) throws InterruptedException {
+        if (operation == null) {
+            return;
+        }
+        try {
+            operation.getCompletion().get();
+        } catch (ExecutionException e) {
+            logger.log(Level.FINER, "Operation " + operation.getRequestId() + " did not complete", e);
+        }
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ *   Copyright 2018. AppDynamics LLC and its affiliates.
+ *   All Rights Reserved.
+ *   This is unpublished proprietary source code of AppDynamics LLC and its affiliates.
+ *   The copyright notice above does not evidence any actual or intended publication of such source code.
+ *
+ */
+package com.appdynamics.connectors.azure;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.microsoft.windowsazure.management.compute.ComputeManagementClient;
+import com.microsoft.windowsazure.management.compute.models.DeploymentSlot;
+import com.microsoft.windowsazure.management.compute.models.Role;
+import com.singularity.ee.connectors.api.ConnectorException;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Collects VM role creations per deployment over a short window and runs them as one batch. A batch against a
+ * deployment that does not exist yet becomes a single createDeployment carrying every role, otherwise the roles are
+ * added with a bounded number of concurrent create calls. Every role gets its own result future, completed as soon as
+ * Azure accepted the role, and the next batch for the deployment starts once the whole batch was accepted. The
+ * operations themselves are followed by {@link OperationTracker}. Azure runs one operation at a time on a deployment,
+ * so a role rejected because the deployment is busy is added again once the operations in flight on it completed.
+ * Any other conflict, such as a role name that is taken, fails the role at once.
+ */
+public class ScaleOutBatcher {
+
+    private static final Logger logger = Logger.getLogger(ScaleOutBatcher.class.getName());
+
+    private static final ScaleOutBatcher INSTANCE = new ScaleOutBatcher(
+            Long.getLong("appdynamics.azure.scaleout.batch.window.millis", 250),
+            Integer.getInteger("appdynamics.azure.scaleout.max.concurrent.adds", 4));
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("azure-scaleout-scheduler-%d").build());
+
+    private final ExecutorService workers = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("azure-scaleout-worker-%d").build());
+
+    private final Map<String, DeploymentQueue> queues = new HashMap<String, DeploymentQueue>();
+
+    private final long batchWindowMillis;
+    private final int maxConcurrentAdds;
+
+    ScaleOutBatcher(long batchWindowMillis, int maxConcurrentAdds) {
+        this.batchWindowMillis = batchWindowMillis;
+        this.maxConcurrentAdds = maxConcurrentAdds;
+    }
+
+    public static ScaleOutBatcher getInstance() {
+        return INSTANCE;
+    }
+
+    public ListenableFuture<Void> submit(ComputeManagementClient computeClient, DeploymentShard shard, VirtualMachineSpec spec) {
+        return submit(computeClient, shard, Collections.singletonList(spec)).get(0);
+    }
+
+    public List<ListenableFuture<Void>> submit(ComputeManagementClient computeClient, DeploymentShard shard, List<VirtualMachineSpec> specs) {
+        String key = Utils.getSubscriptionId(computeClient) + "/" + shard.getHostedServiceName() + "/" + shard.getDeploymentName();
+
+        List<ListenableFuture<Void>> results = new ArrayList<ListenableFuture<Void>>();
+        //the queue is only removed while both locks are held, so a role is never added to a queue already dropped
+        synchronized (queues) {
+            DeploymentQueue queue = queues.get(key);
+            if (queue == null) {
+                queue = new DeploymentQueue(key, shard);
+                queues.put(key, queue);
+            }
+
+            synchronized (queue) {
+                queue.computeClient = computeClient;
+                for (VirtualMachineSpec spec : specs) {
+                    PendingRole pendingRole = new PendingRole(spec);
+                    queue.pending.add(pendingRole);
+                    results.add(pendingRole.result);
+                }
+                if (!queue.scheduled && !queue.running) {
+                    queue.scheduled = true;
+                    scheduler.schedule(new Dispatch(queue), batchWindowMillis, TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+        return results;
+    }
+
+    private static class PendingRole {
+        private final VirtualMachineSpec spec;
+        private final SettableFuture<Void> result = SettableFuture.create();
+
+        PendingRole(VirtualMachineSpec spec) {
+            this.spec = spec;
+        }
+    }
+
+    private static class DeploymentQueue {
+        private final String key;
+        private final String hostedServiceName;
+        private final DeploymentSlot deploymentSlot;
+        private final String deploymentName;
+        private final String storageAccountName;
+        private final List<PendingRole> pending = new ArrayList<PendingRole>();
+        private ComputeManagementClient computeClient;
+        private boolean scheduled;
+        private boolean running;
+
+        DeploymentQueue(String key, DeploymentShard shard) {
+            this.key = key;
+            this.hostedServiceName = shard.getHostedServiceName();
+            this.deploymentSlot = shard.getDeploymentSlot();
+            this.deploymentName = shard.getDeploymentName();
+            this.storageAccountName = shard.getStorageAccountName();
+        }
+    }
+
+    private class Dispatch implements Runnable {
+
+        private final DeploymentQueue queue;
+
+        Dispatch(DeploymentQueue queue) {
+            this.queue = queue;
+        }
+
+        @Override
+        public void run() {
+            final List<PendingRole> batch;
+            final ComputeManagementClient computeClient;
+            synchronized (queue) {
+                batch = new ArrayList<PendingRole>(queue.pending);
+                queue.pending.clear();
+                queue.scheduled = false;
+                queue.running = true;
+                computeClient = queue.computeClient;
+            }
+
+            workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        runBatch(queue, computeClient, batch);
+                    } finally {
+                        DeploymentStatePoller.getInstance().invalidate(computeClient, queue.hostedServiceName, queue.deploymentName);
+                        synchronized (queues) {
+                            synchronized (queue) {
+                                queue.running = false;
+                                if (!queue.pending.isEmpty()) {
+                                    queue.scheduled = true;
+                                    scheduler.execute(new Dispatch(queue));
+                                } else {
+                                    //an idle deployment keeps no queue, the next submit creates a new one
+                                    queues.remove(queue.key);
+                                }
+                            }
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    private void runBatch(DeploymentQueue queue, ComputeManagementClient computeClient, List<PendingRole> batch) {
+        logger.log(Level.FINER, "Creating " + batch.size() + " role(s) in deployment " + queue.deploymentName);
+        try {
+            if (!AzureActions.isDeploymentPresent(computeClient, queue.hostedServiceName, queue.deploymentName)) {
+                List<VirtualMachineSpec> specs = new ArrayList<VirtualMachineSpec>();
+                for (PendingRole pendingRole : batch) {
+                    specs.add(pendingRole.spec);
+                }
+                ArrayList<Role> roleList = AzureActions.createRoleList(queue.hostedServiceName, queue.storageAccountName, specs);
+                AzureActions.createVMDeployment(computeClient, roleList, queue.deploymentSlot, queue.hostedServiceName);
+                for (PendingRole pendingRole : batch) {
+                    pendingRole.result.set(null);
+                }
+            } else {
+                addRoles(queue, computeClient, batch);
+            }
+        } catch (Exception e) {
+            forgetDeploymentIfGone(queue, computeClient, e);
+            for (PendingRole pendingRole : batch) {
+                pendingRole.result.setException(e);
+            }
+        }
+    }
+
+    private void addRoles(final DeploymentQueue queue, final ComputeManagementClient computeClient, List<PendingRole> batch) throws InterruptedException {
+        final Semaphore window = new Semaphore(maxConcurrentAdds);
+        final CountDownLatch accepted = new CountDownLatch(batch.size());
+        for (final PendingRole pendingRole : batch) {
+            window.acquire();
+            workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        addRole(queue, computeClient, pendingRole.spec);
+                        pendingRole.result.set(null);
+                    } catch (Exception e) {
+                        forgetDeploymentIfGone(queue, computeClient, e);
+                        pendingRole.result.setException(e);
+                    } finally {
+                        window.release();
+                        accepted.countDown();
+                    }
+                }
+            });
+        }
+        accepted.await();
+    }
+
+    private static void addRole(DeploymentQueue queue, ComputeManagementClient computeClient, VirtualMachineSpec spec)
+            throws URISyntaxException, ConnectorException, InterruptedException {
+        boolean retriedIdle = false;
+        while (true) {
+            try {
+                AzureActions.createVirtualMachines(computeClient, queue.hostedServiceName, queue.deploymentName, queue.storageAccountName, spec);
+                return;
+            } catch (ConnectorException e) {
+                if (!AzureErrors.isOperationInProgress(e)) {
+                    throw e;
+                }
+                //an operation that completed between the rejection and the lookup leaves nothing to wait for
+                if (!awaitInFlight(queue, computeClient)) {
+                    if (retriedIdle) {
+                        throw e;
+                    }
+                    retriedIdle = true;
+                }
+                logger.log(Level.FINER, "Deployment " + queue.deploymentName + " is busy, adding " + spec.getRoleInstanceName() + " again");
+            }
+        }
+    }
+
+    //Waits for the operations in flight on the deployment, returns false if there were none
+    private static boolean awaitInFlight(DeploymentQueue queue, ComputeManagementClient computeClient) throws InterruptedException {
+        List<TrackedOperation> operations = OperationTracker.getInstance().getInFlight(computeClient, queue.hostedServiceName, queue.deploymentName);
+        for (TrackedOperation operation : operations) {
+            try {
+                operation.getCompletion().get();
+            } catch (ExecutionException e) {
+                logger.log(Level.FINER, "Operation " + operation.getRequestId() + " did not complete", e);
+            }
+        }
+        return !operations.isEmpty();
+    }
+
+    //The deployment may have been deleted outside the connector, look it up again for the next batch
+    private static void forgetDeploymentIfGone(DeploymentQueue queue, ComputeManagementClient computeClient, Exception e) {
+        if (AzureErrors.isNotFound(e)) {
+            ResourceExistenceCache.getInstance().invalidate(ResourceExistenceCache.Kind.DEPLOYMENT, Utils.getSubscriptionId(computeClient),
+                    queue.hostedServiceName + "/" + queue.deploymentName);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ *   Copyright 2018. AppDynamics LLC and its affiliates.
+ *   All Rights Reserved.
+ *   This is unpublished proprietary source code of AppDynamics LLC and its affiliates.
+ *   The copyright notice above does not evidence any actual or intended publication of such source code.
+ *
+ */
+package com.appdynamics.connectors.azure;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.singularity.ee.connectors.api.IControllerServices;
+import com.singularity.ee.connectors.entity.api.IComputeCenter;
+import com.singularity.ee.connectors.entity.api.IImage;
+import com.singularity.ee.connectors.entity.api.IMachineDescriptor;
+import com.singularity.ee.connectors.entity.api.IProperty;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Settings resolved from the properties of compute centers, images and machine descriptors, kept per entity so
+ * repeated calls for the same entity do not look its properties up again. An entry is used only while the entity
+ * still returns the very properties it was resolved from; an entity whose properties were replaced is resolved again.
+ */
+public class SettingsCache {
+
+    private static final SettingsCache INSTANCE = new SettingsCache();
+
+    //weak keys compare entities by identity and drop the settings with their entity
+    private final Cache<Object, Resolved> entityVsSettings = CacheBuilder.newBuilder().weakKeys().build();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    private SettingsCache() {
+
+    }
+
+    public static SettingsCache getInstance() {
+        return INSTANCE;
+    }
+
+    public ComputeCenterSettings getComputeCenterSettings(IComputeCenter computeCenter, IControllerServices controllerServices) {
+        IProperty[] properties = computeCenter.getProperties();
+        Object settings = lookup(computeCenter, properties);
+        if (settings == null) {
+            settings = store(computeCenter, properties, ComputeCenterSettings.from(properties, controllerServices));
+        }
+        return (ComputeCenterSettings) settings;
+    }
+
+    public ImageSettings getImageSettings(IImage image, IControllerServices controllerServices) {
+        IProperty[] properties = image.getProperties();
+        Object settings = lookup(image, properties);
+        if (settings == null) {
+            settings = store(image, properties, ImageSettings.from(properties, controllerServices));
+        }
+        return (ImageSettings) settings;
+    }
+
+    public MachineSettings getMachineSettings(IMachineDescriptor machineDescriptor, IControllerServices controllerServices) {
+        IProperty[] properties = machineDescriptor.getProperties();
+        Object settings = lookup(machineDescriptor, properties);
+        if (settings == null) {
+            settings = store(machineDescriptor, properties, MachineSettings.from(properties, controllerServices));
+        }
+        return (MachineSettings) settings;
+    }
+
+    /**
+     * Resolves the entity again on its next use, called when it is reconfigured.
+     */
+    public void invalidate(Object entity) {
+        entityVsSettings.invalidate(entity);
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    private Object lookup(Object entity, IProperty[] properties) {
+        Resolved resolved = entityVsSettings.getIfPresent(entity);
+        if (resolved != null && resolved.properties == properties) {
+            hits.incrementAndGet();
+            return resolved.settings;
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    private Object store(Object entity, IProperty[] properties, Object settings) {
+        entityVsSettings.put(entity, new Resolved(properties, settings));
+        return settings;
+    }
+
+    private static class Resolved {
+
+        private final IProperty[] properties;
+        private final Object settings;
+
+        Resolved(IProperty[] properties, Object settings) {
+            this.properties = properties;
+            this.settings = settings;
+        }
+    }
+}
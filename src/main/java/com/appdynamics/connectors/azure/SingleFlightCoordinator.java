@@ -0,0 +1,81 @@
+/*
+ *   Copyright 2018. AppDynamics LLC and its affiliates.
+ *   All Rights Reserved.
+ *   This is unpublished proprietary source code of AppDynamics LLC and its affiliates.
+ *   The copyright notice above does not evidence any actual or intended publication of such source code.
+ *
+ */
+package com.appdynamics.connectors.azure;
+
+import com.singularity.ee.connectors.api.ConnectorException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Makes sure only one caller at a time runs the get-then-create logic for a given Azure resource. Callers that
+ * arrive while a creation is in flight wait for it and get its outcome instead of issuing their own create.
+ */
+public class SingleFlightCoordinator {
+
+    public static final String HOSTED_SERVICE = "hostedService";
+    public static final String STORAGE_ACCOUNT = "storageAccount";
+
+    private static final SingleFlightCoordinator INSTANCE = new SingleFlightCoordinator();
+
+    private final ConcurrentMap<String, FutureTask<?>> flights = new ConcurrentHashMap<String, FutureTask<?>>();
+
+    private final AtomicLong executions = new AtomicLong();
+    private final AtomicLong joins = new AtomicLong();
+
+    SingleFlightCoordinator() {
+
+    }
+
+    public static SingleFlightCoordinator getInstance() {
+        return INSTANCE;
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T> T execute(String resourceType, String subscriptionId, String resourceName, Callable<T> creation) throws ConnectorException {
+        String key = resourceType + "/" + subscriptionId + "/" + resourceName;
+
+        FutureTask<T> task = new FutureTask<T>(creation);
+        FutureTask<T> inFlight = (FutureTask<T>) flights.putIfAbsent(key, task);
+        if (inFlight == null) {
+            executions.incrementAndGet();
+            try {
+                task.run();
+            } finally {
+                flights.remove(key, task);
+            }
+        } else {
+            joins.incrementAndGet();
+            task = inFlight;
+        }
+
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ConnectorException("Interrupted while waiting for " + resourceType + " " + resourceName, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof ConnectorException) {
+                throw (ConnectorException) cause;
+            }
+            throw new ConnectorException(cause);
+        }
+    }
+
+    public long getExecutions() {
+        return executions.get();
+    }
+
+    public long getJoins() {
+        return joins.get();
+    }
+}
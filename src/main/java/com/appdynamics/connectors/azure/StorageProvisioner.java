@@ -0,0 +1,212 @@
+/*
+ *   Copyright 2018. AppDynamics LLC and its affiliates.
+ *   All Rights Reserved.
+ *   This is unpublished proprietary source code of AppDynamics LLC and its affiliates.
+ *   The copyright notice above does not evidence any actual or intended publication of such source code.
+ *
+ */
+package com.appdynamics.connectors.azure;
+
+import com.appdynamics.connectors.azure.ResourceExistenceCache.Kind;
+import com.google.common.util.concurrent.FutureFallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.microsoft.windowsazure.exception.ServiceException;
+import com.microsoft.windowsazure.management.storage.StorageManagementClient;
+import com.microsoft.windowsazure.management.storage.models.StorageAccountCreateParameters;
+import com.microsoft.windowsazure.management.storage.models.StorageAccountGetResponse;
+import com.microsoft.windowsazure.management.storage.models.StorageAccountStatus;
+import com.microsoft.windowsazure.storage.blob.CloudBlobClient;
+import com.microsoft.windowsazure.storage.blob.CloudBlobContainer;
+import com.singularity.ee.connectors.api.ConnectorException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Provisions a storage account and its VHD container in the background. The account creation is only submitted,
+ * readiness is then established by probing the account status and the container through the blob endpoint with
+ * bounded exponential backoff. Concurrent creators for the same account share one readiness future.
+ */
+public class StorageProvisioner {
+
+    private static final Logger logger = Logger.getLogger(StorageProvisioner.class.getName());
+
+    private static final StorageProvisioner INSTANCE = new StorageProvisioner(
+            Long.getLong("appdynamics.azure.storage.probe.initial.millis", 2 * 1000),
+            Long.getLong("appdynamics.azure.storage.probe.max.millis", 30 * 1000),
+            Long.getLong("appdynamics.azure.storage.ready.timeout.millis", 15 * 60 * 1000));
+
+    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2,
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("azure-storage-provisioner-%d").build());
+
+    private final ConcurrentMap<String, SettableFuture<Void>> inFlight = new ConcurrentHashMap<String, SettableFuture<Void>>();
+
+    private final long initialProbeDelayMillis;
+    private final long maxProbeDelayMillis;
+    private final long readyTimeoutMillis;
+
+    StorageProvisioner(long initialProbeDelayMillis, long maxProbeDelayMillis, long readyTimeoutMillis) {
+        this.initialProbeDelayMillis = initialProbeDelayMillis;
+        this.maxProbeDelayMillis = maxProbeDelayMillis;
+        this.readyTimeoutMillis = readyTimeoutMillis;
+    }
+
+    public static StorageProvisioner getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the readiness future of a provisioning that is still running for the account, or null if there is none.
+     */
+    public ListenableFuture<Void> getInFlight(String subscriptionId, String storageAccountName) {
+        return inFlight.get(key(subscriptionId, storageAccountName));
+    }
+
+    public ListenableFuture<Void> provision(StorageManagementClient storageManagementClient, String subscriptionId,
+                                            String storageAccountName, String location, String containerName) {
+        String key = key(subscriptionId, storageAccountName);
+        SettableFuture<Void> future = SettableFuture.create();
+        SettableFuture<Void> existing = inFlight.putIfAbsent(key, future);
+        if (existing != null) {
+            return existing;
+        }
+
+        Provisioning provisioning = new Provisioning(key, future, storageManagementClient, subscriptionId, storageAccountName, location, containerName);
+        scheduler.execute(provisioning);
+        return future;
+    }
+
+    /**
+     * The readiness failing with a ConnectorException, to chain further work on without blocking a thread. The
+     * readiness itself fails once the account was not ready within the timeout.
+     */
+    public ListenableFuture<Void> whenReady(ListenableFuture<Void> readiness) {
+        return Futures.withFallback(readiness, new FutureFallback<Void>() {
+            @Override
+            public ListenableFuture<Void> create(Throwable t) {
+                if (t instanceof TimeoutException) {
+                    return Futures.immediateFailedFuture(new ConnectorException("Timed out waiting for storage account", t));
+                }
+                return Futures.immediateFailedFuture(new ConnectorException("Unable to create storage account", t));
+            }
+        });
+    }
+
+    private static String key(String subscriptionId, String storageAccountName) {
+        return subscriptionId + "/" + storageAccountName;
+    }
+
+    private class Provisioning implements Runnable {
+
+        private final String key;
+        private final SettableFuture<Void> future;
+        private final StorageManagementClient storageManagementClient;
+        private final String subscriptionId;
+        private final String storageAccountName;
+        private final String location;
+        private final String containerName;
+        private final long deadline;
+
+        private boolean submitted;
+        private long nextDelayMillis = initialProbeDelayMillis;
+        private Exception lastError;
+
+        Provisioning(String key, SettableFuture<Void> future, StorageManagementClient storageManagementClient, String subscriptionId,
+                     String storageAccountName, String location, String containerName) {
+            this.key = key;
+            this.future = future;
+            this.storageManagementClient = storageManagementClient;
+            this.subscriptionId = subscriptionId;
+            this.storageAccountName = storageAccountName;
+            this.location = location;
+            this.containerName = containerName;
+            this.deadline = System.currentTimeMillis() + readyTimeoutMillis;
+        }
+
+        @Override
+        public void run() {
+            if (!submitted) {
+                try {
+                    submitCreate();
+                    submitted = true;
+                } catch (Exception e) {
+                    logger.log(Level.WARNING, "Unable to create storage account", e);
+                    complete(e);
+                    return;
+                }
+            }
+
+            try {
+                if (isReady()) {
+                    logger.log(Level.FINER, "Storage account " + storageAccountName + " and container " + containerName + " are ready");
+                    complete(null);
+                    return;
+                }
+            } catch (Exception e) {
+                logger.log(Level.FINE, "Storage account " + storageAccountName + " not ready yet", e);
+                lastError = e;
+            }
+
+            if (System.currentTimeMillis() + nextDelayMillis > deadline) {
+                String message = "Storage account " + storageAccountName + " was not ready within " + readyTimeoutMillis + " ms";
+                logger.log(Level.WARNING, message, lastError);
+                complete(new TimeoutException(message));
+                return;
+            }
+            long delayMillis = nextDelayMillis;
+            nextDelayMillis = Math.min(nextDelayMillis * 2, maxProbeDelayMillis);
+            scheduler.schedule(this, delayMillis, TimeUnit.MILLISECONDS);
+        }
+
+        private void submitCreate() throws Exception {
+            StorageAccountCreateParameters createParameters = new StorageAccountCreateParameters();
+            createParameters.setName(storageAccountName);
+            createParameters.setLabel(storageAccountName);
+            createParameters.setLocation(location);
+            try {
+                logger.log(Level.FINER, "Creating storage account");
+                storageManagementClient.getStorageAccountsOperations().beginCreating(createParameters);
+            } catch (ServiceException e) {
+                if (!AzureErrors.isConflict(e)) {
+                    throw e;
+                }
+                logger.log(Level.FINER, "Storage account " + storageAccountName + " is already being created");
+            }
+        }
+
+        private boolean isReady() throws Exception {
+            StorageAccountGetResponse response = storageManagementClient.getStorageAccountsOperations().get(storageAccountName);
+            if (response.getStorageAccount() == null || response.getStorageAccount().getProperties() == null
+                    || response.getStorageAccount().getProperties().getStatus() != StorageAccountStatus.CREATED) {
+                return false;
+            }
+
+            String storageAccountKey = storageManagementClient.getStorageAccountsOperations().getKeys(storageAccountName).getPrimaryKey();
+            CloudBlobClient blobClient = AzureActions.createBlobClient(storageAccountName, storageAccountKey);
+            CloudBlobContainer container = blobClient.getContainerReference(containerName);
+            container.createIfNotExists();
+            return container.exists();
+        }
+
+        private void complete(Exception error) {
+            inFlight.remove(key, future);
+            ResourceExistenceCache existence = ResourceExistenceCache.getInstance();
+            if (error == null) {
+                existence.present(Kind.STORAGE_ACCOUNT, subscriptionId, storageAccountName);
+                existence.present(Kind.CONTAINER, subscriptionId, storageAccountName + "/" + containerName);
+                future.set(null);
+            } else {
+                existence.invalidate(Kind.STORAGE_ACCOUNT, subscriptionId, storageAccountName);
+                future.setException(error);
+            }
+        }
+    }
+}
@@ -0,0 +1,411 @@
+/*
+ *   Copyright 2018. AppDynamics LLC and its affiliates.
+ *   All Rights Reserved.
+ *   This is unpublished proprietary source code of AppDynamics LLC and its affiliates.
+ *   The copyright notice above does not evidence any actual or intended publication of such source code.
+ *
+ */
+package com.appdynamics.connectors.azure;
+
+import com.appdynamics.connectors.azure.ResourceExistenceCache.Kind;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.microsoft.windowsazure.exception.ServiceException;
+import com.microsoft.windowsazure.management.compute.ComputeManagementClient;
+import com.microsoft.windowsazure.management.compute.models.HostedServiceGetDetailedResponse;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps an index of the deployments and role instances of the hosted services the connector created or looked up in
+ * each subscription, fetched with one detailed get per hosted service every sync interval, so existence checks and
+ * machine state lookups are answered from memory. Other hosted services of the subscription are never fetched: a
+ * hosted service is synced from the first sync after the connector asked about it, and until then lookups go to
+ * Azure. Between syncs the connector records its own changes: a resource it created or deleted is known present or
+ * absent, a deployment whose roles it changed is unknown until fetched again, and every deployment fetch replaces the
+ * synced one. Nothing is answered from a sync older than the consistency window.
+ * <p/>
+ * Syncing is off unless appdynamics.azure.inventory.sync.millis is set. Each sync spends one management call per
+ * hosted service and each lookup answered saves one, {@link #getNetCallsSaved()} tells whether it pays off.
+ */
+public class SubscriptionInventory {
+
+    private static final Logger logger = Logger.getLogger(SubscriptionInventory.class.getName());
+
+    private static final SubscriptionInventory INSTANCE = new SubscriptionInventory(
+            Long.getLong("appdynamics.azure.inventory.sync.millis", 0),
+            Long.getLong("appdynamics.azure.inventory.consistency.millis", 2 * 60 * 1000));
+
+    private static final String OPERATION = "syncInventory";
+
+    private static final long IDLE_TIMEOUT_MILLIS = 60 * 60 * 1000;
+
+    private enum State {
+        PRESENT, ABSENT, UNKNOWN
+    }
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("azure-inventory-%d").build());
+
+    private final ConcurrentMap<String, Inventory> subscriptionVsInventory = new ConcurrentHashMap<String, Inventory>();
+
+    private final long syncMillis;
+    private final long consistencyMillis;
+
+    private final AtomicLong syncs = new AtomicLong();
+    private final AtomicLong syncFailures = new AtomicLong();
+    private final AtomicLong syncCalls = new AtomicLong();
+    private final AtomicLong lastSyncMillis = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    SubscriptionInventory(long syncMillis, long consistencyMillis) {
+        this.syncMillis = syncMillis;
+        this.consistencyMillis = consistencyMillis;
+    }
+
+    public static SubscriptionInventory getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * The deployment as of the last sync or fetch, or null when that is older than the given age or the consistency
+     * window, or the connector changed the deployment since, or its hosted service is not synced yet. A deployment the
+     * sync did not find in its hosted service is returned as not found. Starts syncing the subscription of the client
+     * if it is not synced yet.
+     */
+    public DeploymentSnapshot getDeployment(ComputeManagementClient connector, String hostedServiceName, String deploymentName, long maxAgeMillis) {
+        Inventory inventory = track(connector);
+        if (inventory == null) {
+            return null;
+        }
+        DeploymentSnapshot snapshot = inventory.getDeployment(hostedServiceName + "/" + deploymentName);
+        if (snapshot == null || snapshot.isOlderThan(Math.min(maxAgeMillis, consistencyMillis))) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return snapshot;
+    }
+
+    /**
+     * Whether the hosted service or deployment exists, or null when the inventory cannot tell. The deployment is named
+     * hostedService/deployment.
+     */
+    public Boolean exists(Kind kind, String subscriptionId, String name) {
+        Inventory inventory = subscriptionVsInventory.get(subscriptionId);
+        Boolean exists = inventory == null ? null : inventory.exists(kind, name);
+        if (exists == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return exists;
+    }
+
+    public void present(Kind kind, String subscriptionId, String name) {
+        record(kind, subscriptionId, name, State.PRESENT);
+    }
+
+    public void absent(Kind kind, String subscriptionId, String name) {
+        record(kind, subscriptionId, name, State.ABSENT);
+    }
+
+    public void invalidate(Kind kind, String subscriptionId, String name) {
+        record(kind, subscriptionId, name, State.UNKNOWN);
+    }
+
+    /**
+     * Replaces what is known about the deployment with a snapshot the connector just fetched.
+     */
+    public void update(ComputeManagementClient connector, String hostedServiceName, String deploymentName, DeploymentSnapshot snapshot) {
+        Inventory inventory = subscriptionVsInventory.get(Utils.getSubscriptionId(connector));
+        if (inventory != null) {
+            inventory.update(hostedServiceName + "/" + deploymentName, snapshot);
+        }
+    }
+
+    public long getSyncs() {
+        return syncs.get();
+    }
+
+    public long getSyncFailures() {
+        return syncFailures.get();
+    }
+
+    /**
+     * The management calls made by all syncs so far, one detailed get per hosted service synced.
+     */
+    public long getSyncCalls() {
+        return syncCalls.get();
+    }
+
+    /**
+     * The management calls saved by lookups answered from the inventory less the ones spent syncing it.
+     */
+    public long getNetCallsSaved() {
+        return hits.get() - syncCalls.get();
+    }
+
+    public long getLastSyncMillis() {
+        return lastSyncMillis.get();
+    }
+
+    /**
+     * The age of the oldest sync among the subscriptions synced, 0 when none is.
+     */
+    public long getStalenessMillis() {
+        long now = System.currentTimeMillis();
+        long staleness = 0;
+        for (Inventory inventory : subscriptionVsInventory.values()) {
+            Listing listing = inventory.listing;
+            if (listing != null) {
+                staleness = Math.max(staleness, now - listing.syncedAt);
+            }
+        }
+        return staleness;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    private Inventory track(ComputeManagementClient connector) {
+        if (syncMillis <= 0) {
+            return null;
+        }
+        String subscriptionId = Utils.getSubscriptionId(connector);
+        Inventory inventory = subscriptionVsInventory.get(subscriptionId);
+        if (inventory == null) {
+            Inventory created = new Inventory(subscriptionId);
+            inventory = subscriptionVsInventory.putIfAbsent(subscriptionId, created);
+            if (inventory == null) {
+                inventory = created;
+                created.connector = connector;
+                created.sync = scheduler.scheduleWithFixedDelay(new Sync(created), 0, syncMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+        //the latest client is used, the ones of rotated credentials may be retired
+        inventory.connector = connector;
+        inventory.lastUsedAt = System.currentTimeMillis();
+        return inventory;
+    }
+
+    private void record(Kind kind, String subscriptionId, String name, State state) {
+        if (kind != Kind.HOSTED_SERVICE && kind != Kind.DEPLOYMENT) {
+            return;
+        }
+        Inventory inventory = subscriptionVsInventory.get(subscriptionId);
+        if (inventory != null) {
+            inventory.watch(kind == Kind.DEPLOYMENT ? hostedServiceOf(name) : name);
+            inventory.changes.put(kind + "/" + name, new Change(state, System.currentTimeMillis()));
+        }
+    }
+
+    private static String hostedServiceOf(String deployment) {
+        return deployment.substring(0, deployment.indexOf('/'));
+    }
+
+    private class Inventory {
+
+        private final String subscriptionId;
+        private final Set<String> hostedServiceNames = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        private final ConcurrentMap<String, Change> changes = new ConcurrentHashMap<String, Change>();
+        private final ConcurrentMap<String, DeploymentSnapshot> fetched = new ConcurrentHashMap<String, DeploymentSnapshot>();
+        private volatile Listing listing;
+        private volatile ComputeManagementClient connector;
+        private volatile long lastUsedAt = System.currentTimeMillis();
+        private volatile ScheduledFuture<?> sync;
+
+        Inventory(String subscriptionId) {
+            this.subscriptionId = subscriptionId;
+        }
+
+        /**
+         * Syncs the hosted service from the next sync on.
+         */
+        void watch(String hostedServiceName) {
+            hostedServiceNames.add(hostedServiceName);
+        }
+
+        DeploymentSnapshot getDeployment(String name) {
+            watch(hostedServiceOf(name));
+            Listing current = getListing();
+            if (current == null || !current.hostedServicesSynced.contains(hostedServiceOf(name))) {
+                return null;
+            }
+            Change change = changes.get(Kind.DEPLOYMENT + "/" + name);
+            DeploymentSnapshot snapshot = fetched.get(name);
+            if (snapshot != null && (change == null || snapshot.getFetchedAt() >= change.at)) {
+                return snapshot;
+            }
+            if (change != null) {
+                return change.state == State.ABSENT ? DeploymentSnapshot.notFound(change.at) : null;
+            }
+            snapshot = current.deployments.get(name);
+            return snapshot != null ? snapshot : DeploymentSnapshot.notFound(current.syncedAt);
+        }
+
+        Boolean exists(Kind kind, String name) {
+            if (kind == Kind.DEPLOYMENT) {
+                DeploymentSnapshot snapshot = getDeployment(name);
+                return snapshot == null ? null : snapshot.isDeploymentFound();
+            }
+            if (kind != Kind.HOSTED_SERVICE) {
+                return null;
+            }
+            watch(name);
+            Listing current = getListing();
+            if (current == null || !current.hostedServicesSynced.contains(name)) {
+                return null;
+            }
+            Change change = changes.get(kind + "/" + name);
+            if (change != null) {
+                return change.state == State.UNKNOWN ? null : change.state == State.PRESENT;
+            }
+            return current.hostedServices.contains(name);
+        }
+
+        void update(String name, DeploymentSnapshot snapshot) {
+            watch(hostedServiceOf(name));
+            fetched.put(name, snapshot);
+            String key = Kind.DEPLOYMENT + "/" + name;
+            Change change = changes.get(key);
+            //a change recorded while the fetch was under way is kept unless the fetch agrees with it
+            if (change != null && (change.at <= snapshot.getFetchedAt()
+                    || change.state == (snapshot.isDeploymentFound() ? State.PRESENT : State.ABSENT))) {
+                changes.remove(key, change);
+            }
+        }
+
+        private Listing getListing() {
+            Listing current = listing;
+            return current == null || current.isOlderThan(consistencyMillis) ? null : current;
+        }
+
+        void sync() throws Exception {
+            long startedAt = System.currentTimeMillis();
+            ComputeManagementClient client = connector;
+            Set<String> hostedServicesSynced = new HashSet<String>(hostedServiceNames);
+            Set<String> hostedServices = new HashSet<String>();
+            Map<String, DeploymentSnapshot> deployments = new HashMap<String, DeploymentSnapshot>();
+
+            for (String hostedServiceName : hostedServicesSynced) {
+                HostedServiceGetDetailedResponse detailed;
+                try {
+                    syncCalls.incrementAndGet();
+                    detailed = client.getHostedServicesOperations().getDetailed(hostedServiceName);
+                } catch (ServiceException e) {
+                    if (AzureErrors.isNotFound(e)) {
+                        //not created yet or deleted, synced as absent
+                        continue;
+                    }
+                    throw e;
+                }
+                hostedServices.add(hostedServiceName);
+                long fetchedAt = System.currentTimeMillis();
+                if (detailed.getDeployments() == null) {
+                    continue;
+                }
+                for (HostedServiceGetDetailedResponse.Deployment deployment : detailed.getDeployments()) {
+                    deployments.put(hostedServiceName + "/" + deployment.getName(), DeploymentSnapshot.of(deployment.getRoleInstances(), fetchedAt));
+                }
+            }
+
+            listing = new Listing(Collections.unmodifiableSet(hostedServicesSynced), Collections.unmodifiableSet(hostedServices),
+                    Collections.unmodifiableMap(deployments), startedAt);
+            //what the connector recorded before the sync started is in the listing now
+            for (Map.Entry<String, Change> entry : changes.entrySet()) {
+                if (entry.getValue().at < startedAt) {
+                    changes.remove(entry.getKey(), entry.getValue());
+                }
+            }
+            for (Map.Entry<String, DeploymentSnapshot> entry : fetched.entrySet()) {
+                if (entry.getValue().getFetchedAt() < startedAt) {
+                    fetched.remove(entry.getKey(), entry.getValue());
+                }
+            }
+            logger.log(Level.FINER, "Synced " + hostedServices.size() + " of " + hostedServicesSynced.size() + " hosted service(s) and "
+                    + deployments.size() + " deployment(s) of subscription " + subscriptionId + ", " + hits.get() + " call(s) saved against "
+                    + syncCalls.get() + " spent so far");
+        }
+    }
+
+    private class Sync implements Runnable {
+
+        private final Inventory inventory;
+
+        Sync(Inventory inventory) {
+            this.inventory = inventory;
+        }
+
+        @Override
+        public void run() {
+            if (System.currentTimeMillis() - inventory.lastUsedAt > IDLE_TIMEOUT_MILLIS) {
+                logger.log(Level.FINE, "Subscription " + inventory.subscriptionId + " not used for a while, no longer syncing its inventory");
+                subscriptionVsInventory.remove(inventory.subscriptionId, inventory);
+                inventory.sync.cancel(false);
+                return;
+            }
+            syncs.incrementAndGet();
+            long startedAt = System.currentTimeMillis();
+            OperationTimer timer = ConnectorMetrics.getInstance().start(OPERATION);
+            try {
+                inventory.sync();
+            } catch (Exception e) {
+                syncFailures.incrementAndGet();
+                timer.failed(e);
+                //lookups go to Azure once the previous listing is older than the consistency window
+                logger.log(Level.WARNING, "Unable to sync the inventory of subscription " + inventory.subscriptionId, e);
+            } finally {
+                timer.stop();
+                lastSyncMillis.set(System.currentTimeMillis() - startedAt);
+            }
+        }
+    }
+
+    private static class Listing {
+
+        private final Set<String> hostedServicesSynced;
+        private final Set<String> hostedServices;
+        private final Map<String, DeploymentSnapshot> deployments;
+        private final long syncedAt;
+
+        Listing(Set<String> hostedServicesSynced, Set<String> hostedServices, Map<String, DeploymentSnapshot> deployments, long syncedAt) {
+            this.hostedServicesSynced = hostedServicesSynced;
+            this.hostedServices = hostedServices;
+            this.deployments = deployments;
+            this.syncedAt = syncedAt;
+        }
+
+        boolean isOlderThan(long ageMillis) {
+            return System.currentTimeMillis() - syncedAt >= ageMillis;
+        }
+    }
+
+    private static class Change {
+
+        private final State state;
+        private final long at;
+
+        Change(State state, long at) {
+            this.state = state;
+            this.at = at;
+        }
+    }
+}
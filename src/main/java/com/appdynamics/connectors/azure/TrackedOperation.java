@@ -0,0 +1,105 @@
+/*
+ *   Copyright 2018. AppDynamics LLC and its affiliates.
+ *   All Rights Reserved.
+ *   This is unpublished proprietary source code of AppDynamics LLC and its affiliates.
+ *   The copyright notice above does not evidence any actual or intended publication of such source code.
+ *
+ */
+package com.appdynamics.connectors.azure;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.microsoft.windowsazure.core.OperationStatus;
+import com.microsoft.windowsazure.management.compute.ComputeManagementClient;
+import java.util.List;
+
+/**
+ * A long-running Azure operation accepted by the management endpoint, identified by its request id.
+ */
+public class TrackedOperation {
+
+    public enum Kind {
+        CREATE, DELETE, RESTART
+    }
+
+    private final String requestId;
+    private final Kind kind;
+    private final ComputeManagementClient computeClient;
+    private final String hostedServiceName;
+    private final String deploymentName;
+    private final List<String> roleInstanceNames;
+    private final long submittedAt = System.currentTimeMillis();
+    private final SettableFuture<OperationStatus> completion = SettableFuture.create();
+
+    private volatile OperationStatus status = OperationStatus.INPROGRESS;
+    private volatile String errorMessage;
+    private volatile long completedAt;
+
+    TrackedOperation(String requestId, Kind kind, ComputeManagementClient computeClient, String hostedServiceName,
+                     String deploymentName, List<String> roleInstanceNames) {
+        this.requestId = requestId;
+        this.kind = kind;
+        this.computeClient = computeClient;
+        this.hostedServiceName = hostedServiceName;
+        this.deploymentName = deploymentName;
+        this.roleInstanceNames = roleInstanceNames;
+    }
+
+    public String getRequestId() {
+        return requestId;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public ComputeManagementClient getComputeClient() {
+        return computeClient;
+    }
+
+    public String getHostedServiceName() {
+        return hostedServiceName;
+    }
+
+    public String getDeploymentName() {
+        return deploymentName;
+    }
+
+    public List<String> getRoleInstanceNames() {
+        return roleInstanceNames;
+    }
+
+    public long getSubmittedAt() {
+        return submittedAt;
+    }
+
+    public OperationStatus getStatus() {
+        return status;
+    }
+
+    public boolean isInProgress() {
+        return status == OperationStatus.INPROGRESS;
+    }
+
+    public String getErrorMessage() {
+        return errorMessage;
+    }
+
+    public long getCompletedAt() {
+        return completedAt;
+    }
+
+    /**
+     * Completes with the final status once Azure reports the operation finished.
+     */
+    public ListenableFuture<OperationStatus> getCompletion() {
+        return completion;
+    }
+
+    void complete(OperationStatus status, String errorMessage) {
+        this.errorMessage = errorMessage;
+        this.completedAt = System.currentTimeMillis();
+        this.status = status;
+        completion.set(status);
+    }
+}
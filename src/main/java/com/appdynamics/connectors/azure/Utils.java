@@ -7,15 +7,16 @@
  */
 package com.appdynamics.connectors.azure;
 
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.microsoft.windowsazure.management.compute.ComputeManagementClient;
 import com.microsoft.windowsazure.management.compute.models.DeploymentSlot;
 import com.singularity.ee.connectors.api.ConnectorException;
 import com.singularity.ee.connectors.api.IControllerServices;
 import com.singularity.ee.connectors.entity.api.IFileProperty;
 import com.singularity.ee.connectors.entity.api.IProperty;
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.IOException;
+import java.util.Locale;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -27,6 +28,12 @@ public class Utils {
     private static final String KEY_STORE = "Key Store";
     private static final String KEY_STORE_PASSWORD = "Key Store Password";
 
+    private static final String MAX_CONNECTIONS = "Max Connections";
+    private static final String MAX_CONNECTIONS_PER_ROUTE = "Max Connections Per Route";
+    private static final String CONNECT_TIMEOUT = "Connect Timeout (ms)";
+    private static final String SOCKET_TIMEOUT = "Socket Timeout (ms)";
+    private static final String KEEP_ALIVE = "Keep Alive (ms)";
+
     private static final String ROLE_INSTANCE_NAME = "Role Instance Name";
     private static final String OS_IMAGE = "OS Image";
     private static final String SIZE = "size";
@@ -34,6 +41,7 @@ public class Utils {
     private static final String ADMIN_USER_PASSWORD = "Admin User Password";
 
     private static final String LOCATION = "Location";
+    private static final String PRE_PROVISION = "Pre-Provision";
 
     private static final Logger logger = Logger.getLogger(Utils.class.getName());
 
@@ -47,7 +55,15 @@ public class Utils {
 
     public static DeploymentSlot getDeploymentSlot(IProperty[] properties, IControllerServices controllerServices) {
         String slotType = getValue(controllerServices.getStringPropertyValueByName(properties, DEPLOYMENT_SLOT_TYPE));
-        return DeploymentSlot.valueOf(slotType);
+        //image-types.xml offers "Staging" and "Production", the SDK names its constants in upper case
+        return DeploymentSlot.valueOf(slotType.toUpperCase(Locale.ENGLISH));
+    }
+
+    /**
+     * The slot spelled the way image-types.xml and the names of existing deployments spell it.
+     */
+    public static String getDeploymentSlotName(DeploymentSlot deploymentSlot) {
+        return deploymentSlot == DeploymentSlot.PRODUCTION ? "Production" : "Staging";
     }
 
     public static String getRoleInstanceName(IProperty[] properties, IControllerServices controllerServices) {
@@ -74,61 +90,79 @@ public class Utils {
         return getValue(controllerServices.getStringPropertyValueByName(properties, SUBSCRIPTION_ID));
     }
 
+    public static String getSubscriptionId(ComputeManagementClient connector) {
+        return connector.getCredentials() != null ? connector.getCredentials().getSubscriptionId() : null;
+    }
+
     public static String getLocation(IProperty[] properties, IControllerServices controllerServices) {
         return getValue(controllerServices.getStringPropertyValueByName(properties, LOCATION));
     }
 
-    public static String getKeyStoreLocation(IProperty[] properties, String computeCenterName) throws ConnectorException {
-        byte[] jks = null;
+    public static boolean isPreProvision(IProperty[] properties, IControllerServices controllerServices) {
+        return Boolean.parseBoolean(getValue(controllerServices.getStringPropertyValueByName(properties, PRE_PROVISION)));
+    }
+
+    public static byte[] getKeyStoreBytes(IProperty[] properties) {
         for (IProperty i : properties) {
             if (i.getDefinition().getName().equals(KEY_STORE)) {
-                jks = ((IFileProperty) i).getFileBytes();
-                break;
+                return ((IFileProperty) i).getFileBytes();
             }
         }
+        return null;
+    }
 
-        String keyStoreLocation = saveKeyStore(jks, computeCenterName);
-        return keyStoreLocation;
+    public static String getKeyStoreDigest(byte[] jks, String keyStorePassword) {
+        Hasher hasher = Hashing.sha256().newHasher();
+        if (jks != null) {
+            hasher.putBytes(jks);
+        }
+        hasher.putString(keyStorePassword == null ? "" : keyStorePassword, Charsets.UTF_8);
+        return hasher.hash().toString();
     }
 
     public static String getKeyStorePassword(IProperty[] properties, IControllerServices controllerServices) {
         return getValue(controllerServices.getStringPropertyValueByName(properties, KEY_STORE_PASSWORD));
     }
 
-    //folder gets created in the Glassfish domains/domain1/config folder.
-    public static String saveKeyStore(byte[] jksFile, String computeCenterName) throws ConnectorException {
-
-        File computeClodDir = new File("azure" + File.separator + computeCenterName);
+    public static int getMaxConnections(IProperty[] properties, IControllerServices controllerServices) {
+        return getIntValue(properties, controllerServices, MAX_CONNECTIONS, 100);
+    }
 
-        if (!computeClodDir.exists()) {
-            computeClodDir.mkdirs();
-        }
+    //All management calls of a subscription go to the same host, so this is what bounds their concurrency
+    public static int getMaxConnectionsPerRoute(IProperty[] properties, IControllerServices controllerServices) {
+        return getIntValue(properties, controllerServices, MAX_CONNECTIONS_PER_ROUTE, 50);
+    }
 
-        String imageFileName = "azure" + File.separator + computeCenterName + File.separator + computeCenterName;
+    public static int getConnectTimeoutMillis(IProperty[] properties, IControllerServices controllerServices) {
+        return getIntValue(properties, controllerServices, CONNECT_TIMEOUT, 30 * 1000);
+    }
 
-        String jksLoc = imageFileName + ".jks";
+    public static int getSocketTimeoutMillis(IProperty[] properties, IControllerServices controllerServices) {
+        return getIntValue(properties, controllerServices, SOCKET_TIMEOUT, 120 * 1000);
+    }
 
-        File jksCert = new File(jksLoc);
+    public static long getKeepAliveMillis(IProperty[] properties, IControllerServices controllerServices) {
+        return getIntValue(properties, controllerServices, KEEP_ALIVE, 60 * 1000);
+    }
 
-        if (jksCert.exists()) {
-            jksCert.delete();
+    public static String saveKeyStore(byte[] jksFile, String computeCenterName) throws ConnectorException {
+        if (jksFile == null) {
+            throw new ConnectorException("Java Key Store file not found");
         }
+        return KeyStoreMaterializer.getInstance().materialize(jksFile, computeCenterName);
+    }
 
-        FileOutputStream in = null;
+    private static int getIntValue(IProperty[] properties, IControllerServices controllerServices, String name, int defaultValue) {
+        String value = getValue(controllerServices.getStringPropertyValueByName(properties, name));
+        if (value == null) {
+            return defaultValue;
+        }
         try {
-            in = new FileOutputStream(jksCert);
-            in.write(jksFile);
-            in.flush();
-            in.close();
-        } catch (FileNotFoundException e) {
-            logger.log(Level.WARNING, "Java Key Store file not found", e);
-            throw new ConnectorException("Java Key Store file not found", e);
-        } catch (IOException e) {
-            logger.log(Level.WARNING, "Error saving Java Key Store file", e);
-            throw new ConnectorException("Error saving Java Key Store file", e);
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            logger.log(Level.WARNING, "Invalid value " + value + " for " + name + ", using " + defaultValue);
+            return defaultValue;
         }
-
-        return jksCert.getAbsolutePath();
     }
 
     private static String getValue(String value) {
@@ -0,0 +1,194 @@
+/*
+ *   Copyright 2018. AppDynamics LLC and its affiliates.
+ *   All Rights Reserved.
+ *   This is unpublished proprietary source code of AppDynamics LLC and its affiliates.
+ *   The copyright notice above does not evidence any actual or intended publication of such source code.
+ *
+ */
+package com.appdynamics.connectors.azure;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.microsoft.windowsazure.management.storage.StorageManagementClient;
+import com.microsoft.windowsazure.storage.LeaseStatus;
+import com.microsoft.windowsazure.storage.blob.BlobProperties;
+import com.microsoft.windowsazure.storage.blob.CloudBlob;
+import com.microsoft.windowsazure.storage.blob.CloudBlobContainer;
+import com.microsoft.windowsazure.storage.blob.ListBlobItem;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Names the OS disk VHDs of new machines and keeps the VHD container of each storage account tidy. Names combine the
+ * role instance name with the time and a sequence number, which keeps them unique without looking at the container.
+ * The index of a storage account exists only to collect orphans: it is listed in the background once it is older
+ * than the TTL, and each listing deletes the VHDs named by the connector that no disk holds a lease on and that were
+ * last modified longer ago than the grace period, such as the ones left by failed creations. A reserved name is not
+ * collected until it is released.
+ */
+public class VhdStore {
+
+    public static final String CONTAINER = "vhd-store";
+
+    private static final Logger logger = Logger.getLogger(VhdStore.class.getName());
+
+    private static final VhdStore INSTANCE = new VhdStore();
+
+    private static final long INDEX_TTL_MILLIS = Long.getLong("appdynamics.azure.vhd.index.ttl.millis", 10 * 60 * 1000);
+
+    private static final long INDEX_RETRY_MILLIS = Long.getLong("appdynamics.azure.vhd.index.retry.millis", 60 * 1000);
+
+    private static final long ORPHAN_GRACE_MILLIS = Long.getLong("appdynamics.azure.vhd.orphan.grace.millis", 2 * 60 * 60 * 1000);
+
+    //<role>-<time>-<seq>.vhd as named by newVhdName, the time in base 36 milliseconds takes 8 digits until 2059
+    private static final Pattern VHD_NAME = Pattern.compile(".+-[0-9a-z]{8}-[0-9a-z]+\\.vhd");
+
+    private final ExecutorService loader = Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("azure-vhd-store-%d").build());
+
+    private final ConcurrentMap<String, Index> accountVsIndex = new ConcurrentHashMap<String, Index>();
+
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final AtomicLong indexLoads = new AtomicLong();
+    private final AtomicLong orphansDeleted = new AtomicLong();
+
+    private VhdStore() {
+
+    }
+
+    public static VhdStore getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Reserves a new VHD name for the role, which keeps the VHD from being collected until it is released. Starts a
+     * listing of the container in the background once the index is stale.
+     */
+    public String reserve(StorageManagementClient storageClient, String subscriptionId, String storageAccountName, String roleInstanceName) {
+        Index index = getIndex(subscriptionId, storageAccountName);
+        if (index.isStale()) {
+            index.load(storageClient);
+        }
+        String name = newVhdName(roleInstanceName);
+        index.reserved.add(name);
+        return name;
+    }
+
+    /**
+     * Ends the reservation once the creation was accepted, when the disk holds the VHD, or failed.
+     */
+    public void release(String subscriptionId, String storageAccountName, String vhdName) {
+        Index index = accountVsIndex.get(key(subscriptionId, storageAccountName));
+        if (index != null) {
+            index.reserved.remove(vhdName);
+        }
+    }
+
+    /**
+     * A name unique within this process, for VHDs created without a reservation.
+     */
+    public String newVhdName(String roleInstanceName) {
+        return roleInstanceName + "-" + Long.toString(System.currentTimeMillis(), 36) + "-" + Long.toString(sequence.incrementAndGet(), 36) + ".vhd";
+    }
+
+    public long getIndexLoads() {
+        return indexLoads.get();
+    }
+
+    public long getOrphansDeleted() {
+        return orphansDeleted.get();
+    }
+
+    private Index getIndex(String subscriptionId, String storageAccountName) {
+        String key = key(subscriptionId, storageAccountName);
+        Index index = accountVsIndex.get(key);
+        if (index == null) {
+            Index created = new Index(storageAccountName);
+            index = accountVsIndex.putIfAbsent(key, created);
+            if (index == null) {
+                index = created;
+            }
+        }
+        return index;
+    }
+
+    private static String key(String subscriptionId, String storageAccountName) {
+        return subscriptionId + "/" + storageAccountName;
+    }
+
+    private class Index {
+
+        private final String storageAccountName;
+        private final Set<String> reserved = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        private final AtomicBoolean loading = new AtomicBoolean();
+        private volatile long nextLoadAt;
+
+        Index(String storageAccountName) {
+            this.storageAccountName = storageAccountName;
+        }
+
+        boolean isStale() {
+            return System.currentTimeMillis() >= nextLoadAt;
+        }
+
+        void load(final StorageManagementClient storageClient) {
+            if (!loading.compareAndSet(false, true)) {
+                return;
+            }
+            loader.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        collectOrphans(storageClient);
+                        nextLoadAt = System.currentTimeMillis() + INDEX_TTL_MILLIS;
+                        indexLoads.incrementAndGet();
+                    } catch (Exception e) {
+                        nextLoadAt = System.currentTimeMillis() + INDEX_RETRY_MILLIS;
+                        logger.log(Level.WARNING, "Unable to list the VHDs of storage account " + storageAccountName, e);
+                    } finally {
+                        loading.set(false);
+                    }
+                }
+            });
+        }
+
+        private void collectOrphans(StorageManagementClient storageClient) throws Exception {
+            String storageAccountKey = storageClient.getStorageAccountsOperations().getKeys(storageAccountName).getPrimaryKey();
+            CloudBlobContainer container = AzureActions.createBlobClient(storageAccountName, storageAccountKey).getContainerReference(CONTAINER);
+
+            long orphanedBefore = System.currentTimeMillis() - ORPHAN_GRACE_MILLIS;
+            for (ListBlobItem item : container.listBlobs()) {
+                if (!(item instanceof CloudBlob)) {
+                    continue;
+                }
+                CloudBlob blob = (CloudBlob) item;
+                String name = blob.getName();
+                if (!isOrphan(name, blob.getProperties(), orphanedBefore) || reserved.contains(name)) {
+                    continue;
+                }
+                try {
+                    if (blob.deleteIfExists()) {
+                        orphansDeleted.incrementAndGet();
+                        logger.log(Level.INFO, "Deleted orphaned VHD " + name + " of storage account " + storageAccountName);
+                    }
+                } catch (Exception e) {
+                    logger.log(Level.FINE, "Unable to delete orphaned VHD " + name, e);
+                }
+            }
+        }
+
+        private boolean isOrphan(String name, BlobProperties properties, long orphanedBefore) {
+            return VHD_NAME.matcher(name).matches() && properties != null && properties.getLeaseStatus() == LeaseStatus.UNLOCKED
+                    && properties.getLastModified() != null && properties.getLastModified().getTime() < orphanedBefore;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ *   Copyright 2018. AppDynamics LLC and its affiliates.
+ *   All Rights Reserved.
+ *   This is unpublished proprietary source code of AppDynamics LLC and its affiliates.
+ *   The copyright notice above does not evidence any actual or intended publication of such source code.
+ *
+ */
+package com.appdynamics.connectors.azure;
+
+import com.microsoft.windowsazure.management.compute.ComputeManagementClient;
+import com.singularity.ee.connectors.api.ConnectorException;
+import com.singularity.ee.connectors.api.IControllerServices;
+import com.singularity.ee.connectors.entity.api.IMachineDescriptor;
+
+/**
+ * The settings of one VM role to be created, resolved from its machine descriptor.
+ */
+public class VirtualMachineSpec {
+
+    private final String roleInstanceName;
+    private final OsImage osImage;
+    private final String size;
+    private final String adminUserName;
+    private final String adminUserPassword;
+    private final String vhdName;
+
+    public VirtualMachineSpec(String roleInstanceName, OsImage osImage, String size, String adminUserName, String adminUserPassword) {
+        this(roleInstanceName, osImage, size, adminUserName, adminUserPassword, null);
+    }
+
+    public VirtualMachineSpec(String roleInstanceName, OsImage osImage, String size, String adminUserName, String adminUserPassword, String vhdName) {
+        this.roleInstanceName = roleInstanceName;
+        this.osImage = osImage;
+        this.size = size;
+        this.adminUserName = adminUserName;
+        this.adminUserPassword = adminUserPassword;
+        this.vhdName = vhdName;
+    }
+
+    public static VirtualMachineSpec from(ComputeManagementClient client, IMachineDescriptor machineDescriptor, IControllerServices controllerServices) throws ConnectorException {
+        MachineSettings settings = SettingsCache.getInstance().getMachineSettings(machineDescriptor, controllerServices);
+        return new VirtualMachineSpec(settings.getRoleInstanceName(),
+                OsImageCatalog.getInstance().getImage(client, settings.getOsImage()),
+                settings.getSize(),
+                settings.getAdminUserName(),
+                settings.getAdminUserPassword());
+    }
+
+    public String getRoleInstanceName() {
+        return roleInstanceName;
+    }
+
+    public OsImage getOsImage() {
+        return osImage;
+    }
+
+    public String getSize() {
+        return size;
+    }
+
+    public String getAdminUserName() {
+        return adminUserName;
+    }
+
+    public String getAdminUserPassword() {
+        return adminUserPassword;
+    }
+
+    /**
+     * The name reserved for the OS disk VHD, or null to have one generated when the role is created.
+     */
+    public String getVhdName() {
+        return vhdName;
+    }
+
+    public VirtualMachineSpec withVhdName(String vhdName) {
+        return new VirtualMachineSpec(roleInstanceName, osImage, size, adminUserName, adminUserPassword, vhdName);
+    }
+}
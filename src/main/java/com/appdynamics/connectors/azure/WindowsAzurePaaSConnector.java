@@ -8,7 +8,6 @@
 package com.appdynamics.connectors.azure;
 
 import com.microsoft.windowsazure.management.compute.ComputeManagementClient;
-import com.microsoft.windowsazure.management.compute.models.DeploymentSlot;
 import com.singularity.ee.agent.resolver.AgentResolutionEncoder;
 import com.singularity.ee.connectors.api.ConnectorException;
 import com.singularity.ee.connectors.api.IConnector;
@@ -38,34 +37,51 @@ public class WindowsAzurePaaSConnector implements IConnector {
     @Override
     public IMachine createMachine(IComputeCenter computeCenter, IImage image, IMachineDescriptor machineDescriptor)
             throws InvalidObjectException, ConnectorException {
-
-        ComputeManagementClient connector = null;
+        OperationTimer timer = ConnectorMetrics.getInstance().start("createMachine");
         try {
-            connector = ConnectorLocator.getInstance().getConnector(computeCenter, controllerServices);
-        } catch (Exception e) {
-            logger.log(Level.WARNING, "Unable to create connector", e);
-            throw new ConnectorException("Unable to create connector" + e);
+            ComputeManagementClient connector = null;
+            try {
+                connector = ConnectorLocator.getInstance().getConnector(computeCenter, controllerServices);
+            } catch (Exception e) {
+                logger.log(Level.WARNING, "Unable to create connector", e);
+                throw new ConnectorException("Unable to create connector" + e);
+            }
+
+            //Validate the credentials, unless they were validated recently
+            validateCredentials(connector, computeCenter);
+            ImagePrewarmer.getInstance().bind(computeCenter, image);
+
+            try {
+                AzureActions.createInstance(connector, computeCenter, image, machineDescriptor, controllerServices);
+                return registerMachine(computeCenter, image, machineDescriptor);
+            } catch (Exception e) {
+                logger.log(Level.WARNING, e.getMessage(), e);
+                throw new ConnectorException(e.getMessage(), e);
+            }
+        } catch (ConnectorException e) {
+            throw timer.failed(e);
+        } catch (RuntimeException e) {
+            throw timer.failed(e);
+        } finally {
+            timer.stop();
         }
+    }
 
-        //Validate the credentials
-        AzureActions.validate(connector);
-
-        try {
-            AzureActions.createInstance(connector, computeCenter, image, machineDescriptor, controllerServices);
+    private void validateCredentials(ComputeManagementClient connector, IComputeCenter computeCenter) throws ConnectorException {
+        String credentialKey = SettingsCache.getInstance().getComputeCenterSettings(computeCenter, controllerServices).getCredentialKey();
+        CredentialHealth.getInstance().validate(connector, credentialKey);
+    }
 
-            String roleInstanceName = Utils.getRoleInstanceName(machineDescriptor.getProperties(), controllerServices);
+    private IMachine registerMachine(IComputeCenter computeCenter, IImage image, IMachineDescriptor machineDescriptor) throws ConnectorException {
+        String roleInstanceName = SettingsCache.getInstance().getMachineSettings(machineDescriptor, controllerServices).getRoleInstanceName();
 
-            AgentResolutionEncoder agentResolutionEncoder = getAgentResolutionEncoder(computeCenter);
-            IMachine machine = controllerServices.createMachineInstance(roleInstanceName,
-                    agentResolutionEncoder.getUniqueHostIdentifier(), computeCenter, machineDescriptor, image,
-                    getAgentPort());
+        AgentResolutionEncoder agentResolutionEncoder = getAgentResolutionEncoder(computeCenter);
+        IMachine machine = controllerServices.createMachineInstance(roleInstanceName,
+                agentResolutionEncoder.getUniqueHostIdentifier(), computeCenter, machineDescriptor, image,
+                getAgentPort());
 
-            logger.info("Windows Azure machine instance created successfully on Controller.");
-            return machine;
-        } catch (Exception e) {
-            logger.log(Level.WARNING, e.getMessage(), e);
-            throw new ConnectorException(e.getMessage(), e);
-        }
+        logger.info("Windows Azure machine instance created successfully on Controller.");
+        return machine;
     }
 
     private AgentResolutionEncoder getAgentResolutionEncoder(IComputeCenter iComputeCenter) throws ConnectorException {
@@ -92,23 +108,38 @@ public class WindowsAzurePaaSConnector implements IConnector {
 
     @Override
     public void terminateMachine(IMachine machine) throws InvalidObjectException, ConnectorException {
-        IImage image = machine.getImage();
-        IMachineDescriptor machineDescriptor = machine.getMachineDescriptor();
-        IComputeCenter computeCenter = machine.getComputeCenter();
-
-        String roleInstanceName = Utils.getRoleInstanceName(machineDescriptor.getProperties(), controllerServices);
-        String hostedServiceName = Utils.getHostedServiceName(image.getProperties(), controllerServices);
-
-        ComputeManagementClient connector = null;
+        OperationTimer timer = ConnectorMetrics.getInstance().start("terminateMachine");
         try {
-            connector = ConnectorLocator.getInstance().getConnector(computeCenter, controllerServices);
-        } catch (Exception e) {
-            throw new ConnectorException("Unable to create connector" + e);
+            IImage image = machine.getImage();
+            IMachineDescriptor machineDescriptor = machine.getMachineDescriptor();
+            IComputeCenter computeCenter = machine.getComputeCenter();
+
+            String roleInstanceName = SettingsCache.getInstance().getMachineSettings(machineDescriptor, controllerServices).getRoleInstanceName();
+            ImageSettings imageSettings = SettingsCache.getInstance().getImageSettings(image, controllerServices);
+
+            ComputeManagementClient connector = null;
+            try {
+                connector = ConnectorLocator.getInstance().getConnector(computeCenter, controllerServices);
+            } catch (Exception e) {
+                throw new ConnectorException("Unable to create connector" + e);
+            }
+
+            //looked up afresh, a machine in none of the deployments is already gone
+            DeploymentShard shard = DeploymentShards.getInstance().resolve(connector, imageSettings, roleInstanceName, 0);
+            if (shard == null) {
+                logger.log(Level.FINER, "Instance [" + roleInstanceName + "] not found in any deployment. Removing it from the controller.");
+                return;
+            }
+            String hostedServiceName = shard.getHostedServiceName();
+            String deploymentName = shard.getDeploymentName();
+            AzureActions.deleteInstance(connector, hostedServiceName, deploymentName, roleInstanceName);
+        } catch (ConnectorException e) {
+            throw timer.failed(e);
+        } catch (RuntimeException e) {
+            throw timer.failed(e);
+        } finally {
+            timer.stop();
         }
-
-        DeploymentSlot deploymentSlot = Utils.getDeploymentSlot(image.getProperties(), controllerServices);
-        String deploymentName = hostedServiceName + "-" + deploymentSlot.name();
-        AzureActions.deleteInstance(connector, hostedServiceName, deploymentName, roleInstanceName);
     }
 
     @Override
@@ -130,46 +161,75 @@ public class WindowsAzurePaaSConnector implements IConnector {
 
     @Override
     public void refreshMachineState(IMachine machine) throws InvalidObjectException, ConnectorException {
-
-        IImage image = machine.getImage();
-        IMachineDescriptor machineDescriptor = machine.getMachineDescriptor();
-        IComputeCenter computeCenter = machine.getComputeCenter();
-
-        String roleInstanceName = Utils.getRoleInstanceName(machineDescriptor.getProperties(), controllerServices);
-        String hostedServiceName = Utils.getHostedServiceName(image.getProperties(), controllerServices);
-
-        ComputeManagementClient connector = null;
+        OperationTimer timer = ConnectorMetrics.getInstance().start("refreshMachineState");
         try {
-            connector = ConnectorLocator.getInstance().getConnector(computeCenter, controllerServices);
-        } catch (Exception e) {
-            throw new ConnectorException("Unable to create connector" + e);
+            IImage image = machine.getImage();
+            IMachineDescriptor machineDescriptor = machine.getMachineDescriptor();
+            IComputeCenter computeCenter = machine.getComputeCenter();
+
+            String roleInstanceName = SettingsCache.getInstance().getMachineSettings(machineDescriptor, controllerServices).getRoleInstanceName();
+            ImageSettings imageSettings = SettingsCache.getInstance().getImageSettings(image, controllerServices);
+
+            ComputeManagementClient connector = null;
+            try {
+                connector = ConnectorLocator.getInstance().getConnector(computeCenter, controllerServices);
+            } catch (Exception e) {
+                throw new ConnectorException("Unable to create connector" + e);
+            }
+
+            ImagePrewarmer.getInstance().bind(computeCenter, image);
+            DeploymentShard shard = DeploymentShards.getInstance().resolve(connector, imageSettings, roleInstanceName, Long.MAX_VALUE);
+            if (shard == null) {
+                //not knowing where the machine is says nothing about its state
+                logger.log(Level.FINE, "Instance [" + roleInstanceName + "] not found in any deployment, keeping state " + machine.getState());
+                return;
+            }
+            String hostedServiceName = shard.getHostedServiceName();
+            String deploymentName = shard.getDeploymentName();
+            AzureActions.updateMachineState(machine, connector, hostedServiceName, deploymentName, roleInstanceName);
+        } catch (ConnectorException e) {
+            throw timer.failed(e);
+        } catch (RuntimeException e) {
+            throw timer.failed(e);
+        } finally {
+            timer.stop();
         }
-
-        DeploymentSlot deploymentSlot = Utils.getDeploymentSlot(image.getProperties(), controllerServices);
-        String deploymentName = hostedServiceName + "-" + deploymentSlot.name();
-        AzureActions.updateMachineState(machine, connector, hostedServiceName, deploymentName, roleInstanceName);
     }
 
     @Override
     public void restartMachine(IMachine machine) throws ConnectorException {
-        IImage image = machine.getImage();
-        IMachineDescriptor machineDescriptor = machine.getMachineDescriptor();
-        IComputeCenter computeCenter = machine.getComputeCenter();
-
-        String roleInstanceName = Utils.getRoleInstanceName(machineDescriptor.getProperties(), controllerServices);
-        String hostedServiceName = Utils.getHostedServiceName(image.getProperties(), controllerServices);
-
-        ComputeManagementClient connector = null;
+        OperationTimer timer = ConnectorMetrics.getInstance().start("restartMachine");
         try {
-            connector = ConnectorLocator.getInstance().getConnector(computeCenter, controllerServices);
-        } catch (Exception e) {
-            throw new ConnectorException("Unable to create connector" + e);
+            IImage image = machine.getImage();
+            IMachineDescriptor machineDescriptor = machine.getMachineDescriptor();
+            IComputeCenter computeCenter = machine.getComputeCenter();
+
+            String roleInstanceName = SettingsCache.getInstance().getMachineSettings(machineDescriptor, controllerServices).getRoleInstanceName();
+            ImageSettings imageSettings = SettingsCache.getInstance().getImageSettings(image, controllerServices);
+
+            ComputeManagementClient connector = null;
+            try {
+                connector = ConnectorLocator.getInstance().getConnector(computeCenter, controllerServices);
+            } catch (Exception e) {
+                throw new ConnectorException("Unable to create connector" + e);
+            }
+
+            DeploymentShard shard = DeploymentShards.getInstance().resolve(connector, imageSettings, roleInstanceName, 0);
+            if (shard == null) {
+                throw new ConnectorException("Instance [" + roleInstanceName + "] not found in any deployment of hosted service "
+                        + imageSettings.getHostedServiceName());
+            }
+            String hostedServiceName = shard.getHostedServiceName();
+            String deploymentName = shard.getDeploymentName();
+
+            AzureActions.restartInstance(connector, hostedServiceName, deploymentName, roleInstanceName);
+        } catch (ConnectorException e) {
+            throw timer.failed(e);
+        } catch (RuntimeException e) {
+            throw timer.failed(e);
+        } finally {
+            timer.stop();
         }
-
-        DeploymentSlot deploymentSlot = Utils.getDeploymentSlot(image.getProperties(), controllerServices);
-        String deploymentName = hostedServiceName + "-" + deploymentSlot.name();
-
-        AzureActions.restartInstance(connector, hostedServiceName, deploymentName, roleInstanceName);
     }
 
     @Override
@@ -178,6 +238,9 @@ public class WindowsAzurePaaSConnector implements IConnector {
 
     @Override
     public void unconfigure(IComputeCenter computeCenter) throws InvalidObjectException, ConnectorException {
+        ConnectorLocator.getInstance().invalidate(computeCenter.getName());
+        SettingsCache.getInstance().invalidate(computeCenter);
+        ImagePrewarmer.getInstance().removeComputeCenter(computeCenter);
     }
 
     @Override
@@ -186,11 +249,16 @@ public class WindowsAzurePaaSConnector implements IConnector {
 
     @Override
     public void unconfigure(IImage image) throws InvalidObjectException, ConnectorException {
+        SettingsCache.getInstance().invalidate(image);
+        ImagePrewarmer.getInstance().remove(image);
     }
 
     @Override
     public void configure(IComputeCenter computeCenter) throws InvalidObjectException, ConnectorException {
-        // do nothing
+        // properties may have changed, clients are rebuilt on the next lookup
+        ConnectorLocator.getInstance().invalidate(computeCenter.getName());
+        SettingsCache.getInstance().invalidate(computeCenter);
+        ImagePrewarmer.getInstance().addComputeCenter(computeCenter);
     }
 
     @Override
@@ -200,11 +268,13 @@ public class WindowsAzurePaaSConnector implements IConnector {
 
     @Override
     public void configure(IImage image) throws InvalidObjectException, ConnectorException {
-        // do onothing
+        SettingsCache.getInstance().invalidate(image);
+        ImagePrewarmer.getInstance().configure(image, controllerServices);
     }
 
     @Override
     public void deleteImage(IImage image) throws InvalidObjectException, ConnectorException {
+        ImagePrewarmer.getInstance().remove(image);
     }
 
     @Override
@@ -214,7 +284,7 @@ public class WindowsAzurePaaSConnector implements IConnector {
 
     @Override
     public void refreshImageState(IImage image) throws InvalidObjectException, ConnectorException {
-        // do nothing
+        ImagePrewarmer.getInstance().refresh(image);
     }
 
 }
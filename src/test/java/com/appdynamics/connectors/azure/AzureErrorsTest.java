@@ -0,0 +1,91 @@
+/*
+ *   Copyright 2018. AppDynamics LLC and its affiliates.
+ *   All Rights Reserved.
+ *   This is unpublished proprietary source code of AppDynamics LLC and its affiliates.
+ *   The copyright notice above does not evidence any actual or intended publication of such source code.
+ *
+ */
+package com.appdynamics.connectors.azure;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.microsoft.windowsazure.exception.CloudError;
+import com.microsoft.windowsazure.exception.ServiceException;
+import com.singularity.ee.connectors.api.ConnectorException;
+import org.junit.Test;
+
+public class AzureErrorsTest {
+
+    @Test
+    public void codeIsReadFromTheError() {
+        ServiceException e = withCode("The hosted service does not exist.", AzureErrors.RESOURCE_NOT_FOUND);
+
+        assertEquals(AzureErrors.RESOURCE_NOT_FOUND, AzureErrors.getCode(e));
+        assertTrue(AzureErrors.isNotFound(e));
+        assertFalse(AzureErrors.isConflict(e));
+    }
+
+    @Test
+    public void codeIsNotTakenFromTheMessage() {
+        ServiceException e = new ServiceException("ResourceNotFound: The hosted service does not exist.");
+
+        assertEquals("unknown", AzureErrors.getCode(e));
+        assertFalse(AzureErrors.isNotFound(e));
+    }
+
+    @Test
+    public void codeIsReadFromTheResponseBody() {
+        ServiceException e = new ServiceException("The specified DNS name is already taken.");
+        e.setRawResponseBody("<Error xmlns=\"http://schemas.microsoft.com/windowsazure\"><Code>ConflictError</Code>"
+                + "<Message>The specified DNS name is already taken.</Message></Error>");
+
+        assertEquals(AzureErrors.CONFLICT, AzureErrors.getCode(e));
+        assertTrue(AzureErrors.isConflict(e));
+    }
+
+    @Test
+    public void onlyABusyDeploymentIsAnOperationInProgress() {
+        ServiceException busy = withCode("Windows Azure is currently performing an operation with x-ms-requestid "
+                + "5e8e1e2b on this deployment that requires exclusive access.", AzureErrors.CONFLICT);
+        ServiceException taken = withCode("A role named web1 already exists.", AzureErrors.CONFLICT);
+        ServiceException busyInBody = new ServiceException("Conflict");
+        busyInBody.setRawResponseBody("<Error><Code>ConflictError</Code><Message>Windows Azure is currently performing an "
+                + "operation on this deployment that requires exclusive access.</Message></Error>");
+
+        assertTrue(AzureErrors.isOperationInProgress(new ConnectorException("Unable to create virtual machine", busy)));
+        assertTrue(AzureErrors.isOperationInProgress(busyInBody));
+        assertTrue(AzureErrors.isConflict(taken));
+        assertFalse(AzureErrors.isOperationInProgress(taken));
+    }
+
+    @Test
+    public void statusClassifiesWithoutCode() {
+        ServiceException e = new ServiceException("Service Unavailable");
+        e.setHttpStatusCode(503);
+
+        assertEquals("HTTP503", AzureErrors.getCode(e));
+        assertTrue(AzureErrors.isThrottled(e));
+        assertFalse(AzureErrors.isServerError(e));
+    }
+
+    @Test
+    public void serviceExceptionIsFoundInTheCauseChain() {
+        ServiceException e = withCode("The operation timed out.", AzureErrors.OPERATION_TIMED_OUT);
+        ConnectorException wrapped = new ConnectorException("Unable to create virtual machine", e);
+
+        assertEquals(AzureErrors.OPERATION_TIMED_OUT, AzureErrors.getCode(wrapped));
+        assertTrue(AzureErrors.isServerError(wrapped));
+        assertEquals("none", AzureErrors.getCode(new ConnectorException("Unable to create connector")));
+    }
+
+    private static ServiceException withCode(String message, String code) {
+        CloudError error = new CloudError();
+        error.setCode(code);
+        error.setMessage(message);
+        ServiceException e = new ServiceException(message);
+        e.setError(error);
+        return e;
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ *   Copyright 2018. AppDynamics LLC and its affiliates.
+ *   All Rights Reserved.
+ *   This is unpublished proprietary source code of AppDynamics LLC and its affiliates.
+ *   The copyright notice above does not evidence any actual or intended publication of such source code.
+ *
+ */
+package com.appdynamics.connectors.azure;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.junit.Test;
+
+public class ConnectorMetricsTest {
+
+    private final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+
+    @Test
+    public void errorOfAnonymousClassIsRegistered() throws Exception {
+        //an anonymous class has an empty simple name
+        ConnectorMetrics.getInstance().recordError("test/anonymous", new RuntimeException("failed") {
+        });
+
+        ObjectName name = new ObjectName(ConnectorMetrics.DOMAIN + ":type=Errors,operation=\"test/anonymous\",exception=\"\",code=\"none\"");
+        assertTrue(mBeanServer.isRegistered(name));
+        assertEquals(1L, mBeanServer.getAttribute(name, "Count"));
+    }
+
+    @Test
+    public void errorsAreCountedPerExceptionClass() throws Exception {
+        ConnectorMetrics.getInstance().recordError("test/counted", new IllegalStateException("first"));
+        ConnectorMetrics.getInstance().recordError("test/counted", new IllegalStateException("second"));
+
+        ObjectName name = new ObjectName(ConnectorMetrics.DOMAIN + ":type=Errors,operation=\"test/counted\",exception=\"IllegalStateException\",code=\"none\"");
+        assertEquals(2L, mBeanServer.getAttribute(name, "Count"));
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ *   Copyright 2018. AppDynamics LLC and its affiliates.
+ *   All Rights Reserved.
+ *   This is unpublished proprietary source code of AppDynamics LLC and its affiliates.
+ *   The copyright notice above does not evidence any actual or intended publication of such source code.
+ *
+ */
+package com.appdynamics.connectors.azure;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.microsoft.windowsazure.core.OperationResponse;
+import com.microsoft.windowsazure.core.OperationStatus;
+import com.microsoft.windowsazure.core.OperationStatusResponse;
+import com.microsoft.windowsazure.credentials.SubscriptionCloudCredentials;
+import com.microsoft.windowsazure.exception.ServiceException;
+import com.microsoft.windowsazure.management.compute.ComputeManagementClient;
+import com.microsoft.windowsazure.management.compute.DeploymentOperations;
+import com.microsoft.windowsazure.management.compute.models.DeploymentGetResponse;
+import com.microsoft.windowsazure.management.compute.models.DeploymentSlot;
+import com.microsoft.windowsazure.management.compute.models.Role;
+import com.microsoft.windowsazure.management.compute.models.RoleInstance;
+import java.util.ArrayList;
+import java.util.UUID;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DeploymentShardsTest {
+
+    private static final int SHARDS = 4;
+
+    private final ImageSettings imageSettings = ImageProperties.resolve("shardedhs", "Production", "West US", false);
+
+    private ComputeManagementClient connector;
+    private DeploymentOperations deployments;
+
+    @Before
+    public void setUp() throws Exception {
+        //a subscription of its own keeps the snapshots and operations of other tests out
+        SubscriptionCloudCredentials credentials = mock(SubscriptionCloudCredentials.class);
+        when(credentials.getSubscriptionId()).thenReturn(UUID.randomUUID().toString());
+
+        ServiceException notFound = new ServiceException("The deployment does not exist.");
+        notFound.setHttpStatusCode(404);
+        deployments = mock(DeploymentOperations.class);
+        when(deployments.getByName(anyString(), anyString())).thenThrow(notFound);
+
+        OperationStatusResponse inProgress = new OperationStatusResponse();
+        inProgress.setStatus(OperationStatus.INPROGRESS);
+
+        connector = mock(ComputeManagementClient.class);
+        when(connector.getCredentials()).thenReturn(credentials);
+        when(connector.getDeploymentsOperations()).thenReturn(deployments);
+        when(connector.getOperationStatus(anyString())).thenReturn(inProgress);
+    }
+
+    @Test
+    public void shardNamesKeepTheImageSlotSpelling() {
+        assertEquals(DeploymentSlot.PRODUCTION, imageSettings.getDeploymentSlot());
+        assertEquals("shardedhs-Production", DeploymentShard.of(imageSettings, 0).getDeploymentName());
+        assertEquals("shardedhs-2-Production", DeploymentShard.of(imageSettings, 2).getDeploymentName());
+    }
+
+    @Test
+    public void machineInNoShardIsUnknown() throws Exception {
+        DeploymentShards shards = new DeploymentShards(SHARDS, 50, 4);
+
+        assertNull(shards.resolve(connector, imageSettings, "missing", 0));
+        for (int i = 0; i < SHARDS; i++) {
+            DeploymentShard shard = DeploymentShard.of(imageSettings, i);
+            verify(deployments, times(1)).getByName(shard.getHostedServiceName(), shard.getDeploymentName());
+        }
+    }
+
+    @Test
+    public void machineIsFoundInItsShardAndRemembered() throws Exception {
+        DeploymentShard holding = DeploymentShard.of(imageSettings, 2);
+        doReturn(deployment("found")).when(deployments).getByName(holding.getHostedServiceName(), holding.getDeploymentName());
+        DeploymentShards shards = new DeploymentShards(SHARDS, 50, 4);
+
+        assertEquals(2, shards.resolve(connector, imageSettings, "found", 0).getIndex());
+        assertEquals(2, shards.resolve(connector, imageSettings, "found", 0).getIndex());
+        verify(deployments, times(1)).getByName(holding.getHostedServiceName(), holding.getDeploymentName());
+    }
+
+    @Test
+    public void trackedCreationIsFoundBeforeItShowsUp() throws Exception {
+        DeploymentShard holding = DeploymentShard.of(imageSettings, 3);
+        OperationResponse accepted = new OperationResponse();
+        accepted.setRequestId(UUID.randomUUID().toString());
+        OperationTracker.getInstance().track(TrackedOperation.Kind.CREATE, connector, accepted, holding.getHostedServiceName(),
+                holding.getDeploymentName(), "creating");
+        DeploymentShards shards = new DeploymentShards(SHARDS, 50, 4);
+
+        assertEquals(3, shards.resolve(connector, imageSettings, "creating", 0).getIndex());
+        verify(deployments, never()).getByName(anyString(), anyString());
+    }
+
+    @Test
+    public void machineIsInTheOnlyShardWithShardingOff() throws Exception {
+        DeploymentShards shards = new DeploymentShards(1, 50, 4);
+
+        assertEquals(0, shards.resolve(connector, imageSettings, "missing", 0).getIndex());
+        assertEquals(0, shards.place(connector, imageSettings, "new").getIndex());
+        verify(deployments, never()).getByName(anyString(), anyString());
+    }
+
+    @Test
+    public void excludedShardIsNotPlacedNorProbed() throws Exception {
+        DeploymentShards open = new DeploymentShards(2, 50, 1);
+        open.place(connector, imageSettings, "first");
+        assertEquals(1, open.place(connector, imageSettings, "second").getIndex());
+
+        DeploymentShards excluding = new DeploymentShards(2, 50, 1);
+        DeploymentShard taken = DeploymentShard.of(imageSettings, 1);
+        excluding.exclude(connector, taken);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, excluding.place(connector, imageSettings, "machine" + i).getIndex());
+        }
+        assertNull(excluding.resolve(connector, imageSettings, "missing", Long.MAX_VALUE));
+        assertEquals(0, excluding.getShardsOpened());
+        assertEquals(1, excluding.getResolutionProbes());
+    }
+
+    private static DeploymentGetResponse deployment(String roleInstanceName) {
+        RoleInstance roleInstance = new RoleInstance();
+        roleInstance.setRoleName(roleInstanceName);
+        roleInstance.setInstanceName(roleInstanceName);
+        roleInstance.setInstanceStatus("ReadyRole");
+        ArrayList<RoleInstance> roleInstances = new ArrayList<RoleInstance>();
+        roleInstances.add(roleInstance);
+        DeploymentGetResponse response = new DeploymentGetResponse();
+        response.setRoleInstances(roleInstances);
+        response.setRoles(new ArrayList<Role>());
+        return response;
+    }
+}
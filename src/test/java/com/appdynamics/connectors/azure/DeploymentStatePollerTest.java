@@ -0,0 +1,196 @@
+/*
+ *   Copyright 2018. AppDynamics LLC and its affiliates.
+ *   All Rights Reserved.
+ *   This is unpublished proprietary source code of AppDynamics LLC and its affiliates.
+ *   The copyright notice above does not evidence any actual or intended publication of such source code.
+ *
+ */
+package com.appdynamics.connectors.azure;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.microsoft.windowsazure.credentials.SubscriptionCloudCredentials;
+import com.microsoft.windowsazure.exception.ServiceException;
+import com.microsoft.windowsazure.management.compute.ComputeManagementClient;
+import com.microsoft.windowsazure.management.compute.DeploymentOperations;
+import com.microsoft.windowsazure.management.compute.models.DeploymentGetResponse;
+import com.microsoft.windowsazure.management.compute.models.Role;
+import com.microsoft.windowsazure.management.compute.models.RoleInstance;
+import com.singularity.ee.connectors.entity.api.IMachine;
+import com.singularity.ee.connectors.entity.api.MachineState;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DeploymentStatePollerTest {
+
+    private static final int DEPLOYMENTS = 3;
+    private static final int MACHINES_PER_DEPLOYMENT = 30;
+
+    private ComputeManagementClient connector;
+    private DeploymentOperations deployments;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws Exception {
+        //a subscription of its own keeps the shared caches of other tests out of the counts
+        SubscriptionCloudCredentials credentials = mock(SubscriptionCloudCredentials.class);
+        when(credentials.getSubscriptionId()).thenReturn(UUID.randomUUID().toString());
+
+        deployments = mock(DeploymentOperations.class);
+        for (int d = 0; d < DEPLOYMENTS; d++) {
+            when(deployments.getByName(hostedServiceName(d), deploymentName(d))).thenReturn(deployment(d));
+        }
+
+        connector = mock(ComputeManagementClient.class);
+        when(connector.getCredentials()).thenReturn(credentials);
+        when(connector.getDeploymentsOperations()).thenReturn(deployments);
+
+        executor = Executors.newFixedThreadPool(16);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void refreshSweepFetchesEachDeploymentOnce() throws Exception {
+        for (int d = 0; d < DEPLOYMENTS; d++) {
+            for (int m = 0; m < MACHINES_PER_DEPLOYMENT; m++) {
+                IMachine machine = mock(IMachine.class);
+                AzureActions.updateMachineState(machine, connector, hostedServiceName(d), deploymentName(d), roleName(d, m));
+                verify(machine).setState(MachineState.STARTED);
+            }
+        }
+
+        for (int d = 0; d < DEPLOYMENTS; d++) {
+            verify(deployments, times(1)).getByName(hostedServiceName(d), deploymentName(d));
+        }
+    }
+
+    @Test
+    public void concurrentRefreshesShareOneFetch() throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final DeploymentStatePoller poller = new DeploymentStatePoller(60 * 1000);
+        List<Future<DeploymentSnapshot>> lookups = new ArrayList<Future<DeploymentSnapshot>>();
+        for (int d = 0; d < DEPLOYMENTS; d++) {
+            for (int m = 0; m < MACHINES_PER_DEPLOYMENT; m++) {
+                final int deployment = d;
+                lookups.add(executor.submit(new Callable<DeploymentSnapshot>() {
+                    @Override
+                    public DeploymentSnapshot call() throws Exception {
+                        start.await();
+                        return poller.getSnapshot(connector, hostedServiceName(deployment), deploymentName(deployment));
+                    }
+                }));
+            }
+        }
+        start.countDown();
+
+        for (int i = 0; i < lookups.size(); i++) {
+            DeploymentSnapshot snapshot = lookups.get(i).get(30, TimeUnit.SECONDS);
+            int d = i / MACHINES_PER_DEPLOYMENT;
+            assertEquals("ReadyRole", snapshot.getInstanceStatus(roleName(d, i % MACHINES_PER_DEPLOYMENT)));
+        }
+        for (int d = 0; d < DEPLOYMENTS; d++) {
+            verify(deployments, times(1)).getByName(hostedServiceName(d), deploymentName(d));
+        }
+        assertEquals(DEPLOYMENTS, poller.getDeploymentFetches());
+        assertEquals(DEPLOYMENTS * (MACHINES_PER_DEPLOYMENT - 1), poller.getSnapshotHits());
+    }
+
+    @Test
+    public void nextPollWindowFetchesAgain() throws Exception {
+        DeploymentStatePoller poller = new DeploymentStatePoller(200);
+        for (int window = 1; window <= 2; window++) {
+            for (int d = 0; d < DEPLOYMENTS; d++) {
+                for (int m = 0; m < MACHINES_PER_DEPLOYMENT; m++) {
+                    poller.getSnapshot(connector, hostedServiceName(d), deploymentName(d));
+                }
+            }
+            for (int d = 0; d < DEPLOYMENTS; d++) {
+                verify(deployments, times(window)).getByName(hostedServiceName(d), deploymentName(d));
+            }
+            Thread.sleep(250);
+        }
+    }
+
+    @Test
+    public void invalidateFetchesAgainWithinTheWindow() throws Exception {
+        DeploymentStatePoller poller = new DeploymentStatePoller(60 * 1000);
+        poller.getSnapshot(connector, hostedServiceName(0), deploymentName(0));
+        poller.invalidate(connector, hostedServiceName(0), deploymentName(0));
+        poller.getSnapshot(connector, hostedServiceName(0), deploymentName(0));
+        poller.getSnapshot(connector, hostedServiceName(0), deploymentName(0));
+
+        verify(deployments, times(2)).getByName(hostedServiceName(0), deploymentName(0));
+    }
+
+    @Test
+    public void missingDeploymentIsFetchedOnceAndReportsMachinesStopped() throws Exception {
+        ServiceException notFound = new ServiceException("The hosted service does not exist.");
+        notFound.setHttpStatusCode(404);
+        when(deployments.getByName(anyString(), anyString())).thenThrow(notFound);
+
+        for (int m = 0; m < MACHINES_PER_DEPLOYMENT; m++) {
+            IMachine machine = mock(IMachine.class);
+            AzureActions.updateMachineState(machine, connector, "missing-hs", "missing-dep", roleName(0, m));
+            verify(machine).setState(MachineState.STOPPED);
+        }
+
+        verify(deployments, times(1)).getByName("missing-hs", "missing-dep");
+    }
+
+    @Test
+    public void snapshotKnowsOnlyTheDeploymentsRoles() throws Exception {
+        DeploymentSnapshot snapshot = new DeploymentStatePoller(60 * 1000).getSnapshot(connector, hostedServiceName(1), deploymentName(1));
+
+        assertTrue(snapshot.hasRoleInstance(roleName(1, 0)));
+        assertFalse(snapshot.hasRoleInstance(roleName(0, 0)));
+    }
+
+    private static String hostedServiceName(int deployment) {
+        return "hs" + deployment;
+    }
+
+    private static String deploymentName(int deployment) {
+        return "dep" + deployment;
+    }
+
+    private static String roleName(int deployment, int machine) {
+        return "role-" + deployment + "-" + machine;
+    }
+
+    private static DeploymentGetResponse deployment(int deployment) {
+        ArrayList<RoleInstance> roleInstances = new ArrayList<RoleInstance>();
+        for (int m = 0; m < MACHINES_PER_DEPLOYMENT; m++) {
+            RoleInstance roleInstance = new RoleInstance();
+            roleInstance.setRoleName(roleName(deployment, m));
+            roleInstance.setInstanceName(roleName(deployment, m));
+            roleInstance.setInstanceStatus("ReadyRole");
+            roleInstances.add(roleInstance);
+        }
+        DeploymentGetResponse response = new DeploymentGetResponse();
+        response.setName(deploymentName(deployment));
+        response.setRoleInstances(roleInstances);
+        response.setRoles(new ArrayList<Role>());
+        return response;
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ *   Copyright 2018. AppDynamics LLC and its affiliates.
+ *   All Rights Reserved.
+ *   This is unpublished proprietary source code of AppDynamics LLC and its affiliates.
+ *   The copyright notice above does not evidence any actual or intended publication of such source code.
+ *
+ */
+package com.appdynamics.connectors.azure;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.microsoft.windowsazure.core.OperationResponse;
+import com.microsoft.windowsazure.credentials.SubscriptionCloudCredentials;
+import com.microsoft.windowsazure.exception.ServiceException;
+import com.microsoft.windowsazure.management.compute.ComputeManagementClient;
+import com.microsoft.windowsazure.management.compute.HostedServiceOperations;
+import com.microsoft.windowsazure.management.compute.models.HostedServiceCreateParameters;
+import com.microsoft.windowsazure.management.compute.models.HostedServiceGetResponse;
+import com.microsoft.windowsazure.management.storage.StorageAccountOperations;
+import com.microsoft.windowsazure.management.storage.StorageManagementClient;
+import com.microsoft.windowsazure.management.storage.models.StorageAccountGetResponse;
+import com.singularity.ee.connectors.api.ConnectorException;
+import java.util.UUID;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ImagePrewarmerTest {
+
+    private static final String HOSTED_SERVICE = "prewarmedhs";
+
+    private final ImagePrewarmer prewarmer = ImagePrewarmer.getInstance();
+
+    private String subscriptionId;
+    private ComputeManagementClient connector;
+    private HostedServiceOperations hostedServices;
+    private StorageManagementClient storageClient;
+    private StorageAccountOperations storageAccounts;
+    private ImageSettings imageSettings;
+
+    @Before
+    public void setUp() throws Exception {
+        //a subscription of its own keeps the prepared hosted services of other tests out
+        subscriptionId = UUID.randomUUID().toString();
+        SubscriptionCloudCredentials credentials = mock(SubscriptionCloudCredentials.class);
+        when(credentials.getSubscriptionId()).thenReturn(subscriptionId);
+
+        hostedServices = mock(HostedServiceOperations.class);
+        when(hostedServices.get(HOSTED_SERVICE)).thenReturn(new HostedServiceGetResponse());
+        connector = mock(ComputeManagementClient.class);
+        when(connector.getCredentials()).thenReturn(credentials);
+        when(connector.getHostedServicesOperations()).thenReturn(hostedServices);
+
+        storageAccounts = mock(StorageAccountOperations.class);
+        when(storageAccounts.get(HOSTED_SERVICE)).thenReturn(new StorageAccountGetResponse());
+        storageClient = mock(StorageManagementClient.class);
+        when(storageClient.getStorageAccountsOperations()).thenReturn(storageAccounts);
+
+        imageSettings = ImageProperties.resolve(HOSTED_SERVICE, "Production", "West US", true);
+    }
+
+    @Test
+    public void preparedHostedServiceIsNotCheckedAgain() throws Exception {
+        assertFalse(prewarmer.isPrepared(subscriptionId, HOSTED_SERVICE));
+
+        AzureActions.prepareHostedService(connector, storageClient, subscriptionId, imageSettings);
+        assertTrue(prewarmer.isPrepared(subscriptionId, HOSTED_SERVICE));
+
+        for (int i = 0; i < 10; i++) {
+            AzureActions.prepareHostedService(connector, storageClient, subscriptionId, imageSettings);
+        }
+        verify(hostedServices, times(1)).get(HOSTED_SERVICE);
+        verify(storageAccounts, times(1)).get(HOSTED_SERVICE);
+    }
+
+    @Test
+    public void forgottenHostedServiceIsCheckedAgain() throws Exception {
+        AzureActions.prepareHostedService(connector, storageClient, subscriptionId, imageSettings);
+        prewarmer.forget(subscriptionId, HOSTED_SERVICE);
+        assertFalse(prewarmer.isPrepared(subscriptionId, HOSTED_SERVICE));
+
+        AzureActions.prepareHostedService(connector, storageClient, subscriptionId, imageSettings);
+
+        assertTrue(prewarmer.isPrepared(subscriptionId, HOSTED_SERVICE));
+        verify(hostedServices, times(2)).get(HOSTED_SERVICE);
+        verify(storageAccounts, times(2)).get(HOSTED_SERVICE);
+    }
+
+    @Test
+    public void failedPreparationIsRetried() throws Exception {
+        ServiceException notFound = new ServiceException("The hosted service does not exist.");
+        notFound.setHttpStatusCode(404);
+        ServiceException rejected = new ServiceException("The server encountered an internal error.");
+        rejected.setHttpStatusCode(500);
+        when(hostedServices.get(HOSTED_SERVICE)).thenThrow(notFound);
+        when(hostedServices.create(any(HostedServiceCreateParameters.class))).thenThrow(rejected).thenReturn(new OperationResponse());
+
+        try {
+            AzureActions.prepareHostedService(connector, storageClient, subscriptionId, imageSettings);
+            fail("Expected the hosted service creation to fail");
+        } catch (ConnectorException e) {
+            assertFalse(prewarmer.isPrepared(subscriptionId, HOSTED_SERVICE));
+        }
+
+        AzureActions.prepareHostedService(connector, storageClient, subscriptionId, imageSettings);
+
+        assertTrue(prewarmer.isPrepared(subscriptionId, HOSTED_SERVICE));
+        verify(hostedServices, times(2)).create(any(HostedServiceCreateParameters.class));
+    }
+
+    @Test
+    public void readinessIsClaimedOnceAndAgainAfterFailure() {
+        ImageReadiness readiness = new ImageReadiness("image", HOSTED_SERVICE);
+        assertEquals("PENDING", readiness.getState());
+
+        assertTrue(readiness.start());
+        assertFalse(readiness.start());
+        readiness.failed(new ConnectorException("Unable to create hosted service"));
+        assertEquals("FAILED", readiness.getState());
+        assertEquals("Unable to create hosted service", readiness.getLastError());
+
+        assertTrue(readiness.start());
+        readiness.ready(true, 1200);
+        assertEquals("READY", readiness.getState());
+        assertTrue(readiness.isDeploymentPresent());
+        assertEquals(null, readiness.getLastError());
+        assertFalse(readiness.start());
+    }
+}
@@ -0,0 +1,30 @@
+/*
+ *   Copyright 2018. AppDynamics LLC and its affiliates.
+ *   All Rights Reserved.
+ *   This is unpublished proprietary source code of AppDynamics LLC and its affiliates.
+ *   The copyright notice above does not evidence any actual or intended publication of such source code.
+ *
+ */
+package com.appdynamics.connectors.azure;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.singularity.ee.connectors.api.IControllerServices;
+import com.singularity.ee.connectors.entity.api.IProperty;
+
+/**
+ * Resolves image settings from image properties spelled the way image-types.xml offers them.
+ */
+class ImageProperties {
+
+    static ImageSettings resolve(String hostedServiceName, String deploymentSlot, String location, boolean preProvision) {
+        IProperty[] properties = new IProperty[0];
+        IControllerServices controllerServices = mock(IControllerServices.class);
+        when(controllerServices.getStringPropertyValueByName(properties, "Hosted Service Name")).thenReturn(hostedServiceName);
+        when(controllerServices.getStringPropertyValueByName(properties, "Deployment Slot Type")).thenReturn(deploymentSlot);
+        when(controllerServices.getStringPropertyValueByName(properties, "Location")).thenReturn(location);
+        when(controllerServices.getStringPropertyValueByName(properties, "Pre-Provision")).thenReturn(String.valueOf(preProvision));
+        return ImageSettings.from(properties, controllerServices);
+    }
+}
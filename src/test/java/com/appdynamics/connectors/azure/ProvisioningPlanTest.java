@@ -0,0 +1,93 @@
+/*
+ *   Copyright 2018. AppDynamics LLC and its affiliates.
+ *   All Rights Reserved.
+ *   This is unpublished proprietary source code of AppDynamics LLC and its affiliates.
+ *   The copyright notice above does not evidence any actual or intended publication of such source code.
+ *
+ */
+package com.appdynamics.connectors.azure;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.singularity.ee.connectors.api.ConnectorException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class ProvisioningPlanTest {
+
+    @Test
+    public void pendingAsyncStepsLeaveThePoolFree() throws Exception {
+        //more waiting steps than the pool has threads
+        List<SettableFuture<Void>> completions = new ArrayList<SettableFuture<Void>>();
+        for (int i = 0; i < 40; i++) {
+            final SettableFuture<Void> completion = SettableFuture.create();
+            completions.add(completion);
+            new ProvisioningPlan("waiting" + i).asyncStep("wait", new Callable<ListenableFuture<Void>>() {
+                @Override
+                public ListenableFuture<Void> call() {
+                    return completion;
+                }
+            });
+        }
+
+        final CountDownLatch ran = new CountDownLatch(1);
+        ProvisioningPlan plan = new ProvisioningPlan("free").step("run", new Callable<Void>() {
+            @Override
+            public Void call() {
+                ran.countDown();
+                return null;
+            }
+        });
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        plan.await();
+
+        for (SettableFuture<Void> completion : completions) {
+            completion.set(null);
+        }
+    }
+
+    @Test
+    public void dependentStepWaitsForTheAsyncCompletion() throws Exception {
+        final SettableFuture<Void> completion = SettableFuture.create();
+        final List<String> order = new ArrayList<String>();
+        ProvisioningPlan plan = new ProvisioningPlan("chained")
+                .asyncStep("first", new Callable<ListenableFuture<Void>>() {
+                    @Override
+                    public ListenableFuture<Void> call() {
+                        return completion;
+                    }
+                })
+                .step("second", new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        order.add("second");
+                        return null;
+                    }
+                }, "first");
+
+        Thread.sleep(50);
+        assertTrue(order.isEmpty());
+        completion.set(null);
+        plan.await();
+        assertEquals(1, order.size());
+    }
+
+    @Test(expected = ConnectorException.class)
+    public void asyncFailureFailsThePlan() throws Exception {
+        final SettableFuture<Void> completion = SettableFuture.create();
+        completion.setException(new ConnectorException("Unable to create storage account"));
+        new ProvisioningPlan("failing").asyncStep("fail", new Callable<ListenableFuture<Void>>() {
+            @Override
+            public ListenableFuture<Void> call() {
+                return completion;
+            }
+        }).await();
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ *   Copyright 2018. AppDynamics LLC and its affiliates.
+ *   All Rights Reserved.
+ *   This is unpublished proprietary source code of AppDynamics LLC and its affiliates.
+ *   The copyright notice above does not evidence any actual or intended publication of such source code.
+ *
+ */
+package com.appdynamics.connectors.azure;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.microsoft.windowsazure.core.OperationResponse;
+import com.microsoft.windowsazure.credentials.SubscriptionCloudCredentials;
+import com.microsoft.windowsazure.exception.ServiceException;
+import com.microsoft.windowsazure.management.compute.ComputeManagementClient;
+import com.microsoft.windowsazure.management.compute.DeploymentOperations;
+import com.microsoft.windowsazure.management.compute.HostedServiceOperations;
+import com.microsoft.windowsazure.management.compute.VirtualMachineOperations;
+import com.microsoft.windowsazure.management.compute.models.HostedServiceCreateParameters;
+import com.microsoft.windowsazure.management.compute.models.HostedServiceGetResponse;
+import com.microsoft.windowsazure.management.compute.models.VirtualMachineCreateDeploymentParameters;
+import com.microsoft.windowsazure.management.storage.StorageAccountOperations;
+import com.microsoft.windowsazure.management.storage.StorageManagementClient;
+import com.microsoft.windowsazure.management.storage.models.StorageAccountCreateParameters;
+import com.microsoft.windowsazure.management.storage.models.StorageAccountGetResponse;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+/**
+ * Many callers preparing the same image at once: each resource is created by one of them, and all of them get its
+ * outcome.
+ */
+public class SingleFlightCoordinatorTest {
+
+    //each caller runs two provisioning steps on the shared pool, keep them all running at once
+    private static final int CALLERS = 6;
+
+    private static final String HOSTED_SERVICE = "appdhs";
+
+    private final SingleFlightCoordinator coordinator = SingleFlightCoordinator.getInstance();
+
+    private String subscriptionId;
+    private ComputeManagementClient connector;
+    private HostedServiceOperations hostedServices;
+    private DeploymentOperations deployments;
+    private VirtualMachineOperations virtualMachines;
+    private StorageManagementClient storageClient;
+    private StorageAccountOperations storageAccounts;
+    private ImageSettings imageSettings;
+    private ExecutorService callers;
+
+    @Before
+    public void setUp() throws Exception {
+        //a subscription of its own keeps the existence and prepared caches of other tests out
+        subscriptionId = UUID.randomUUID().toString();
+        SubscriptionCloudCredentials credentials = mock(SubscriptionCloudCredentials.class);
+        when(credentials.getSubscriptionId()).thenReturn(subscriptionId);
+
+        hostedServices = mock(HostedServiceOperations.class);
+        deployments = mock(DeploymentOperations.class);
+        virtualMachines = mock(VirtualMachineOperations.class);
+
+        connector = mock(ComputeManagementClient.class);
+        when(connector.getCredentials()).thenReturn(credentials);
+        when(connector.getHostedServicesOperations()).thenReturn(hostedServices);
+        when(connector.getDeploymentsOperations()).thenReturn(deployments);
+        when(connector.getVirtualMachinesOperations()).thenReturn(virtualMachines);
+
+        storageAccounts = mock(StorageAccountOperations.class);
+        storageClient = mock(StorageManagementClient.class);
+        when(storageClient.getStorageAccountsOperations()).thenReturn(storageAccounts);
+
+        imageSettings = ImageProperties.resolve(HOSTED_SERVICE, "Production", "West US", false);
+        callers = Executors.newFixedThreadPool(CALLERS);
+    }
+
+    @After
+    public void tearDown() {
+        callers.shutdownNow();
+    }
+
+    @Test
+    public void concurrentCallersCreateHostedServiceAndStorageAccountOnce() throws Exception {
+        long joins = coordinator.getJoins();
+        doAnswer(afterJoins(joins + 2 * (CALLERS - 1), null, notFound())).when(hostedServices).get(HOSTED_SERVICE);
+        doAnswer(afterJoins(joins + 2 * (CALLERS - 1), new StorageAccountGetResponse(), null)).when(storageAccounts).get(HOSTED_SERVICE);
+        when(hostedServices.create(any(HostedServiceCreateParameters.class))).thenReturn(new OperationResponse());
+
+        for (Throwable failure : prepareConcurrently()) {
+            assertNull(failure);
+        }
+
+        verify(hostedServices, times(1)).get(HOSTED_SERVICE);
+        verify(hostedServices, times(1)).create(any(HostedServiceCreateParameters.class));
+        verify(storageAccounts, times(1)).get(HOSTED_SERVICE);
+        verify(storageAccounts, never()).beginCreating(any(StorageAccountCreateParameters.class));
+        assertEquals(joins + 2 * (CALLERS - 1), coordinator.getJoins());
+    }
+
+    @Test
+    public void concurrentCallersShareTheHostedServiceFailure() throws Exception {
+        long joins = coordinator.getJoins();
+        doAnswer(afterJoins(joins + 2 * (CALLERS - 1), null, notFound())).when(hostedServices).get(HOSTED_SERVICE);
+        doAnswer(afterJoins(joins + 2 * (CALLERS - 1), new StorageAccountGetResponse(), null)).when(storageAccounts).get(HOSTED_SERVICE);
+        ServiceException rejected = new ServiceException("The server encountered an internal error.");
+        rejected.setHttpStatusCode(500);
+        when(hostedServices.create(any(HostedServiceCreateParameters.class))).thenThrow(rejected);
+
+        List<Throwable> failures = prepareConcurrently();
+
+        verify(hostedServices, times(1)).create(any(HostedServiceCreateParameters.class));
+        assertSharedFailure(failures, rejected);
+    }
+
+    @Test
+    public void concurrentCallersShareTheStorageAccountFailure() throws Exception {
+        long joins = coordinator.getJoins();
+        doAnswer(afterJoins(joins + 2 * (CALLERS - 1), new HostedServiceGetResponse(), null)).when(hostedServices).get(HOSTED_SERVICE);
+        doAnswer(afterJoins(joins + 2 * (CALLERS - 1), null, notFound())).when(storageAccounts).get(HOSTED_SERVICE);
+        ServiceException rejected = new ServiceException("The subscription reached its storage account quota.");
+        rejected.setHttpStatusCode(400);
+        when(storageAccounts.beginCreating(any(StorageAccountCreateParameters.class))).thenThrow(rejected);
+
+        List<Throwable> failures = prepareConcurrently();
+
+        verify(storageAccounts, times(1)).beginCreating(any(StorageAccountCreateParameters.class));
+        verify(hostedServices, never()).create(any(HostedServiceCreateParameters.class));
+        assertSharedFailure(failures, rejected);
+    }
+
+    @Test
+    public void concurrentCallersCreateTheDeploymentOnce() throws Exception {
+        when(deployments.getByName(anyString(), anyString())).thenThrow(notFound());
+        when(virtualMachines.beginCreatingDeployment(eq(HOSTED_SERVICE), any(VirtualMachineCreateDeploymentParameters.class)))
+                .thenReturn(new OperationResponse());
+
+        for (Throwable failure : submitConcurrently()) {
+            assertNull(failure);
+        }
+
+        ArgumentCaptor<VirtualMachineCreateDeploymentParameters> created = ArgumentCaptor.forClass(VirtualMachineCreateDeploymentParameters.class);
+        verify(virtualMachines, times(1)).beginCreatingDeployment(eq(HOSTED_SERVICE), created.capture());
+        assertEquals(CALLERS, created.getValue().getRoles().size());
+    }
+
+    @Test
+    public void concurrentCallersShareTheDeploymentFailure() throws Exception {
+        when(deployments.getByName(anyString(), anyString())).thenThrow(notFound());
+        ServiceException rejected = new ServiceException("The deployment name is already in use.");
+        rejected.setHttpStatusCode(409);
+        when(virtualMachines.beginCreatingDeployment(eq(HOSTED_SERVICE), any(VirtualMachineCreateDeploymentParameters.class)))
+                .thenThrow(rejected);
+
+        List<Throwable> failures = submitConcurrently();
+
+        verify(virtualMachines, times(1)).beginCreatingDeployment(eq(HOSTED_SERVICE), any(VirtualMachineCreateDeploymentParameters.class));
+        assertSharedFailure(failures, rejected);
+    }
+
+    private List<Throwable> prepareConcurrently() throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<Void>> calls = new ArrayList<Future<Void>>();
+        for (int i = 0; i < CALLERS; i++) {
+            calls.add(callers.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    start.await();
+                    AzureActions.prepareHostedService(connector, storageClient, subscriptionId, imageSettings);
+                    return null;
+                }
+            }));
+        }
+        start.countDown();
+        return outcomes(calls);
+    }
+
+    private List<Throwable> submitConcurrently() throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final DeploymentShard shard = DeploymentShard.of(imageSettings, 0);
+        List<Future<Void>> calls = new ArrayList<Future<Void>>();
+        for (int i = 0; i < CALLERS; i++) {
+            final VirtualMachineSpec spec = new VirtualMachineSpec("role" + i, new OsImage("image", "image", "Linux"), "Small", "admin", "secret");
+            calls.add(callers.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    start.await();
+                    ListenableFuture<Void> accepted = ScaleOutBatcher.getInstance().submit(connector, shard, spec);
+                    return accepted.get(30, TimeUnit.SECONDS);
+                }
+            }));
+        }
+        start.countDown();
+        return outcomes(calls);
+    }
+
+    //null for a caller that succeeded, otherwise what it failed with
+    private static List<Throwable> outcomes(List<Future<Void>> calls) throws Exception {
+        List<Throwable> outcomes = new ArrayList<Throwable>();
+        for (Future<Void> call : calls) {
+            try {
+                call.get(60, TimeUnit.SECONDS);
+                outcomes.add(null);
+            } catch (ExecutionException e) {
+                Throwable failure = e.getCause();
+                outcomes.add(failure instanceof ExecutionException ? failure.getCause() : failure);
+            }
+        }
+        return outcomes;
+    }
+
+    private static void assertSharedFailure(List<Throwable> failures, ServiceException rejected) {
+        Throwable shared = failures.get(0);
+        assertNotNull(shared);
+        for (Throwable failure : failures) {
+            assertSame(shared, failure);
+        }
+        Throwable cause = shared;
+        while (cause != null && cause != rejected) {
+            cause = cause.getCause();
+        }
+        if (cause == null) {
+            fail("Expected " + shared + " to be caused by " + rejected);
+        }
+    }
+
+    private static ServiceException notFound() {
+        ServiceException notFound = new ServiceException("The resource does not exist.");
+        notFound.setHttpStatusCode(404);
+        return notFound;
+    }
+
+    //holds the first remote call until every other caller joined the creation in flight
+    private Answer<Object> afterJoins(final long joins, final Object result, final Throwable failure) {
+        return new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                long deadline = System.currentTimeMillis() + 10 * 1000;
+                while (coordinator.getJoins() < joins && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(10);
+                }
+                if (failure != null) {
+                    throw failure;
+                }
+                return result;
+            }
+        };
+    }
+}
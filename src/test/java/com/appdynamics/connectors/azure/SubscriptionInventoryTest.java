@@ -0,0 +1,112 @@
+/*
+ *   Copyright 2018. AppDynamics LLC and its affiliates.
+ *   All Rights Reserved.
+ *   This is unpublished proprietary source code of AppDynamics LLC and its affiliates.
+ *   The copyright notice above does not evidence any actual or intended publication of such source code.
+ *
+ */
+package com.appdynamics.connectors.azure;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.appdynamics.connectors.azure.ResourceExistenceCache.Kind;
+import com.microsoft.windowsazure.credentials.SubscriptionCloudCredentials;
+import com.microsoft.windowsazure.exception.ServiceException;
+import com.microsoft.windowsazure.management.compute.ComputeManagementClient;
+import com.microsoft.windowsazure.management.compute.HostedServiceOperations;
+import com.microsoft.windowsazure.management.compute.models.HostedServiceGetDetailedResponse;
+import com.microsoft.windowsazure.management.compute.models.RoleInstance;
+import java.util.ArrayList;
+import java.util.UUID;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SubscriptionInventoryTest {
+
+    private static final long SYNC_MILLIS = 50;
+
+    private String subscriptionId;
+    private ComputeManagementClient connector;
+    private HostedServiceOperations hostedServices;
+
+    @Before
+    public void setUp() throws Exception {
+        subscriptionId = UUID.randomUUID().toString();
+        SubscriptionCloudCredentials credentials = mock(SubscriptionCloudCredentials.class);
+        when(credentials.getSubscriptionId()).thenReturn(subscriptionId);
+
+        ServiceException notFound = new ServiceException("The hosted service does not exist.");
+        notFound.setHttpStatusCode(404);
+        hostedServices = mock(HostedServiceOperations.class);
+        when(hostedServices.getDetailed(anyString())).thenThrow(notFound);
+        doReturn(detailed("appdhs-Staging", "web1")).when(hostedServices).getDetailed("appdhs");
+
+        connector = mock(ComputeManagementClient.class);
+        when(connector.getCredentials()).thenReturn(credentials);
+        when(connector.getHostedServicesOperations()).thenReturn(hostedServices);
+    }
+
+    @Test
+    public void onlyHostedServicesLookedUpAreSynced() throws Exception {
+        SubscriptionInventory inventory = new SubscriptionInventory(SYNC_MILLIS, 60 * 1000);
+
+        assertNull(inventory.getDeployment(connector, "appdhs", "appdhs-Staging", Long.MAX_VALUE));
+        assertNull(inventory.exists(Kind.HOSTED_SERVICE, subscriptionId, "gonehs"));
+
+        //both are synced from the next sync on
+        DeploymentSnapshot snapshot = null;
+        Boolean gone = null;
+        long deadline = System.currentTimeMillis() + 10 * 1000;
+        while ((snapshot == null || gone == null) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(SYNC_MILLIS / 5);
+            snapshot = inventory.getDeployment(connector, "appdhs", "appdhs-Staging", Long.MAX_VALUE);
+            gone = inventory.exists(Kind.HOSTED_SERVICE, subscriptionId, "gonehs");
+        }
+        assertEquals("ReadyRole", snapshot.getInstanceStatus("web1"));
+        assertFalse(gone);
+        assertFalse(inventory.getDeployment(connector, "appdhs", "appdhs-Production", Long.MAX_VALUE).isDeploymentFound());
+        assertTrue(inventory.exists(Kind.HOSTED_SERVICE, subscriptionId, "appdhs"));
+        //a hosted service the connector never asked about is neither fetched nor answered for
+        assertNull(inventory.exists(Kind.HOSTED_SERVICE, subscriptionId, "otherhs"));
+
+        verify(hostedServices, never()).list();
+        verify(hostedServices, never()).getDetailed("otherhs");
+    }
+
+    @Test
+    public void syncingIsOffWithoutInterval() throws Exception {
+        SubscriptionInventory inventory = new SubscriptionInventory(0, 60 * 1000);
+
+        assertNull(inventory.getDeployment(connector, "appdhs", "appdhs-Staging", Long.MAX_VALUE));
+        Thread.sleep(3 * SYNC_MILLIS);
+        assertNull(inventory.getDeployment(connector, "appdhs", "appdhs-Staging", Long.MAX_VALUE));
+        assertEquals(0, inventory.getSyncs());
+        verify(hostedServices, never()).getDetailed(anyString());
+    }
+
+    private static HostedServiceGetDetailedResponse detailed(String deploymentName, String roleName) {
+        RoleInstance roleInstance = new RoleInstance();
+        roleInstance.setRoleName(roleName);
+        roleInstance.setInstanceName(roleName);
+        roleInstance.setInstanceStatus("ReadyRole");
+        ArrayList<RoleInstance> roleInstances = new ArrayList<RoleInstance>();
+        roleInstances.add(roleInstance);
+        HostedServiceGetDetailedResponse.Deployment deployment = new HostedServiceGetDetailedResponse.Deployment();
+        deployment.setName(deploymentName);
+        deployment.setRoleInstances(roleInstances);
+        ArrayList<HostedServiceGetDetailedResponse.Deployment> deployments = new ArrayList<HostedServiceGetDetailedResponse.Deployment>();
+        deployments.add(deployment);
+        HostedServiceGetDetailedResponse response = new HostedServiceGetDetailedResponse();
+        response.setDeployments(deployments);
+        return response;
+    }
+}